@@ -0,0 +1,564 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ClassFileWriter assembles a single class file for {@link Scxml2Bytecode}.
+ * It supports only what the generated state machines need: constants, fields,
+ * methods with forward jumps and switches, and the InnerClasses attribute.
+ *
+ * Classes are written as version 49 (Java 5) class files, which the JVM
+ * verifies by type inference, so no StackMapTable frames are computed. Every
+ * method is given a fixed, generous operand stack depth.
+ */
+class ClassFileWriter {
+
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_PRIVATE = 0x0002;
+  static final int ACC_PROTECTED = 0x0004;
+  static final int ACC_STATIC = 0x0008;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+  static final int ACC_INTERFACE = 0x0200;
+  static final int ACC_ABSTRACT = 0x0400;
+  static final int ACC_SYNTHETIC = 0x1000;
+  static final int ACC_ENUM = 0x4000;
+
+  // opcodes used by the generator
+  static final int ACONST_NULL = 0x01;
+  static final int ICONST_0 = 0x03;
+  static final int BIPUSH = 0x10;
+  static final int SIPUSH = 0x11;
+  static final int LDC = 0x12;
+  static final int LDC_W = 0x13;
+  static final int ILOAD = 0x15;
+  static final int ALOAD = 0x19;
+  static final int IALOAD = 0x2e;
+  static final int AALOAD = 0x32;
+  static final int ISTORE = 0x36;
+  static final int ASTORE = 0x3a;
+  static final int IASTORE = 0x4f;
+  static final int AASTORE = 0x53;
+  static final int POP = 0x57;
+  static final int DUP = 0x59;
+  static final int SWAP = 0x5f;
+  static final int IADD = 0x60;
+  static final int ISUB = 0x64;
+  static final int IMUL = 0x68;
+  static final int IINC = 0x84;
+  static final int I2B = 0x91;
+  static final int I2S = 0x93;
+  static final int IFEQ = 0x99;
+  static final int IFNE = 0x9a;
+  static final int IFLT = 0x9b;
+  static final int IFGE = 0x9c;
+  static final int IF_ICMPEQ = 0x9f;
+  static final int IF_ICMPNE = 0xa0;
+  static final int IF_ICMPLT = 0xa1;
+  static final int IF_ICMPGE = 0xa2;
+  static final int GOTO = 0xa7;
+  static final int TABLESWITCH = 0xaa;
+  static final int IRETURN = 0xac;
+  static final int ARETURN = 0xb0;
+  static final int RETURN = 0xb1;
+  static final int GETSTATIC = 0xb2;
+  static final int PUTSTATIC = 0xb3;
+  static final int GETFIELD = 0xb4;
+  static final int PUTFIELD = 0xb5;
+  static final int INVOKEVIRTUAL = 0xb6;
+  static final int INVOKESPECIAL = 0xb7;
+  static final int INVOKESTATIC = 0xb8;
+  static final int INVOKEINTERFACE = 0xb9;
+  static final int NEW = 0xbb;
+  static final int NEWARRAY = 0xbc;
+  static final int ANEWARRAY = 0xbd;
+  static final int ARRAYLENGTH = 0xbe;
+  static final int ATHROW = 0xbf;
+  static final int CHECKCAST = 0xc0;
+  static final int T_INT = 10;
+
+  private static final int CLASS_VERSION = 49;
+  private static final int MAX_STACK = 8;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private final ByteArrayOutputStream mPoolBytes = new ByteArrayOutputStream();
+  private final DataOutputStream mPool = new DataOutputStream(mPoolBytes);
+  private final Map<String, Integer> mPoolIndex = new HashMap<String, Integer>();
+  private int mPoolCount = 1;
+
+  private final int mAccess;
+  private final int mThisClass;
+  private final int mSuperClass;
+  private final int[] mInterfaces;
+  private final List<byte[]> mFields = new ArrayList<byte[]>();
+  private final List<byte[]> mMethods = new ArrayList<byte[]>();
+  private final ByteArrayOutputStream mInnerClasses = new ByteArrayOutputStream();
+  private int mInnerClassCount;
+
+  /**
+   * @param access class access flags
+   * @param name internal name of the class, such as com/example/Fsm$State
+   * @param superName internal name of the superclass
+   * @param interfaces internal names of implemented interfaces
+   */
+  ClassFileWriter(int access, String name, String superName, String... interfaces) {
+    mAccess = access;
+    mThisClass = classRef(name);
+    mSuperClass = classRef(superName);
+    mInterfaces = new int[interfaces.length];
+    for (int i = 0; i < interfaces.length; i++) {
+      mInterfaces[i] = classRef(interfaces[i]);
+    }
+  }
+
+  private int constant(String key, int tag, int a, int b, String utf8) {
+    Integer index = mPoolIndex.get(key);
+    if (index != null) {
+      return index;
+    }
+    try {
+      mPool.writeByte(tag);
+      switch (tag) {
+        case CONSTANT_UTF8:
+          mPool.writeUTF(utf8);
+          break;
+        case CONSTANT_INTEGER:
+          mPool.writeInt(a);
+          break;
+        case CONSTANT_CLASS:
+        case CONSTANT_STRING:
+          mPool.writeShort(a);
+          break;
+        default:
+          mPool.writeShort(a);
+          mPool.writeShort(b);
+      }
+    } catch (IOException e) {
+      // raised by writeUTF for strings longer than a class file allows
+      throw new IllegalArgumentException(e);
+    }
+    index = mPoolCount++;
+    if (index > 0xffff) {
+      throw new IllegalArgumentException("too many constants for one class file");
+    }
+    mPoolIndex.put(key, index);
+    return index;
+  }
+
+  int utf8(String s) {
+    return constant("U" + s, CONSTANT_UTF8, 0, 0, s);
+  }
+
+  int classRef(String internalName) {
+    return constant("C" + internalName, CONSTANT_CLASS, utf8(internalName), 0, null);
+  }
+
+  int string(String s) {
+    return constant("S" + s, CONSTANT_STRING, utf8(s), 0, null);
+  }
+
+  int integer(int i) {
+    return constant("I" + i, CONSTANT_INTEGER, i, 0, null);
+  }
+
+  private int nameAndType(String name, String descriptor) {
+    return constant("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE, utf8(name),
+        utf8(descriptor), null);
+  }
+
+  int fieldRef(String owner, String name, String descriptor) {
+    return constant("F" + owner + "." + name + ":" + descriptor, CONSTANT_FIELDREF,
+        classRef(owner), nameAndType(name, descriptor), null);
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    return constant("M" + owner + "." + name + descriptor, CONSTANT_METHODREF, classRef(owner),
+        nameAndType(name, descriptor), null);
+  }
+
+  int interfaceMethodRef(String owner, String name, String descriptor) {
+    return constant("J" + owner + "." + name + descriptor, CONSTANT_INTERFACE_METHODREF,
+        classRef(owner), nameAndType(name, descriptor), null);
+  }
+
+  /**
+   * Declare a field, with an int ConstantValue if constant is not null
+   */
+  void field(int access, String name, String descriptor, Integer constant) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      if (constant == null) {
+        out.writeShort(0);
+      } else {
+        out.writeShort(1);
+        out.writeShort(utf8("ConstantValue"));
+        out.writeInt(2);
+        out.writeShort(integer(constant));
+      }
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    mFields.add(bytes.toByteArray());
+  }
+
+  void abstractMethod(int access, String name, String descriptor) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(access | ACC_ABSTRACT);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(0);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    mMethods.add(bytes.toByteArray());
+  }
+
+  /**
+   * Start a method with a body. The method is added to the class by
+   * {@link Code#end(int)}.
+   */
+  Code method(int access, String name, String descriptor) {
+    return new Code(access, name, descriptor);
+  }
+
+  /**
+   * Record a member class in the InnerClasses attribute
+   */
+  void innerClass(String inner, String outer, String simpleName, int access) {
+    DataOutputStream out = new DataOutputStream(mInnerClasses);
+    try {
+      out.writeShort(classRef(inner));
+      out.writeShort(classRef(outer));
+      out.writeShort(utf8(simpleName));
+      out.writeShort(access);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    mInnerClassCount++;
+  }
+
+  byte[] toByteArray() {
+    if (mInnerClassCount > 0) {
+      utf8("InnerClasses");
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0xcafebabe);
+      out.writeShort(0);
+      out.writeShort(CLASS_VERSION);
+      out.writeShort(mPoolCount);
+      mPool.flush();
+      mPoolBytes.writeTo(out);
+      out.writeShort(mAccess);
+      out.writeShort(mThisClass);
+      out.writeShort(mSuperClass);
+      out.writeShort(mInterfaces.length);
+      for (int i : mInterfaces) {
+        out.writeShort(i);
+      }
+      out.writeShort(mFields.size());
+      for (byte[] field : mFields) {
+        out.write(field);
+      }
+      out.writeShort(mMethods.size());
+      for (byte[] method : mMethods) {
+        out.write(method);
+      }
+      if (mInnerClassCount == 0) {
+        out.writeShort(0);
+      } else {
+        out.writeShort(1);
+        out.writeShort(utf8("InnerClasses"));
+        out.writeInt(2 + mInnerClasses.size());
+        out.writeShort(mInnerClassCount);
+        mInnerClasses.writeTo(out);
+      }
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * A position in a method's code, which jumps may reference before it is marked
+   */
+  static class Label {
+    private int mOffset = -1;
+    // positions of 16 or 32 bit offsets to patch, each paired with its instruction start
+    private final List<int[]> mReferences = new ArrayList<int[]>();
+  }
+
+  /**
+   * Builds the Code attribute of one method
+   */
+  class Code {
+    private final int mAccess;
+    private final String mName;
+    private final String mDescriptor;
+    private final ByteArrayOutputStream mCode = new ByteArrayOutputStream();
+    // patched in place once the code is complete
+    private byte[] mBytes;
+    private final List<Label> mLabels = new ArrayList<Label>();
+
+    private Code(int access, String name, String descriptor) {
+      mAccess = access;
+      mName = name;
+      mDescriptor = descriptor;
+    }
+
+    private int pc() {
+      return mCode.size();
+    }
+
+    private void u1(int b) {
+      mCode.write(b);
+    }
+
+    private void u2(int s) {
+      mCode.write(s >> 8);
+      mCode.write(s);
+    }
+
+    private void u4(int i) {
+      u2(i >> 16);
+      u2(i);
+    }
+
+    Code op(int opcode) {
+      u1(opcode);
+      return this;
+    }
+
+    /**
+     * Push an int constant with the shortest instruction for its value
+     */
+    Code iconst(int value) {
+      if (value >= -1 && value <= 5) {
+        u1(ICONST_0 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        u1(BIPUSH);
+        u1(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        u1(SIPUSH);
+        u2(value);
+      } else {
+        ldc(integer(value));
+      }
+      return this;
+    }
+
+    private void ldc(int index) {
+      if (index <= 0xff) {
+        u1(LDC);
+        u1(index);
+      } else {
+        u1(LDC_W);
+        u2(index);
+      }
+    }
+
+    Code ldcString(String s) {
+      ldc(string(s));
+      return this;
+    }
+
+    Code ldcClass(String internalName) {
+      ldc(classRef(internalName));
+      return this;
+    }
+
+    /**
+     * Load, store or increment a local variable
+     */
+    Code local(int opcode, int index) {
+      u1(opcode);
+      u1(index);
+      return this;
+    }
+
+    Code iinc(int index, int increment) {
+      u1(IINC);
+      u1(index);
+      u1(increment);
+      return this;
+    }
+
+    Code field(int opcode, String owner, String name, String descriptor) {
+      u1(opcode);
+      u2(fieldRef(owner, name, descriptor));
+      return this;
+    }
+
+    Code invoke(int opcode, String owner, String name, String descriptor) {
+      u1(opcode);
+      if (opcode == INVOKEINTERFACE) {
+        u2(interfaceMethodRef(owner, name, descriptor));
+        u1(argumentSlots(descriptor) + 1);
+        u1(0);
+      } else {
+        u2(methodRef(owner, name, descriptor));
+      }
+      return this;
+    }
+
+    /**
+     * Emit an instruction that takes a class operand: NEW, ANEWARRAY or CHECKCAST
+     */
+    Code type(int opcode, String internalName) {
+      u1(opcode);
+      u2(classRef(internalName));
+      return this;
+    }
+
+    Code newIntArray() {
+      u1(NEWARRAY);
+      u1(T_INT);
+      return this;
+    }
+
+    Label label() {
+      Label label = new Label();
+      mLabels.add(label);
+      return label;
+    }
+
+    Code mark(Label label) {
+      label.mOffset = pc();
+      return this;
+    }
+
+    /**
+     * Emit a conditional branch or GOTO to a label
+     */
+    Code jump(int opcode, Label label) {
+      int start = pc();
+      u1(opcode);
+      label.mReferences.add(new int[] {pc(), start, 2});
+      u2(0);
+      return this;
+    }
+
+    /**
+     * Emit a TABLESWITCH on the int on top of the stack over low .. low + cases.length - 1
+     */
+    Code tableSwitch(int low, Label defaultLabel, Label... cases) {
+      int start = pc();
+      u1(TABLESWITCH);
+      while (pc() % 4 != 0) {
+        u1(0);
+      }
+      defaultLabel.mReferences.add(new int[] {pc(), start, 4});
+      u4(0);
+      u4(low);
+      u4(low + cases.length - 1);
+      for (Label label : cases) {
+        label.mReferences.add(new int[] {pc(), start, 4});
+        u4(0);
+      }
+      return this;
+    }
+
+    /**
+     * Resolve jumps and add the method to the class
+     *
+     * @param maxLocals number of local variable slots, including arguments
+     */
+    void end(int maxLocals) {
+      mBytes = mCode.toByteArray();
+      for (Label label : mLabels) {
+        if (label.mOffset < 0 && !label.mReferences.isEmpty()) {
+          throw new IllegalStateException("unmarked label in " + mName);
+        }
+        for (int[] reference : label.mReferences) {
+          int offset = label.mOffset - reference[1];
+          if (reference[2] == 2) {
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+              throw new IllegalArgumentException("method " + mName + " is too large");
+            }
+            patch(reference[0], offset, 2);
+          } else {
+            patch(reference[0], offset, 4);
+          }
+        }
+      }
+      if (mBytes.length > 0xffff) {
+        throw new IllegalArgumentException("method " + mName + " is too large");
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      try {
+        out.writeShort(mAccess);
+        out.writeShort(utf8(mName));
+        out.writeShort(utf8(mDescriptor));
+        out.writeShort(1);
+        out.writeShort(utf8("Code"));
+        out.writeInt(12 + mBytes.length);
+        out.writeShort(MAX_STACK);
+        out.writeShort(maxLocals);
+        out.writeInt(mBytes.length);
+        out.write(mBytes);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+      mMethods.add(bytes.toByteArray());
+    }
+
+    private void patch(int position, int value, int size) {
+      for (int i = size - 1; i >= 0; i--) {
+        mBytes[position + i] = (byte) value;
+        value >>= 8;
+      }
+    }
+  }
+
+  /**
+   * @return the number of local variable slots taken by the arguments of a
+   *         method descriptor, not counting this
+   */
+  static int argumentSlots(String descriptor) {
+    int slots = 0;
+    int i = 1;
+    while (descriptor.charAt(i) != ')') {
+      char c = descriptor.charAt(i);
+      while (c == '[') {
+        c = descriptor.charAt(++i);
+        if (c != '[') {
+          // an array is one slot whatever its element type
+          c = 'A';
+        }
+      }
+      if (descriptor.charAt(i) == 'L') {
+        i = descriptor.indexOf(';', i);
+      }
+      slots += (c == 'J' || c == 'D') ? 2 : 1;
+      i++;
+    }
+    return slots;
+  }
+}
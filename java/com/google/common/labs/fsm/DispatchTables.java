@@ -0,0 +1,102 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import com.google.common.labs.fsm.ScxmlDoc.State;
+import com.google.common.labs.fsm.ScxmlDoc.Transition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The DispatchTables hold the dense transition tables of an {@link ScxmlDoc},
+ * as used by table dispatch. Cells are indexed by
+ * stateIndex * eventCount + eventIndex.
+ *
+ * A cell of the next-state table holds the index of the target state, or
+ * UNHANDLED, TERMINAL or UNKNOWN_STATE. Transitions of the base state are
+ * folded into every row that does not handle the event itself. The
+ * action-index table holds the offset of the transition's run of actions in
+ * the actions table, where each run is terminated by -1 and offset 0 is the
+ * empty run. The transition table holds the index of the transition of each
+ * handled cell, as given by {@link Transition#getIndex()}, and -1 for the
+ * other cells.
+ */
+class DispatchTables {
+
+  static final int UNHANDLED = -1;
+  static final int TERMINAL = -2;
+  static final int UNKNOWN_STATE = -3;
+
+  final int mStateCount;
+  final int mEventCount;
+  final int[] mNextState;
+  final int[] mActionIndex;
+  final int[] mActions;
+  final int[] mTransition;
+
+  DispatchTables(ScxmlDoc doc) {
+    State base = doc.getBaseState();
+    mStateCount = doc.getStates().size();
+    mEventCount = doc.getEventSet().size();
+    mNextState = new int[mStateCount * mEventCount];
+    mActionIndex = new int[mNextState.length];
+    mTransition = new int[mNextState.length];
+    Arrays.fill(mNextState, UNHANDLED);
+    Arrays.fill(mTransition, -1);
+
+    List<Integer> actionRuns = new ArrayList<Integer>();
+    actionRuns.add(-1);
+    Map<Transition, Integer> runOffsets = new HashMap<Transition, Integer>();
+    for (State state : doc.getStates()) {
+      int row = doc.getStateIndex(state.mId) * mEventCount;
+      if (base == state) {
+        Arrays.fill(mNextState, row, row + mEventCount, UNKNOWN_STATE);
+        continue;
+      }
+      if (state.mTransitions.size() == 0) {
+        Arrays.fill(mNextState, row, row + mEventCount, TERMINAL);
+        continue;
+      }
+      Map<String, Transition> handled = new HashMap<String, Transition>();
+      if (base != null) {
+        for (Transition transition : base.mTransitions) {
+          handled.put(transition.mEvent, transition);
+        }
+      }
+      for (Transition transition : state.mTransitions) {
+        handled.put(transition.mEvent, transition);
+      }
+      for (String event : doc.getEventSet()) {
+        Transition transition = handled.get(event);
+        if (transition == null) {
+          continue;
+        }
+        int cell = row + doc.getEventIndex(event);
+        mNextState[cell] = doc.getStateIndex(transition.mTarget);
+        mTransition[cell] = transition.mIndex;
+        if (transition.mActions.isEmpty()) {
+          continue;
+        }
+        Integer offset = runOffsets.get(transition);
+        if (offset == null) {
+          offset = actionRuns.size();
+          runOffsets.put(transition, offset);
+          for (String action : transition.mActions) {
+            actionRuns.add(doc.getActionIndex(action));
+          }
+          actionRuns.add(-1);
+        }
+        mActionIndex[cell] = offset;
+      }
+    }
+
+    mActions = new int[actionRuns.size()];
+    for (int i = 0; i < mActions.length; i++) {
+      mActions[i] = actionRuns.get(i);
+    }
+  }
+}
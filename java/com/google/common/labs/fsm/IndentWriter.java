@@ -0,0 +1,82 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * The IndentWriter writes the lines of generated source for the translators,
+ * each indented by a number of four space tabs. Indentation prefixes are
+ * built once, and lines go through a buffer rather than one stream call each.
+ *
+ * Like PrintWriter, it does not throw while writing; the first error is kept
+ * and thrown by {@link #flush()}, so translators need not declare
+ * IOException on every method that emits a line.
+ */
+class IndentWriter {
+
+  private static final String TAB = "    ";
+  private static final String[] INDENTS = new String[16];
+  static {
+    INDENTS[0] = "";
+    for (int i = 1; i < INDENTS.length; i++) {
+      INDENTS[i] = INDENTS[i - 1] + TAB;
+    }
+  }
+
+  private final Writer mWriter;
+  private IOException mError;
+
+  /**
+   * @param writer destination of the lines, which is flushed but never closed
+   */
+  IndentWriter(Writer writer) {
+    if (writer instanceof BufferedWriter || writer instanceof StringWriter) {
+      mWriter = writer;
+    } else {
+      mWriter = new BufferedWriter(writer);
+    }
+  }
+
+  private static String indent(int tabs) {
+    if (tabs < INDENTS.length) {
+      return INDENTS[tabs];
+    }
+    StringBuilder sb = new StringBuilder(INDENTS[INDENTS.length - 1]);
+    for (int i = INDENTS.length - 1; i < tabs; i++) {
+      sb.append(TAB);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Write s, indented by the given number of tabs, followed by a newline
+   */
+  void line(int tabs, String s) {
+    if (mError != null) {
+      return;
+    }
+    try {
+      mWriter.write(indent(tabs));
+      mWriter.write(s);
+      mWriter.write('\n');
+    } catch (IOException e) {
+      mError = e;
+    }
+  }
+
+  /**
+   * Flush buffered lines to the destination
+   *
+   * @throws IOException the first error that occurred while writing
+   */
+  void flush() throws IOException {
+    if (mError != null) {
+      throw mError;
+    }
+    mWriter.flush();
+  }
+}
@@ -0,0 +1,30 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import java.util.Map;
+
+/**
+ * Defines the classes of one generated machine, including its nested classes,
+ * from class files held in memory
+ */
+class MemoryClassLoader extends ClassLoader {
+  private final Map<String, byte[]> mClassFiles;
+
+  /**
+   * @param classFiles class file bytes by binary class name
+   */
+  MemoryClassLoader(ClassLoader parent, Map<String, byte[]> classFiles) {
+    super(parent);
+    mClassFiles = classFiles;
+  }
+
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    byte[] bytes = mClassFiles.get(name);
+    if (bytes == null) {
+      throw new ClassNotFoundException(name);
+    }
+    return defineClass(name, bytes, 0, bytes.length);
+  }
+}
@@ -0,0 +1,908 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import static com.google.common.labs.fsm.ClassFileWriter.AALOAD;
+import static com.google.common.labs.fsm.ClassFileWriter.AASTORE;
+import static com.google.common.labs.fsm.ClassFileWriter.ACC_ABSTRACT;
+import static com.google.common.labs.fsm.ClassFileWriter.ACC_ENUM;
+import static com.google.common.labs.fsm.ClassFileWriter.ACC_FINAL;
+import static com.google.common.labs.fsm.ClassFileWriter.ACC_INTERFACE;
+import static com.google.common.labs.fsm.ClassFileWriter.ACC_PRIVATE;
+import static com.google.common.labs.fsm.ClassFileWriter.ACC_PROTECTED;
+import static com.google.common.labs.fsm.ClassFileWriter.ACC_PUBLIC;
+import static com.google.common.labs.fsm.ClassFileWriter.ACC_STATIC;
+import static com.google.common.labs.fsm.ClassFileWriter.ACC_SUPER;
+import static com.google.common.labs.fsm.ClassFileWriter.ACC_SYNTHETIC;
+import static com.google.common.labs.fsm.ClassFileWriter.ACONST_NULL;
+import static com.google.common.labs.fsm.ClassFileWriter.ALOAD;
+import static com.google.common.labs.fsm.ClassFileWriter.ANEWARRAY;
+import static com.google.common.labs.fsm.ClassFileWriter.ARETURN;
+import static com.google.common.labs.fsm.ClassFileWriter.ARRAYLENGTH;
+import static com.google.common.labs.fsm.ClassFileWriter.ATHROW;
+import static com.google.common.labs.fsm.ClassFileWriter.CHECKCAST;
+import static com.google.common.labs.fsm.ClassFileWriter.DUP;
+import static com.google.common.labs.fsm.ClassFileWriter.GETFIELD;
+import static com.google.common.labs.fsm.ClassFileWriter.GETSTATIC;
+import static com.google.common.labs.fsm.ClassFileWriter.GOTO;
+import static com.google.common.labs.fsm.ClassFileWriter.I2B;
+import static com.google.common.labs.fsm.ClassFileWriter.I2S;
+import static com.google.common.labs.fsm.ClassFileWriter.IADD;
+import static com.google.common.labs.fsm.ClassFileWriter.IALOAD;
+import static com.google.common.labs.fsm.ClassFileWriter.IASTORE;
+import static com.google.common.labs.fsm.ClassFileWriter.IFEQ;
+import static com.google.common.labs.fsm.ClassFileWriter.IFGE;
+import static com.google.common.labs.fsm.ClassFileWriter.IFLT;
+import static com.google.common.labs.fsm.ClassFileWriter.IFNE;
+import static com.google.common.labs.fsm.ClassFileWriter.IF_ICMPEQ;
+import static com.google.common.labs.fsm.ClassFileWriter.IF_ICMPGE;
+import static com.google.common.labs.fsm.ClassFileWriter.IF_ICMPLT;
+import static com.google.common.labs.fsm.ClassFileWriter.IF_ICMPNE;
+import static com.google.common.labs.fsm.ClassFileWriter.ILOAD;
+import static com.google.common.labs.fsm.ClassFileWriter.IMUL;
+import static com.google.common.labs.fsm.ClassFileWriter.INVOKESPECIAL;
+import static com.google.common.labs.fsm.ClassFileWriter.INVOKESTATIC;
+import static com.google.common.labs.fsm.ClassFileWriter.INVOKEVIRTUAL;
+import static com.google.common.labs.fsm.ClassFileWriter.IRETURN;
+import static com.google.common.labs.fsm.ClassFileWriter.ISTORE;
+import static com.google.common.labs.fsm.ClassFileWriter.ISUB;
+import static com.google.common.labs.fsm.ClassFileWriter.NEW;
+import static com.google.common.labs.fsm.ClassFileWriter.POP;
+import static com.google.common.labs.fsm.ClassFileWriter.PUTFIELD;
+import static com.google.common.labs.fsm.ClassFileWriter.PUTSTATIC;
+import static com.google.common.labs.fsm.ClassFileWriter.RETURN;
+import static com.google.common.labs.fsm.ClassFileWriter.SWAP;
+
+import com.google.common.labs.fsm.ClassFileWriter.Code;
+import com.google.common.labs.fsm.ClassFileWriter.Label;
+import com.google.common.labs.fsm.ScxmlDoc.Concurrency;
+import com.google.common.labs.fsm.ScxmlDoc.State;
+import com.google.common.labs.fsm.ScxmlDoc.Unhandled;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Scxml2Bytecode produces the class files of an abstract base class of a
+ * finite state machine described by an @{link ScxmlDoc} object, without going
+ * through Java source and javac. The classes have the same contract as those
+ * from {@link Scxml2Java}: the Event, State and Action enums, StateException,
+ * EventException and DebugLogger, start(), pushEvent(), pushEvents(),
+ * isInTerminalState(), snapshot(), restore(), and the abstract onStateChange()
+ * and onAction*() methods. Transitions are always dispatched through tables.
+ *
+ * Documents that ask for debug logging, atomic concurrency, a mailbox, a
+ * fleet, or the throw or callback unhandled-event policies are rejected; use
+ * {@link Scxml2Java} for those.
+ */
+public class Scxml2Bytecode {
+
+  private static final String OBJECT = "java/lang/Object";
+  private static final String STRING = "java/lang/String";
+  private static final String STRING_BUILDER = "java/lang/StringBuilder";
+  // NEXT_STATE holds values down to UNKNOWN_STATE, ACTIONS down to -1; both
+  // are stored in string constants as chars offset to be non-negative
+  private static final int NEXT_STATE_BIAS = 3;
+  private static final int ACTIONS_BIAS = 1;
+  // chars per string constant, which must fit 65535 bytes of modified UTF-8
+  private static final int CHUNK = 16384;
+
+  private final ScxmlDoc mDoc;
+  private final String mClass;
+  private final String mEvent;
+  private final String mState;
+  private final String mAction;
+  private final String mStateException;
+  private final String mEventException;
+  private final String mDebugLogger;
+
+  private Scxml2Bytecode(ScxmlDoc doc) {
+    mDoc = doc;
+    String name = doc.getPackageName() == null
+        ? doc.getClassName() : doc.getPackageName() + "." + doc.getClassName();
+    mClass = name.replace('.', '/');
+    mEvent = mClass + "$Event";
+    mState = mClass + "$State";
+    mAction = mClass + "$Action";
+    mStateException = mClass + "$StateException";
+    mEventException = mClass + "$EventException";
+    mDebugLogger = mClass + "$DebugLogger";
+  }
+
+  /**
+   * @throws IllegalArgumentException if the document uses an option this
+   *         backend does not generate
+   */
+  public static Scxml2Bytecode translatorForScxml(ScxmlDoc doc) {
+    List<String> unsupported = new ArrayList<String>();
+    if (doc.getDebugFlag()) {
+      unsupported.add("debug");
+    }
+    if (doc.getConcurrency() != Concurrency.NONE) {
+      unsupported.add("concurrency");
+    }
+    if (doc.getMailboxCapacity() > 0) {
+      unsupported.add("mailbox");
+    }
+    if (doc.getFleetFlag()) {
+      unsupported.add("fleet");
+    }
+    if (doc.getMetricsFlag()) {
+      unsupported.add("metrics");
+    }
+    if (doc.getUnhandled() == Unhandled.THROW || doc.getUnhandled() == Unhandled.CALLBACK) {
+      unsupported.add("unhandled");
+    }
+    if (!unsupported.isEmpty()) {
+      throw new IllegalArgumentException(
+          "Scxml2Bytecode does not support the attributes " + unsupported);
+    }
+    return new Scxml2Bytecode(doc);
+  }
+
+  /**
+   * @return the binary name of the generated abstract class
+   */
+  public String getClassName() {
+    return mClass.replace('/', '.');
+  }
+
+  /**
+   * @return the class files of the machine and its nested classes, keyed by
+   *         binary class name
+   */
+  public Map<String, byte[]> outputClasses() {
+    Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+    classes.put(getClassName(), outputMachineClass());
+    classes.put(binaryName(mEvent), outputEnum(mEvent, "Event", mDoc.getEventSet()));
+    classes.put(binaryName(mState), outputEnum(mState, "State", mDoc.mDeclaredStateNames));
+    classes.put(binaryName(mAction), outputEnum(mAction, "Action", mDoc.getActionSet()));
+    classes.put(binaryName(mStateException), outputException(mStateException, "StateException"));
+    classes.put(binaryName(mEventException), outputException(mEventException, "EventException"));
+    classes.put(binaryName(mDebugLogger), outputDebugLogger());
+    return classes;
+  }
+
+  /**
+   * Define the generated classes in a new class loader
+   *
+   * @param parent the class loader the new loader delegates to
+   * @return the generated abstract class
+   */
+  public Class<?> load(ClassLoader parent) {
+    try {
+      return new MemoryClassLoader(parent, outputClasses()).loadClass(getClassName());
+    } catch (ClassNotFoundException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String binaryName(String internalName) {
+    return internalName.replace('/', '.');
+  }
+
+  private static String desc(String internalName) {
+    return "L" + internalName + ";";
+  }
+
+  private void nestedIn(ClassFileWriter cw, String inner, String simpleName, int access) {
+    cw.innerClass(inner, mClass, simpleName, access);
+  }
+
+  private byte[] outputEnum(String name, String simpleName, Collection<String> constants) {
+    int access = ACC_PUBLIC | ACC_STATIC | ACC_FINAL | ACC_ENUM;
+    ClassFileWriter cw =
+        new ClassFileWriter(ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_ENUM, name, "java/lang/Enum");
+    nestedIn(cw, name, simpleName, access);
+    String array = "[" + desc(name);
+    for (String constant : constants) {
+      cw.field(access, constant, desc(name), null);
+    }
+    cw.field(ACC_PRIVATE | ACC_STATIC | ACC_FINAL | ACC_SYNTHETIC, "$VALUES", array, null);
+
+    Code values = cw.method(ACC_PUBLIC | ACC_STATIC, "values", "()" + array);
+    values.field(GETSTATIC, name, "$VALUES", array)
+        .invoke(INVOKEVIRTUAL, array, "clone", "()Ljava/lang/Object;")
+        .type(CHECKCAST, array)
+        .op(ARETURN)
+        .end(0);
+
+    Code valueOf =
+        cw.method(ACC_PUBLIC | ACC_STATIC, "valueOf", "(Ljava/lang/String;)" + desc(name));
+    valueOf.ldcClass(name)
+        .local(ALOAD, 0)
+        .invoke(INVOKESTATIC, "java/lang/Enum", "valueOf",
+            "(Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Enum;")
+        .type(CHECKCAST, name)
+        .op(ARETURN)
+        .end(1);
+
+    Code init = cw.method(ACC_PRIVATE, "<init>", "(Ljava/lang/String;I)V");
+    init.local(ALOAD, 0)
+        .local(ALOAD, 1)
+        .local(ILOAD, 2)
+        .invoke(INVOKESPECIAL, "java/lang/Enum", "<init>", "(Ljava/lang/String;I)V")
+        .op(RETURN)
+        .end(3);
+
+    Code clinit = cw.method(ACC_STATIC, "<clinit>", "()V");
+    int ordinal = 0;
+    for (String constant : constants) {
+      clinit.type(NEW, name)
+          .op(DUP)
+          .ldcString(constant)
+          .iconst(ordinal++)
+          .invoke(INVOKESPECIAL, name, "<init>", "(Ljava/lang/String;I)V")
+          .field(PUTSTATIC, name, constant, desc(name));
+    }
+    clinit.iconst(constants.size()).type(ANEWARRAY, name);
+    ordinal = 0;
+    for (String constant : constants) {
+      clinit.op(DUP)
+          .iconst(ordinal++)
+          .field(GETSTATIC, name, constant, desc(name))
+          .op(AASTORE);
+    }
+    clinit.field(PUTSTATIC, name, "$VALUES", array).op(RETURN).end(0);
+    return cw.toByteArray();
+  }
+
+  private byte[] outputException(String name, String simpleName) {
+    ClassFileWriter cw =
+        new ClassFileWriter(ACC_PUBLIC | ACC_SUPER, name, "java/lang/RuntimeException");
+    nestedIn(cw, name, simpleName, ACC_PUBLIC | ACC_STATIC);
+    Code init = cw.method(ACC_PUBLIC, "<init>", "(Ljava/lang/String;)V");
+    init.local(ALOAD, 0)
+        .local(ALOAD, 1)
+        .invoke(INVOKESPECIAL, "java/lang/RuntimeException", "<init>", "(Ljava/lang/String;)V")
+        .op(RETURN)
+        .end(2);
+    return cw.toByteArray();
+  }
+
+  private byte[] outputDebugLogger() {
+    int access = ACC_PUBLIC | ACC_STATIC | ACC_INTERFACE | ACC_ABSTRACT;
+    ClassFileWriter cw = new ClassFileWriter(
+        ACC_PUBLIC | ACC_INTERFACE | ACC_ABSTRACT, mDebugLogger, OBJECT);
+    nestedIn(cw, mDebugLogger, "DebugLogger", access);
+    cw.abstractMethod(ACC_PUBLIC, "onState", "(" + desc(mState) + ")V");
+    cw.abstractMethod(ACC_PUBLIC, "onAction", "(" + desc(mAction) + ")V");
+    cw.abstractMethod(ACC_PUBLIC, "onEvent", "(" + desc(mEvent) + ")V");
+    return cw.toByteArray();
+  }
+
+  private byte[] outputMachineClass() {
+    ClassFileWriter cw =
+        new ClassFileWriter(ACC_PUBLIC | ACC_SUPER | ACC_ABSTRACT, mClass, OBJECT);
+    int enumAccess = ACC_PUBLIC | ACC_STATIC | ACC_FINAL | ACC_ENUM;
+    nestedIn(cw, mEvent, "Event", enumAccess);
+    nestedIn(cw, mState, "State", enumAccess);
+    nestedIn(cw, mAction, "Action", enumAccess);
+    nestedIn(cw, mStateException, "StateException", ACC_PUBLIC | ACC_STATIC);
+    nestedIn(cw, mEventException, "EventException", ACC_PUBLIC | ACC_STATIC);
+    nestedIn(cw, mDebugLogger, "DebugLogger",
+        ACC_PUBLIC | ACC_STATIC | ACC_INTERFACE | ACC_ABSTRACT);
+
+    DispatchTables tables = new DispatchTables(mDoc);
+    int constant = ACC_STATIC | ACC_FINAL;
+    cw.field(ACC_PUBLIC | constant, "EVENT_COUNT", "I", tables.mEventCount);
+    cw.field(ACC_PUBLIC | constant, "STATE_COUNT", "I", tables.mStateCount);
+    cw.field(ACC_PUBLIC | constant, "STATE_BYTES", "I", snapshotStateBytes());
+    cw.field(ACC_PRIVATE | constant, "NONE", "I", -1);
+    cw.field(ACC_PRIVATE | constant, "HANDLED", "I", 0);
+    cw.field(ACC_PRIVATE | constant, "UNHANDLED", "I", DispatchTables.UNHANDLED);
+    cw.field(ACC_PRIVATE | constant, "TERMINAL", "I", DispatchTables.TERMINAL);
+    cw.field(ACC_PRIVATE | constant, "UNKNOWN_STATE", "I", DispatchTables.UNKNOWN_STATE);
+    cw.field(ACC_PRIVATE | constant, "EVENTS", "[" + desc(mEvent), null);
+    cw.field(ACC_PRIVATE | constant, "STATES", "[" + desc(mState), null);
+    cw.field(ACC_PRIVATE | constant, "NEXT_STATE", "[I", null);
+    cw.field(ACC_PRIVATE | constant, "ACTION_INDEX", "[I", null);
+    cw.field(ACC_PRIVATE | constant, "ACTIONS", "[I", null);
+    cw.field(ACC_PRIVATE, "mCurrentState", "I", null);
+    cw.field(ACC_PRIVATE, "mPushingEvent", "I", null);
+    cw.field(ACC_PRIVATE, "mDebugLogger", desc(mDebugLogger), null);
+
+    outputStaticInitializer(cw, tables);
+    outputFillTable(cw);
+    outputConstructor(cw);
+    outputGetters(cw);
+    outputStartMethods(cw);
+    outputPerformAction(cw);
+    outputDispatchEvent(cw);
+    outputPushEventMethods(cw);
+    outputPushEventsMethod(cw, "[" + desc(mEvent));
+    outputPushEventsMethod(cw, "[I");
+    outputIsInTerminalState(cw);
+    outputSnapshotMethods(cw);
+
+    Code setDebugLogger =
+        cw.method(ACC_PUBLIC, "setDebugLogger", "(" + desc(mDebugLogger) + ")V");
+    setDebugLogger.local(ALOAD, 0)
+        .local(ALOAD, 1)
+        .field(PUTFIELD, mClass, "mDebugLogger", desc(mDebugLogger))
+        .op(RETURN)
+        .end(2);
+
+    Code transitionToState = cw.method(ACC_PRIVATE, "transitionToState", "(I)V");
+    transitionToState.local(ALOAD, 0)
+        .local(ILOAD, 1)
+        .field(PUTFIELD, mClass, "mCurrentState", "I")
+        .local(ALOAD, 0)
+        .field(GETSTATIC, mClass, "STATES", "[" + desc(mState))
+        .local(ILOAD, 1)
+        .op(AALOAD)
+        .invoke(INVOKEVIRTUAL, mClass, "onStateChange", "(" + desc(mState) + ")V")
+        .op(RETURN)
+        .end(2);
+
+    cw.abstractMethod(ACC_PROTECTED, "onStateChange", "(" + desc(mState) + ")V");
+    for (String action : mDoc.getActionSet()) {
+      cw.abstractMethod(ACC_PROTECTED, "onAction" + action, "()V");
+    }
+    return cw.toByteArray();
+  }
+
+  /**
+   * The dispatch tables are stored as string constants, a char per cell, and
+   * decoded by fillTable() so that the initializer stays small for any size
+   * of machine.
+   */
+  private void outputStaticInitializer(ClassFileWriter cw, DispatchTables tables) {
+    Code clinit = cw.method(ACC_STATIC, "<clinit>", "()V");
+    clinit.invoke(INVOKESTATIC, mEvent, "values", "()[" + desc(mEvent))
+        .field(PUTSTATIC, mClass, "EVENTS", "[" + desc(mEvent))
+        .invoke(INVOKESTATIC, mState, "values", "()[" + desc(mState))
+        .field(PUTSTATIC, mClass, "STATES", "[" + desc(mState));
+    outputTable(clinit, "NEXT_STATE", tables.mNextState, NEXT_STATE_BIAS);
+    outputTable(clinit, "ACTION_INDEX", tables.mActionIndex, 0);
+    outputTable(clinit, "ACTIONS", tables.mActions, ACTIONS_BIAS);
+    clinit.op(RETURN).end(0);
+  }
+
+  private void outputTable(Code clinit, String name, int[] values, int bias) {
+    clinit.iconst(values.length).newIntArray().field(PUTSTATIC, mClass, name, "[I");
+    for (int offset = 0; offset < values.length; offset += CHUNK) {
+      int end = Math.min(values.length, offset + CHUNK);
+      StringBuilder chunk = new StringBuilder(end - offset);
+      for (int i = offset; i < end; i++) {
+        int c = values[i] + bias;
+        if (c < 0 || c > Character.MAX_VALUE) {
+          throw new IllegalArgumentException(name + " value " + values[i] + " is out of range");
+        }
+        chunk.append((char) c);
+      }
+      clinit.field(GETSTATIC, mClass, name, "[I")
+          .iconst(offset)
+          .ldcString(chunk.toString())
+          .iconst(bias)
+          .invoke(INVOKESTATIC, mClass, "fillTable", "([IILjava/lang/String;I)V");
+    }
+  }
+
+  /**
+   * private static void fillTable(int[] table, int offset, String chars, int bias) {
+   *   for (int i = 0; i < chars.length(); i++) {
+   *     table[offset + i] = chars.charAt(i) - bias;
+   *   }
+   * }
+   */
+  private void outputFillTable(ClassFileWriter cw) {
+    Code code = cw.method(ACC_PRIVATE | ACC_STATIC, "fillTable", "([IILjava/lang/String;I)V");
+    Label loop = code.label();
+    Label done = code.label();
+    code.iconst(0)
+        .local(ISTORE, 4)
+        .mark(loop)
+        .local(ILOAD, 4)
+        .local(ALOAD, 2)
+        .invoke(INVOKEVIRTUAL, STRING, "length", "()I")
+        .jump(IF_ICMPGE, done)
+        .local(ALOAD, 0)
+        .local(ILOAD, 1)
+        .local(ILOAD, 4)
+        .op(IADD)
+        .local(ALOAD, 2)
+        .local(ILOAD, 4)
+        .invoke(INVOKEVIRTUAL, STRING, "charAt", "(I)C")
+        .local(ILOAD, 3)
+        .op(ISUB)
+        .op(IASTORE)
+        .iinc(4, 1)
+        .jump(GOTO, loop)
+        .mark(done)
+        .op(RETURN)
+        .end(5);
+  }
+
+  private void outputConstructor(ClassFileWriter cw) {
+    Code init = cw.method(ACC_PUBLIC, "<init>", "()V");
+    init.local(ALOAD, 0)
+        .invoke(INVOKESPECIAL, OBJECT, "<init>", "()V")
+        .local(ALOAD, 0)
+        .iconst(-1)
+        .field(PUTFIELD, mClass, "mCurrentState", "I")
+        .local(ALOAD, 0)
+        .iconst(-1)
+        .field(PUTFIELD, mClass, "mPushingEvent", "I")
+        .op(RETURN)
+        .end(1);
+  }
+
+  private void outputGetters(ClassFileWriter cw) {
+    Code getCurrentState = cw.method(ACC_PUBLIC, "getCurrentState", "()" + desc(mState));
+    Label started = getCurrentState.label();
+    getCurrentState.local(ALOAD, 0)
+        .field(GETFIELD, mClass, "mCurrentState", "I")
+        .iconst(-1)
+        .jump(IF_ICMPNE, started)
+        .op(ACONST_NULL)
+        .op(ARETURN)
+        .mark(started)
+        .field(GETSTATIC, mClass, "STATES", "[" + desc(mState))
+        .local(ALOAD, 0)
+        .field(GETFIELD, mClass, "mCurrentState", "I")
+        .op(AALOAD)
+        .op(ARETURN)
+        .end(1);
+
+    Code getOrdinal = cw.method(ACC_PUBLIC, "getCurrentStateOrdinal", "()I");
+    getOrdinal.local(ALOAD, 0)
+        .field(GETFIELD, mClass, "mCurrentState", "I")
+        .op(IRETURN)
+        .end(1);
+  }
+
+  private void outputStartMethods(ClassFileWriter cw) {
+    Code start = cw.method(ACC_PUBLIC, "start", "()V");
+    start.local(ALOAD, 0)
+        .field(GETSTATIC, mState, mDoc.getInitialStateName(), desc(mState))
+        .invoke(INVOKEVIRTUAL, mClass, "start", "(" + desc(mState) + ")V")
+        .op(RETURN)
+        .end(1);
+
+    Code startState = cw.method(ACC_PUBLIC, "start", "(" + desc(mState) + ")V");
+    Label notStarted = startState.label();
+    startState.local(ALOAD, 0)
+        .field(GETFIELD, mClass, "mCurrentState", "I")
+        .jump(IFLT, notStarted);
+    throwNew(startState, mStateException, "FSM already started.");
+    startState.mark(notStarted)
+        .local(ALOAD, 0)
+        .local(ALOAD, 1)
+        .invoke(INVOKEVIRTUAL, mState, "ordinal", "()I")
+        .invoke(INVOKESPECIAL, mClass, "transitionToState", "(I)V")
+        .op(RETURN)
+        .end(2);
+  }
+
+  private void outputPerformAction(ClassFileWriter cw) {
+    Code code = cw.method(ACC_PRIVATE, "performAction", "(I)V");
+    List<String> actions = new ArrayList<String>(mDoc.getActionSet());
+    if (actions.isEmpty()) {
+      code.op(RETURN).end(2);
+      return;
+    }
+    Label done = code.label();
+    Label[] cases = new Label[actions.size()];
+    for (int i = 0; i < cases.length; i++) {
+      cases[i] = code.label();
+    }
+    code.local(ILOAD, 1).tableSwitch(0, done, cases);
+    for (int i = 0; i < cases.length; i++) {
+      code.mark(cases[i])
+          .local(ALOAD, 0)
+          .invoke(INVOKEVIRTUAL, mClass, "onAction" + actions.get(i), "()V")
+          .jump(GOTO, done);
+    }
+    code.mark(done).op(RETURN).end(2);
+  }
+
+  /**
+   * private int dispatchEvent(int current, int event), as generated by
+   * Scxml2Java for table dispatch
+   */
+  private void outputDispatchEvent(ClassFileWriter cw) {
+    final int current = 1;
+    final int event = 2;
+    final int cell = 3;
+    final int nextState = 4;
+    final int i = 5;
+    Code code = cw.method(ACC_PRIVATE, "dispatchEvent", "(II)I");
+    Label started = code.label();
+    Label handled = code.label();
+    Label loop = code.label();
+    Label done = code.label();
+    code.local(ILOAD, current)
+        .iconst(-1)
+        .jump(IF_ICMPNE, started)
+        .iconst(DispatchTables.UNKNOWN_STATE)
+        .op(IRETURN)
+        .mark(started)
+        .local(ILOAD, current)
+        .iconst(mDoc.getEventSet().size())
+        .op(IMUL)
+        .local(ILOAD, event)
+        .op(IADD)
+        .local(ISTORE, cell)
+        .field(GETSTATIC, mClass, "NEXT_STATE", "[I")
+        .local(ILOAD, cell)
+        .op(IALOAD)
+        .local(ISTORE, nextState)
+        .local(ILOAD, nextState)
+        .jump(IFGE, handled)
+        .local(ILOAD, nextState)
+        .op(IRETURN)
+        .mark(handled)
+        .field(GETSTATIC, mClass, "ACTION_INDEX", "[I")
+        .local(ILOAD, cell)
+        .op(IALOAD)
+        .local(ISTORE, i)
+        .mark(loop)
+        .field(GETSTATIC, mClass, "ACTIONS", "[I")
+        .local(ILOAD, i)
+        .op(IALOAD)
+        .jump(IFLT, done)
+        .local(ALOAD, 0)
+        .field(GETSTATIC, mClass, "ACTIONS", "[I")
+        .local(ILOAD, i)
+        .op(IALOAD)
+        .invoke(INVOKESPECIAL, mClass, "performAction", "(I)V")
+        .iinc(i, 1)
+        .jump(GOTO, loop)
+        .mark(done)
+        .local(ALOAD, 0)
+        .local(ILOAD, nextState)
+        .invoke(INVOKESPECIAL, mClass, "transitionToState", "(I)V")
+        .iconst(0)
+        .op(IRETURN)
+        .end(6);
+  }
+
+  private void outputPushEventMethods(ClassFileWriter cw) {
+    int access = ACC_PUBLIC | ACC_FINAL;
+    Code pushEnum = cw.method(access, "pushEvent", "(" + desc(mEvent) + ")Z");
+    pushEnum.local(ALOAD, 0)
+        .local(ALOAD, 1)
+        .invoke(INVOKEVIRTUAL, mEvent, "ordinal", "()I")
+        .invoke(INVOKEVIRTUAL, mClass, "pushEvent", "(I)Z")
+        .op(IRETURN)
+        .end(2);
+
+    final int event = 1;
+    final int current = 2;
+    final int result = 3;
+    Code code = cw.method(access, "pushEvent", "(I)Z");
+    Label unknown = code.label();
+    Label known = code.label();
+    Label notPushing = code.label();
+    Label notHandled = code.label();
+    Label notTerminal = code.label();
+    Label unhandled = code.label();
+    code.local(ILOAD, event)
+        .jump(IFLT, unknown)
+        .local(ILOAD, event)
+        .iconst(mDoc.getEventSet().size())
+        .jump(IF_ICMPLT, known)
+        .mark(unknown);
+    beginThrow(code, mEventException, "Unknown Event: ");
+    code.local(ILOAD, event);
+    append(code, "I");
+    endThrow(code, mEventException);
+
+    code.mark(known)
+        .local(ALOAD, 0)
+        .field(GETFIELD, mClass, "mPushingEvent", "I")
+        .iconst(-1)
+        .jump(IF_ICMPEQ, notPushing);
+    beginThrow(code, mStateException, "pushEvent(");
+    appendEnum(code, "EVENTS", mEvent, event);
+    appendString(code, ") called during push of ");
+    code.local(ALOAD, 0).field(GETFIELD, mClass, "mPushingEvent", "I");
+    appendEnumAtIndex(code, "EVENTS", mEvent);
+    endThrow(code, mStateException);
+
+    code.mark(notPushing)
+        .local(ALOAD, 0)
+        .local(ILOAD, event)
+        .field(PUTFIELD, mClass, "mPushingEvent", "I")
+        .local(ALOAD, 0)
+        .field(GETFIELD, mClass, "mCurrentState", "I")
+        .local(ISTORE, current)
+        .local(ALOAD, 0)
+        .local(ILOAD, current)
+        .local(ILOAD, event)
+        .invoke(INVOKESPECIAL, mClass, "dispatchEvent", "(II)I")
+        .local(ISTORE, result)
+        .local(ALOAD, 0)
+        .iconst(-1)
+        .field(PUTFIELD, mClass, "mPushingEvent", "I")
+        .local(ILOAD, result)
+        .jump(IFNE, notHandled)
+        .iconst(1)
+        .op(IRETURN)
+        .mark(notHandled)
+        .local(ILOAD, result)
+        .iconst(DispatchTables.TERMINAL)
+        .jump(IF_ICMPNE, notTerminal)
+        .iconst(0)
+        .op(IRETURN)
+        .mark(notTerminal)
+        .local(ILOAD, result)
+        .iconst(DispatchTables.UNKNOWN_STATE)
+        .jump(IF_ICMPNE, unhandled);
+    beginThrow(code, mEventException, "Unknown Event: ");
+    code.local(ALOAD, 0).invoke(INVOKEVIRTUAL, mClass, "getCurrentState", "()" + desc(mState));
+    append(code, "Ljava/lang/Object;");
+    endThrow(code, mEventException);
+
+    code.mark(unhandled);
+    switch (mDoc.getUnhandled()) {
+      case RETURN_FALSE:
+        code.iconst(0).op(IRETURN);
+        break;
+      case IGNORE:
+        code.iconst(1).op(IRETURN);
+        break;
+      default:
+        beginThrow(code, mStateException, "State.");
+        appendEnum(code, "STATES", mState, current);
+        appendString(code, " does not handle Event.");
+        appendEnum(code, "EVENTS", mEvent, event);
+        endThrow(code, mStateException);
+    }
+    code.end(4);
+  }
+
+  /**
+   * public final int pushEvents(Event[] or int[] events, int from, int to), as
+   * generated by Scxml2Java without debug logging
+   */
+  private void outputPushEventsMethod(ClassFileWriter cw, String eventsType) {
+    final int events = 1;
+    final int from = 2;
+    final int to = 3;
+    final int i = 4;
+    final int event = 5;
+    final int result = 6;
+    Code code = cw.method(ACC_PUBLIC | ACC_FINAL, "pushEvents", "(" + eventsType + "II)I");
+    Label notPushing = code.label();
+    Label loop = code.label();
+    Label next = code.label();
+    Label done = code.label();
+    code.local(ALOAD, 0)
+        .field(GETFIELD, mClass, "mPushingEvent", "I")
+        .iconst(-1)
+        .jump(IF_ICMPEQ, notPushing);
+    beginThrow(code, mStateException, "pushEvents() called during push of ");
+    code.local(ALOAD, 0).field(GETFIELD, mClass, "mPushingEvent", "I");
+    appendEnumAtIndex(code, "EVENTS", mEvent);
+    endThrow(code, mStateException);
+
+    code.mark(notPushing)
+        .local(ILOAD, from)
+        .local(ISTORE, i)
+        .mark(loop)
+        .local(ILOAD, i)
+        .local(ILOAD, to)
+        .jump(IF_ICMPGE, done);
+    if (eventsType.equals("[I")) {
+      code.local(ALOAD, events)
+          .local(ILOAD, i)
+          .op(IALOAD)
+          .local(ISTORE, event)
+          .local(ILOAD, event)
+          .jump(IFLT, done)
+          .local(ILOAD, event)
+          .iconst(mDoc.getEventSet().size())
+          .jump(IF_ICMPGE, done);
+    } else {
+      code.local(ALOAD, events)
+          .local(ILOAD, i)
+          .op(AALOAD)
+          .invoke(INVOKEVIRTUAL, mEvent, "ordinal", "()I")
+          .local(ISTORE, event);
+    }
+    code.local(ALOAD, 0)
+        .local(ILOAD, event)
+        .field(PUTFIELD, mClass, "mPushingEvent", "I")
+        .local(ALOAD, 0)
+        .local(ALOAD, 0)
+        .field(GETFIELD, mClass, "mCurrentState", "I")
+        .local(ILOAD, event)
+        .invoke(INVOKESPECIAL, mClass, "dispatchEvent", "(II)I")
+        .local(ISTORE, result)
+        .local(ILOAD, result)
+        .jump(IFEQ, next);
+    if (mDoc.getUnhandled() == Unhandled.IGNORE) {
+      code.local(ILOAD, result)
+          .iconst(DispatchTables.UNHANDLED)
+          .jump(IF_ICMPEQ, next);
+    }
+    code.jump(GOTO, done)
+        .mark(next)
+        .iinc(i, 1)
+        .jump(GOTO, loop)
+        .mark(done)
+        .local(ALOAD, 0)
+        .iconst(-1)
+        .field(PUTFIELD, mClass, "mPushingEvent", "I")
+        .local(ILOAD, i)
+        .op(IRETURN)
+        .end(7);
+  }
+
+  private void outputIsInTerminalState(ClassFileWriter cw) {
+    Code code = cw.method(ACC_PUBLIC, "isInTerminalState", "()Z");
+    for (State s : mDoc.getTerminalStates()) {
+      Label next = code.label();
+      code.local(ALOAD, 0)
+          .field(GETFIELD, mClass, "mCurrentState", "I")
+          .iconst(mDoc.getStateIndex(s.mId))
+          .jump(IF_ICMPNE, next)
+          .iconst(1)
+          .op(IRETURN)
+          .mark(next);
+    }
+    code.iconst(0).op(IRETURN).end(1);
+  }
+
+  /**
+   * @return the bytes of a state ordinal in a snapshot, which Scxml2Java makes
+   *         as wide as a state in the column of a Fleet
+   */
+  private int snapshotStateBytes() {
+    int states = mDoc.getStates().size();
+    return states <= Byte.MAX_VALUE ? 1 : states <= Short.MAX_VALUE ? 2 : 4;
+  }
+
+  /**
+   * public final void snapshot(ByteBuffer buffer), restore(ByteBuffer buffer),
+   * and their static variants for arrays of machines, as generated by
+   * Scxml2Java for a machine without a mailbox
+   */
+  private void outputSnapshotMethods(ClassFileWriter cw) {
+    String buffer = "java/nio/ByteBuffer";
+    String type = snapshotStateBytes() == 1 ? "B" : snapshotStateBytes() == 2 ? "S" : "I";
+    String accessor = snapshotStateBytes() == 1 ? "" : snapshotStateBytes() == 2 ? "Short" : "Int";
+
+    Code snapshot = cw.method(ACC_PUBLIC | ACC_FINAL, "snapshot", "(" + desc(buffer) + ")V");
+    outputSnapshotPushCheck(snapshot, "snapshot");
+    snapshot.local(ALOAD, 1)
+        .local(ALOAD, 0)
+        .field(GETFIELD, mClass, "mCurrentState", "I");
+    if (type.equals("B")) {
+      snapshot.op(I2B);
+    } else if (type.equals("S")) {
+      snapshot.op(I2S);
+    }
+    snapshot.invoke(INVOKEVIRTUAL, buffer, "put" + accessor, "(" + type + ")" + desc(buffer))
+        .op(POP)
+        .op(RETURN)
+        .end(2);
+
+    final int state = 2;
+    Code restore = cw.method(ACC_PUBLIC | ACC_FINAL, "restore", "(" + desc(buffer) + ")V");
+    Label unknown = restore.label();
+    Label known = restore.label();
+    outputSnapshotPushCheck(restore, "restore");
+    restore.local(ALOAD, 1)
+        .invoke(INVOKEVIRTUAL, buffer, "get" + accessor, "()" + type)
+        .local(ISTORE, state)
+        .local(ILOAD, state)
+        .iconst(-1)
+        .jump(IF_ICMPLT, unknown)
+        .local(ILOAD, state)
+        .iconst(mDoc.getStates().size())
+        .jump(IF_ICMPLT, known)
+        .mark(unknown);
+    beginThrow(restore, mStateException, "Unknown State: ");
+    restore.local(ILOAD, state);
+    append(restore, "I");
+    endThrow(restore, mStateException);
+    restore.mark(known)
+        .local(ALOAD, 0)
+        .local(ILOAD, state)
+        .field(PUTFIELD, mClass, "mCurrentState", "I")
+        .op(RETURN)
+        .end(3);
+
+    final int machines = 0;
+    final int i = 2;
+    for (String method : new String[] {"snapshot", "restore"}) {
+      Code code = cw.method(ACC_PUBLIC | ACC_STATIC, method,
+          "([" + desc(mClass) + desc(buffer) + ")V");
+      Label loop = code.label();
+      Label done = code.label();
+      code.iconst(0)
+          .local(ISTORE, i)
+          .mark(loop)
+          .local(ILOAD, i)
+          .local(ALOAD, machines)
+          .op(ARRAYLENGTH)
+          .jump(IF_ICMPGE, done)
+          .local(ALOAD, machines)
+          .local(ILOAD, i)
+          .op(AALOAD)
+          .local(ALOAD, 1)
+          .invoke(INVOKEVIRTUAL, mClass, method, "(" + desc(buffer) + ")V")
+          .iinc(i, 1)
+          .jump(GOTO, loop)
+          .mark(done)
+          .op(RETURN)
+          .end(3);
+    }
+  }
+
+  /**
+   * Throw StateException if the method is called while an event is pushed
+   */
+  private void outputSnapshotPushCheck(Code code, String method) {
+    Label notPushing = code.label();
+    code.local(ALOAD, 0)
+        .field(GETFIELD, mClass, "mPushingEvent", "I")
+        .iconst(-1)
+        .jump(IF_ICMPEQ, notPushing);
+    beginThrow(code, mStateException, method + "() called during push of ");
+    code.local(ALOAD, 0).field(GETFIELD, mClass, "mPushingEvent", "I");
+    appendEnumAtIndex(code, "EVENTS", mEvent);
+    endThrow(code, mStateException);
+    code.mark(notPushing);
+  }
+
+  private void throwNew(Code code, String exception, String message) {
+    code.type(NEW, exception)
+        .op(DUP)
+        .ldcString(message)
+        .invoke(INVOKESPECIAL, exception, "<init>", "(Ljava/lang/String;)V")
+        .op(ATHROW);
+  }
+
+  /**
+   * Push a new exception and a StringBuilder holding the start of its message
+   */
+  private void beginThrow(Code code, String exception, String message) {
+    code.type(NEW, exception)
+        .op(DUP)
+        .type(NEW, STRING_BUILDER)
+        .op(DUP)
+        .invoke(INVOKESPECIAL, STRING_BUILDER, "<init>", "()V");
+    appendString(code, message);
+  }
+
+  private void endThrow(Code code, String exception) {
+    code.invoke(INVOKEVIRTUAL, STRING_BUILDER, "toString", "()Ljava/lang/String;")
+        .invoke(INVOKESPECIAL, exception, "<init>", "(Ljava/lang/String;)V")
+        .op(ATHROW);
+  }
+
+  private void append(Code code, String argumentDescriptor) {
+    code.invoke(INVOKEVIRTUAL, STRING_BUILDER, "append",
+        "(" + argumentDescriptor + ")Ljava/lang/StringBuilder;");
+  }
+
+  private void appendString(Code code, String s) {
+    code.ldcString(s);
+    append(code, "Ljava/lang/String;");
+  }
+
+  /**
+   * Append array[index] for an enum array and an int local variable
+   */
+  private void appendEnum(Code code, String array, String enumName, int index) {
+    code.local(ILOAD, index);
+    appendEnumAtIndex(code, array, enumName);
+  }
+
+  /**
+   * Append array[index] for an enum array and an index on top of the stack
+   */
+  private void appendEnumAtIndex(Code code, String array, String enumName) {
+    code.field(GETSTATIC, mClass, array, "[" + desc(enumName))
+        .op(SWAP)
+        .op(AALOAD);
+    append(code, "Ljava/lang/Object;");
+  }
+}
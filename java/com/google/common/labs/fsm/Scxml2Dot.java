@@ -7,6 +7,8 @@ import com.google.common.labs.fsm.ScxmlDoc.State;
 import com.google.common.labs.fsm.ScxmlDoc.Transition;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 /**
  * The Scxml2Dot produces a .dot graph description file from an
@@ -22,6 +24,8 @@ import java.io.IOException;
 public class Scxml2Dot {
 
   private final ScxmlDoc mDoc;
+  // destination of out() while outputDot() runs
+  private IndentWriter mOut;
 
   private Scxml2Dot(ScxmlDoc doc) {
     mDoc = doc;
@@ -33,6 +37,9 @@ public class Scxml2Dot {
   }
 
   /**
+   * Translate one file to standard output. {@link ScxmlBatch} translates many
+   * files in one JVM.
+   *
    * @param args The scxml input file
    * @throws IOException
    * @throws ParseException
@@ -55,7 +62,30 @@ public class Scxml2Dot {
     out(1, s.mId + " -> " + t.mTarget + " [fontsize=10, label=\"" + label + "\"];");
   }
 
-  public void outputDot() {
+  /**
+   * Write the graph to standard output
+   */
+  public void outputDot() throws IOException {
+    outputDot(new OutputStreamWriter(System.out));
+  }
+
+  /**
+   * Write the graph
+   *
+   * @param writer destination of the graph, which is flushed but not closed
+   * @throws IOException
+   */
+  public void outputDot(Writer writer) throws IOException {
+    mOut = new IndentWriter(writer);
+    try {
+      outputGraph();
+      mOut.flush();
+    } finally {
+      mOut = null;
+    }
+  }
+
+  private void outputGraph() {
     out(0, "digraph " + mDoc.getClassName() + " {");
 
     String label;
@@ -84,15 +114,8 @@ public class Scxml2Dot {
     out(0, "}");
   }
 
-  private void out(String s) {
-    System.out.print(s + "\n");
-  }
-
   private void out(int tabs, String s) {
-    for (int i = 0; i < tabs; i++) {
-      s = "    " + s;
-    }
-    out(s);
+    mOut.line(tabs, s);
   }
 
   /**
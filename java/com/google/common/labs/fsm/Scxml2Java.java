@@ -2,12 +2,19 @@
 
 package com.google.common.labs.fsm;
 
+import com.google.common.labs.fsm.ScxmlDoc.Concurrency;
+import com.google.common.labs.fsm.ScxmlDoc.Dispatch;
 import com.google.common.labs.fsm.ScxmlDoc.ParseException;
 import com.google.common.labs.fsm.ScxmlDoc.State;
 import com.google.common.labs.fsm.ScxmlDoc.Transition;
+import com.google.common.labs.fsm.ScxmlDoc.Unhandled;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * The Scxml2Java produces .java source code for an abstract base class of a
@@ -15,7 +22,19 @@ import java.util.Collection;
  */
 public class Scxml2Java {
 
+  // HotSpot does not JIT-compile methods with more bytecode than this
+  // (-XX:HugeMethodLimit), and javac rejects methods of more than 64KB
+  private static final int MAX_METHOD_SIZE = 8000;
+  // the most cases of a dispatch method that only calls other dispatch methods
+  private static final int MAX_SPLIT_CASES = 16;
+  // the most statements in one method that fills in the dispatch tables
+  private static final int MAX_TABLE_STATEMENTS = 2000;
+
   private final ScxmlDoc mDoc;
+  // true while the nested Fleet class is being generated
+  private boolean mFleet;
+  // destination of out() while outputJava() runs
+  private IndentWriter mOut;
 
 
   private Scxml2Java(ScxmlDoc doc) {
@@ -28,15 +47,15 @@ public class Scxml2Java {
   }
 
   private void out(String s) {
-    System.out.print(s + "\n");
+    mOut.line(0, s);
   }
 
 
   private void out(int tabs, String s) {
-    for (int i = 0; i < tabs; i++) {
-      s = "    " + s;
+    if (mFleet) {
+      tabs++;
     }
-    out(s);
+    mOut.line(tabs, s);
   }
 
   /**
@@ -52,17 +71,66 @@ public class Scxml2Java {
   }
 
   private void outputExceptionDeclaration(String string) {
-    out(1, "public class " + string + " extends RuntimeException {");
+    out(1, "public static class " + string + " extends RuntimeException {");
     out(2, "public " + string + "(String message) {");
     out(3, "super(message);");
     out(2, "}");
+    if (string.equals("StateException") && mDoc.getUnhandled() == Unhandled.THROW) {
+      out(2, "protected " + string + "(String message, Throwable cause,");
+      out(4, "boolean enableSuppression, boolean writableStackTrace) {");
+      out(3, "super(message, cause, enableSuppression, writableStackTrace);");
+      out(2, "}");
+    }
     out(1, "}");
   }
 
+  private boolean isAtomic() {
+    return !mFleet && mDoc.getConcurrency() == Concurrency.ATOMIC;
+  }
+
+  private boolean isMetered() {
+    return !mFleet && mDoc.getMetricsFlag();
+  }
+
+  /**
+   * @return the argument list of a generated call, prefixed by the machine id
+   *         when generating the Fleet class
+   */
+  private String machineArgs(String args) {
+    if (!mFleet) {
+      return args;
+    }
+    return args.isEmpty() ? "machine" : "machine, " + args;
+  }
+
+  /**
+   * @return the parameter list of a generated method, prefixed by the machine
+   *         id when generating the Fleet class
+   */
+  private String machineParams(String params) {
+    if (!mFleet) {
+      return params;
+    }
+    return params.isEmpty() ? "int machine" : "int machine, " + params;
+  }
+
+  /**
+   * @return the expression reading the current state of a machine that is not
+   *         atomic
+   */
+  private String currentState() {
+    return mFleet ? "mStates[machine]" : "mCurrentState";
+  }
+
   private void outputIsInTerminalState() {
-    out(1, "public boolean isInTerminalState() {");
+    out(1, "public boolean isInTerminalState(" + machineParams("") + ") {");
+    String current = currentState();
+    if (isAtomic()) {
+      current = "state";
+      out(2, "int state = getCurrentStateOrdinal();");
+    }
     for (State s : mDoc.getTerminalStates()) {
-      out(2, "if (mCurrentState == State." + s.mId + ") return true;");
+      out(2, "if (" + current + " == " + mDoc.getStateIndex(s.mId) + ") return true; // " + s.mId);
     }
 
     out(2, "return false;");
@@ -70,95 +138,689 @@ public class Scxml2Java {
   }
 
   private void outputDebugLog(int i, String which, String msg) {
+    outputDebugLog(i, "", which, msg);
+  }
+
+  /**
+   * @param fsm the prefix of members of the machine, which is empty in its own
+   *        methods and "fsm." in the methods of its state handlers
+   */
+  private void outputDebugLog(int i, String fsm, String which, String msg) {
     if (mDoc.mDebug) {
-      out(i, "if (mDebugLogger != null) mDebugLogger." + which + "(" + msg + ");");
+      out(i, "if (isDebugEnabled() && " + fsm + "mDebugLogger != null) {");
+      out(i + 1, fsm + "mDebugLogger." + which + "(" + msg + ");");
+      out(i, "}");
     }
   }
 
+  /**
+   * Generate the class-wide switch that turns debug logging on. Until a
+   * DebugLogger is installed, isDebugEnabled() returns the constant false
+   * through a MutableCallSite, so the JIT removes every logging statement.
+   * Installing the first logger switches the call site to true, which makes the
+   * JIT throw away and recompile the code that depends on it.
+   */
+  private void outputDebugSwitch() {
+    out(1, "private static final java.lang.invoke.MutableCallSite DEBUG_SWITCH =");
+    out(3, "new java.lang.invoke.MutableCallSite(");
+    out(4, "java.lang.invoke.MethodHandles.constant(boolean.class, false));");
+    out(1, "private static final java.lang.invoke.MethodHandle DEBUG_ENABLED =");
+    out(3, "DEBUG_SWITCH.dynamicInvoker();\n");
+    out(1, "private static boolean isDebugEnabled() {");
+    out(2, "try {");
+    out(3, "return (boolean) DEBUG_ENABLED.invokeExact();");
+    out(2, "} catch (Throwable t) {");
+    out(3, "throw new AssertionError(t);");
+    out(2, "}");
+    out(1, "}\n");
+    out(1, "private static synchronized void enableDebug() {");
+    out(2, "if (!isDebugEnabled()) {");
+    out(3, "DEBUG_SWITCH.setTarget(java.lang.invoke.MethodHandles.constant(boolean.class, true));");
+    out(3, "java.lang.invoke.MutableCallSite.syncAll(");
+    out(5, "new java.lang.invoke.MutableCallSite[] {DEBUG_SWITCH});");
+    out(2, "}");
+    out(1, "}\n");
+  }
+
   private void outputStartMethods() {
-    out(1, "public void start() {");
-    out(2, "start(State." + mDoc.getInitialStateName() + ");");
+    out(1, "public void start(" + machineParams("") + ") {");
+    out(2, "start(" + machineArgs("State." + mDoc.getInitialStateName()) + ");");
     out(1, "}\n");
-    out(1, "public void start(State state) {");
-    out(2, "if (mCurrentState != null) {");
+    out(1, "public void start(" + machineParams("State state") + ") {");
+    if (isAtomic()) {
+      out(2, "if (!mCurrentState.compareAndSet(NONE, STATE_COUNT + state.ordinal())) {");
+    } else {
+      out(2, "if (" + currentState() + " >= 0) {");
+    }
     out(3, "throw new StateException(\"FSM already started.\");");
     out(2, "}");
-    out(2, "transitionToState(state);");
+    out(2, "transitionToState(" + machineArgs("state.ordinal()") + ");");
     out(1, "}\n");
   }
 
   private void outputHandleBaseEvent() {
-    out(1, "private boolean handleBaseEvent(Event event) {");
-    outputEventSwitch(2, mDoc.getBaseState(), false);
-    out(2, "return true;");
+    out(1, "private int handleBaseEvent(" + machineParams("int event") + ") {");
+    outputEventSwitch(2, mDoc.getBaseState(), "", "UNHANDLED");
     out(1, "}\n");
   }
 
-  private void outputEventSwitch(int i, State state, boolean callBase) {
+  /**
+   * Generate a switch on the event that performs the transitions of a state
+   *
+   * @param fsm the prefix of members of the machine
+   * @param otherwise the value returned for an event the state does not handle
+   */
+  private void outputEventSwitch(int i, State state, String fsm, String otherwise) {
     out(i, "switch (event) {");
     for (Transition transition : state.mTransitions) {
-      out(i + 1, "case " + transition.mEvent + ":");
+      out(i + 1, "case " + mDoc.getEventIndex(transition.mEvent) + ": // " + transition.mEvent);
+      if (isMetered()) {
+        out(i + 2, fsm + "mTransitionCounts[" + transition.mIndex + "]++;");
+      }
       for (String action : transition.mActions) {
-        outputDebugLog(i + 2, "onAction", "\"" + action + "\"");
-        out(i + 2, "onAction" + action + "();");
+        outputDebugLog(i + 2, fsm, "onAction", "Action." + action);
+        outputActionCall(i + 2, fsm, action);
       }
-      out(i + 2, "transitionToState(State." + transition.mTarget + ");");
-      out(i + 2, "break;");
+      String target = machineArgs("" + mDoc.getStateIndex(transition.mTarget));
+      out(i + 2, fsm + "transitionToState(" + target + "); // " + transition.mTarget);
+      out(i + 2, "return HANDLED;");
     }
     out(i + 1, "default:");
-
-    if (callBase) {
-      out(i + 2, "if (!handleBaseEvent(event)) {");
-      out(i + 3,
-          "throw new StateException(\"State." + state.mId + " does not handle Event.\" + event);");
-      out(i + 2, "}");
-    } else {
-      out(i + 2, "mPushingEvent = null;");
-      out(i + 2,
-          "throw new StateException(\"State." + state.mId + " does not handle Event.\" + event);");
-    }
+    out(i + 2, "return " + otherwise + ";");
     out(i, "}");
   }
 
-  private void outputPushEventMethod() {
-    out(1, "public final boolean pushEvent(Event event) {");
+  /**
+   * Generate the call of an action, timed when metered
+   *
+   * @param fsm the prefix of members of the machine
+   */
+  private void outputActionCall(int i, String fsm, String action) {
+    if (isMetered()) {
+      out(i, fsm + "startAction();");
+    }
+    out(i, fsm + "onAction" + action + "(" + machineArgs("") + ");");
+    if (isMetered()) {
+      out(i, fsm + "endAction();");
+    }
+  }
 
-    outputDebugLog(2, "onEvent", "event.toString()");
-    out(2, "if (mPushingEvent != null) {");
+  /**
+   * Generate a singleton handler class for each state, whose handle() method
+   * does for an event pushed in that state what dispatchEvent() does, and the
+   * HANDLERS array of the singletons indexed by state ordinal. The handlers
+   * extend the class of the base state, whose handle() performs the base
+   * transitions, and call it for the events they do not handle themselves.
+   */
+  private void outputStateHandlers() {
+    String params = (mFleet ? "Fleet" : getClassName()) + " fsm, " + machineParams("int event");
+    State base = mDoc.getBaseState();
+    String parent = base == null ? "Handler" : base.mId + "Handler";
 
-    out(3,
-        "throw new StateException(\"pushEvent(\"+event+\") called during push of \"+mPushingEvent);"
-        );
+    out(1, "// The handler of a state performs the transition for an event and returns");
+    out(1, "// HANDLED, or returns UNHANDLED or TERMINAL. The handler of the base state's");
+    out(1, "// ordinal returns UNKNOWN_STATE.");
+    out(1, "private static class Handler {");
+    out(2, "int handle(" + params + ") {");
+    out(3, "return UNKNOWN_STATE;");
     out(2, "}");
-    out(2, "mPushingEvent = event;");
+    out(1, "}\n");
+    if (base != null) {
+      out(1, "private abstract static class " + parent + " extends Handler {");
+      out(2, "@Override");
+      out(2, "int handle(" + params + ") {");
+      outputEventSwitch(3, base, "fsm.", "UNHANDLED");
+      out(2, "}");
+      out(1, "}\n");
+    }
+    for (State state : mDoc.getStates()) {
+      if (state == base) {
+        continue;
+      }
+      out(1, "private static final class " + state.mId + "Handler extends " + parent + " {");
+      out(2, "@Override");
+      out(2, "int handle(" + params + ") {");
+      if (state.mTransitions.size() == 0) {
+        out(3, "return TERMINAL;");
+      } else {
+        outputEventSwitch(3, state, "fsm.",
+            base == null ? "UNHANDLED" : "super.handle(fsm, " + machineArgs("event") + ")");
+      }
+      out(2, "}");
+      out(1, "}\n");
+    }
 
-    out(2, "switch (mCurrentState) {");
+    out(1, "private static final Handler[] HANDLERS = {");
+    for (String name : mDoc.mDeclaredStateNames) {
+      out(3, "new " + (base != null && name.equals(base.mId) ? "Handler" : name + "Handler")
+          + "(),");
+    }
+    out(1, "};\n");
+  }
+
+  /**
+   * Generate dispatchEvent(), which performs the transition for an event that
+   * is being pushed and returns HANDLED, or returns UNHANDLED, TERMINAL or
+   * UNKNOWN_STATE without performing any action or changing state
+   */
+  private void outputDispatchEventMethod() {
+    if (mDoc.getDispatch() == Dispatch.TABLE) {
+      out(1, "private int dispatchEvent(" + machineParams("int current, int event") + ") {");
+      out(2, "if (current == NONE) {");
+      out(3, "return UNKNOWN_STATE;");
+      out(2, "}");
+      out(2, "int cell = current * EVENT_COUNT + event;");
+      out(2, "int nextState = NEXT_STATE[cell];");
+      out(2, "if (nextState < 0) {");
+      out(3, "return nextState;");
+      out(2, "}");
+      if (isMetered()) {
+        out(2, "mTransitionCounts[TRANSITION[cell]]++;");
+      }
+      out(2, "for (int i = ACTION_INDEX[cell]; ACTIONS[i] >= 0; i++) {");
+      out(3, "performAction(" + machineArgs("ACTIONS[i]") + ");");
+      out(2, "}");
+      out(2, "transitionToState(" + machineArgs("nextState") + ");");
+      out(2, "return HANDLED;");
+      out(1, "}\n");
+      return;
+    }
+    if (mDoc.getDispatch() == Dispatch.STATE) {
+      out(1, "private int dispatchEvent(" + machineParams("int current, int event") + ") {");
+      out(2, "if (current == NONE) {");
+      out(3, "return UNKNOWN_STATE;");
+      out(2, "}");
+      out(2, "return HANDLERS[current].handle(this, " + machineArgs("event") + ");");
+      out(1, "}\n");
+      return;
+    }
+
+    outputDispatchStates("dispatchEvent", estimateCaseSizes(), 0, mDoc.getStates().size());
+  }
+
+  /**
+   * @return a rough upper bound on the bytecode size of the case of each state
+   *         in the switch of dispatchEvent(), indexed by state ordinal
+   */
+  private int[] estimateCaseSizes() {
+    int[] sizes = new int[mDoc.getStates().size()];
+    // a call to onAction, and the test and call of the debug logger before it
+    int actionSize = mDoc.mDebug ? 24 : 5;
+    // the increment of the transition's counter, and the calls timing each action
+    int transitionSize = 20;
+    if (isMetered()) {
+      transitionSize += 10;
+      actionSize += 8;
+    }
     for (State state : mDoc.getStates()) {
+      if (state == mDoc.getBaseState()) {
+        continue;
+      }
+      // the entry of the state in the outer switch, and the default case
+      int size = 12;
+      if (state.mTransitions.size() > 0) {
+        size += 16;
+      }
+      for (Transition transition : state.mTransitions) {
+        // the lookupswitch entry, transitionToState() and the return
+        size += transitionSize + actionSize * transition.mActions.size();
+      }
+      sizes[mDoc.getStateIndex(state.mId)] = size;
+    }
+    return sizes;
+  }
 
-      if ((mDoc.getBaseState() != null) && mDoc.getBaseState().mId.equals(state.mId)) {
+  /**
+   * Generate a method that dispatches an event to the states with ordinals
+   * first to end - 1. When the switch over all of them would be larger than
+   * MAX_METHOD_SIZE, the method instead switches on the high bits of the
+   * ordinal to at most MAX_SPLIT_CASES methods that each dispatch an aligned
+   * range of states, so that no generated method is too large to be compiled
+   * by the JIT and the outer ones are small enough to be inlined.
+   */
+  private void outputDispatchStates(String name, int[] sizes, int first, int end) {
+    out(1, "private int " + name + "(" + machineParams("int current, int event") + ") {");
+    if (end - first == 1 || fitsInMethods(sizes, first, end, end - first)) {
+      out(2, "switch (current) {");
+      for (int i = first; i < end; i++) {
+        State state = mDoc.getState(mDoc.mDeclaredStateNames.get(i));
+        if (state == mDoc.getBaseState()) {
+          continue;
+        }
+        out(3, "case " + i + ": // " + state.mId);
+        if (state.getTransitions().size() == 0) {
+          out(4, "return TERMINAL;");
+          continue;
+        }
+        outputEventSwitch(4, state, "", mDoc.getBaseState() == null
+            ? "UNHANDLED" : "handleBaseEvent(" + machineArgs("event") + ")");
+      }
+      out(3, "default:");
+      out(4, "return UNKNOWN_STATE;");
+      out(2, "}");
+      out(1, "}\n");
+      return;
+    }
+
+    // first is a multiple of the range of the caller's cases, so it is also a
+    // multiple of the smaller range of each case here. The ranges are as large
+    // as they can be without splitting any of them again.
+    int shift = 0;
+    while ((end - first - 1 >> shift) >= MAX_SPLIT_CASES) {
+      shift++;
+    }
+    while (2 << shift < end - first && fitsInMethods(sizes, first, end, 2 << shift)) {
+      shift++;
+    }
+    out(2, "switch (current >> " + shift + ") {");
+    for (int from = first; from < end; from += 1 << shift) {
+      out(3, "case " + (from >> shift) + ":");
+      out(4, "return " + splitMethodName(from, Math.min(end, from + (1 << shift)))
+          + "(" + machineArgs("current, event") + ");");
+    }
+    out(3, "default:");
+    out(4, "return UNKNOWN_STATE;");
+    out(2, "}");
+    out(1, "}\n");
+    for (int from = first; from < end; from += 1 << shift) {
+      int to = Math.min(end, from + (1 << shift));
+      outputDispatchStates(splitMethodName(from, to), sizes, from, to);
+    }
+  }
+
+  /**
+   * @return true if the cases of the states first to end - 1, split into
+   *         ranges of the given number of states, each fit in a method
+   */
+  private static boolean fitsInMethods(int[] sizes, int first, int end, int range) {
+    for (int from = first; from < end; from += range) {
+      int size = 0;
+      for (int i = from; i < Math.min(end, from + range); i++) {
+        size += sizes[i];
+      }
+      if (size > MAX_METHOD_SIZE) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String splitMethodName(int first, int end) {
+    return "dispatchStates" + first + "To" + (end - 1);
+  }
+
+  /**
+   * Generate claimPush(), which marks an atomic machine as pushing an event
+   * with a single compareAndSet and returns the state it is pushed to
+   */
+  private void outputClaimPush() {
+    out(1, "private int claimPush(int event) {");
+    out(2, "int current;");
+    out(2, "do {");
+    out(3, "current = mCurrentState.get();");
+    out(3, "if (current == NONE) {");
+    out(4, "throw new EventException(\"Unknown Event: \"+getCurrentState());");
+    out(3, "}");
+    out(3, "if (current >= STATE_COUNT) {");
+    out(4, "throw new StateException(\"pushEvent(\"+EVENTS[event]+\") called during push of \""
+        + "+\"another event\");");
+    out(3, "}");
+    out(2, "} while (!mCurrentState.compareAndSet(current, current + STATE_COUNT));");
+    out(2, "return current;");
+    out(1, "}\n");
+  }
+
+  /**
+   * Generate the enum overload of pushEvent(), which delegates to the int
+   * implementation, and the int implementation, which marks the event as
+   * being pushed around the call to dispatchEvent()
+   */
+  private void outputPushEventMethods() {
+    out(1, "public final boolean pushEvent(" + machineParams("Event event") + ") {");
+    out(2, "return pushEvent(" + machineArgs("event.ordinal()") + ");");
+    out(1, "}\n");
+
+    out(1, "public final boolean pushEvent(" + machineParams("int event") + ") {");
+    out(2, "if (event < 0 || event >= EVENT_COUNT) {");
+    out(3, "throw new EventException(\"Unknown Event: \"+event);");
+    out(2, "}");
+    outputDebugLog(2, "onEvent", "EVENTS[event]");
+    if (isAtomic()) {
+      out(2, "int current = claimPush(event);");
+      out(2, "int result = dispatchEvent(current, event);");
+      out(2, "if (result == HANDLED) {");
+      out(3, "return true;");
+      out(2, "}");
+      out(2, "mCurrentState.set(current);");
+    } else {
+      out(2, "if (mPushingEvent != NONE) {");
+      out(3, "throw new StateException(\"pushEvent(\"+EVENTS[event]+\") called during push of \""
+          + "+EVENTS[mPushingEvent]);");
+      out(2, "}");
+      out(2, "mPushingEvent = event;");
+      out(2, "int current = " + currentState() + ";");
+      out(2, "int result = dispatchEvent(" + machineArgs("current, event") + ");");
+      out(2, "mPushingEvent = NONE;");
+      out(2, "if (result == HANDLED) {");
+      out(3, "return true;");
+      out(2, "}");
+    }
+    out(2, "if (result == TERMINAL) {");
+    out(3, "return false;");
+    out(2, "}");
+    out(2, "if (result == UNKNOWN_STATE) {");
+    out(3, "throw new EventException(\"Unknown Event: \"+getCurrentState(" + machineArgs("")
+        + "));");
+    out(2, "}");
+    outputUnhandledEvent(2);
+    out(1, "}\n");
+  }
+
+  /**
+   * Generate the end of pushEvent() for an event that the current state does
+   * not handle, according to the unhandled attribute of the document
+   */
+  private void outputUnhandledEvent(int i) {
+    switch (mDoc.getUnhandled()) {
+      case THROW:
+        out(i, "throw UNHANDLED_EVENT;");
+        break;
+      case RETURN_FALSE:
+        out(i, "return false;");
+        break;
+      case IGNORE:
+        out(i, "return true;");
+        break;
+      case CALLBACK:
+        out(i, "onUnhandledEvent(" + machineArgs("STATES[current], EVENTS[event]") + ");");
+        out(i, "return false;");
+        break;
+      default:
+        out(i, "throw new StateException(\"State.\"+STATES[current]+\" does not handle Event.\""
+            + "+EVENTS[event]);");
+    }
+  }
+
+  /**
+   * Generate a StateException subclass without a stack trace, and the single
+   * instance of it that is thrown for every unhandled event. Suppression is
+   * disabled and the cause is set, so callers that add suppressed exceptions
+   * or a cause can not change the instance shared by every machine.
+   */
+  private void outputUnhandledEventException() {
+    out(1, "public static class UnhandledEventException extends StateException {");
+    out(2, "private UnhandledEventException() {");
+    out(3, "super(\"Event not handled by the current state\", null, false, false);");
+    out(2, "}");
+    out(1, "}");
+    out(1, "private static final UnhandledEventException UNHANDLED_EVENT =");
+    out(3, "new UnhandledEventException();");
+  }
+
+  /**
+   * Generate a pushEvents() method that pushes events[from] to events[to - 1]
+   * in order. It stops at, and returns the index of, the first event that is
+   * not handled, and returns to if every event is handled. Events are skipped
+   * rather than stopping the batch when unhandled events are ignored. The debug
+   * logger is read once per batch rather than once per event.
+   */
+  private void outputPushEventsMethod(String eventsType) {
+    out(1, "public final int pushEvents(" + eventsType + " events, int from, int to) {");
+    if (!isAtomic()) {
+      out(2, "if (mPushingEvent != NONE) {");
+      out(3, "throw new StateException(\"pushEvents() called during push of \""
+          + "+EVENTS[mPushingEvent]);");
+      out(2, "}");
+    }
+    out(2, "int i = from;");
+    if (mDoc.mDebug) {
+      out(2, "DebugLogger logger = isDebugEnabled() ? mDebugLogger : null;");
+      out(2, "if (logger != null) {");
+      outputPushEventsLoop(3, eventsType, true);
+      out(2, "} else {");
+      outputPushEventsLoop(3, eventsType, false);
+      out(2, "}");
+    } else {
+      outputPushEventsLoop(2, eventsType, false);
+    }
+    if (!isAtomic()) {
+      out(2, "mPushingEvent = NONE;");
+    }
+    out(2, "return i;");
+    out(1, "}\n");
+  }
+
+  private void outputPushEventsLoop(int i, String eventsType, boolean log) {
+    out(i, "for (; i < to; i++) {");
+    if (eventsType.equals("int[]")) {
+      out(i + 1, "int event = events[i];");
+      out(i + 1, "if (event < 0 || event >= EVENT_COUNT) {");
+      out(i + 2, "break;");
+      out(i + 1, "}");
+    } else {
+      out(i + 1, "int event = events[i].ordinal();");
+    }
+    if (log) {
+      out(i + 1, "logger.onEvent(EVENTS[event]);");
+    }
+    if (isAtomic()) {
+      out(i + 1, "int current = claimPush(event);");
+      out(i + 1, "int result = dispatchEvent(current, event);");
+      out(i + 1, "if (result != HANDLED) {");
+      out(i + 2, "mCurrentState.set(current);");
+    } else {
+      out(i + 1, "mPushingEvent = event;");
+      out(i + 1, "int result = dispatchEvent(mCurrentState, event);");
+      out(i + 1, "if (result != HANDLED) {");
+    }
+    if (mDoc.getUnhandled() == Unhandled.IGNORE) {
+      out(i + 2, "if (result == UNHANDLED) {");
+      out(i + 3, "continue;");
+      out(i + 2, "}");
+    }
+    out(i + 2, "break;");
+    out(i + 1, "}");
+    out(i, "}");
+  }
+
+  /**
+   * Generate the next-state and action tables used by table dispatch. Cells are
+   * indexed by state.ordinal() * EVENT_COUNT + event.ordinal(). Transitions of
+   * the base state are folded into every row that does not handle the event
+   * itself, so the generated pushEvent() never dispatches a second time.
+   *
+   * The tables are filled in by a static initializer. When there are more than
+   * MAX_TABLE_STATEMENTS statements, so that the initializer could be too large
+   * for javac, they are split among static initTables methods that it calls.
+   */
+  private void outputDispatchTables() {
+    DispatchTables tables = new DispatchTables(mDoc);
+    int eventCount = tables.mEventCount;
+    int cellCount = tables.mNextState.length;
+
+    List<String> statements = new ArrayList<String>();
+    statements.add("java.util.Arrays.fill(NEXT_STATE, UNHANDLED);");
+    for (State state : mDoc.getStates()) {
+      int row = mDoc.getStateIndex(state.mId) * eventCount;
+      statements.add("// " + state.mId);
+      if (mDoc.getBaseState() == state) {
+        statements.add("java.util.Arrays.fill(NEXT_STATE, " + row + ", " + (row + eventCount)
+            + ", UNKNOWN_STATE);");
         continue;
       }
-      out(3, "case " + state.mId + ":");
-      if (state.getTransitions().size() == 0) {
-        out(4, "return false;");
+      if (state.mTransitions.size() == 0) {
+        statements.add("java.util.Arrays.fill(NEXT_STATE, " + row + ", " + (row + eventCount)
+            + ", TERMINAL);");
         continue;
       }
-      outputEventSwitch(4, state, mDoc.getBaseState() != null);
+      for (int cell = row; cell < row + eventCount; cell++) {
+        if (tables.mNextState[cell] == DispatchTables.UNHANDLED) {
+          continue;
+        }
+        statements.add("NEXT_STATE[" + cell + "] = " + tables.mNextState[cell] + ";");
+        if (isMetered()) {
+          statements.add("TRANSITION[" + cell + "] = " + tables.mTransition[cell] + ";");
+        }
+        if (tables.mActionIndex[cell] != 0) {
+          statements.add("ACTION_INDEX[" + cell + "] = " + tables.mActionIndex[cell] + ";");
+        }
+      }
+    }
+
+    out(1, "private static final int[] NEXT_STATE = new int[" + cellCount + "];");
+    out(1, "private static final int[] ACTION_INDEX = new int[" + cellCount + "];");
+    if (isMetered()) {
+      // the transition of each handled cell, whose counter is incremented
+      out(1, "private static final int[] TRANSITION = new int[" + cellCount + "];");
+    }
+    // each run of actions is terminated by -1, and ACTIONS[0] is the empty run
+    if (statements.size() + tables.mActions.length <= MAX_TABLE_STATEMENTS) {
+      StringBuilder runs = new StringBuilder();
+      for (int run : tables.mActions) {
+        runs.append(runs.length() == 0 ? "" : ", ").append(run);
+      }
+      out(1, "private static final int[] ACTIONS = {" + runs + "};");
+      out(1, "static {");
+      for (String statement : statements) {
+        out(2, statement);
+      }
+      out(1, "}\n");
+      return;
+    }
+
+    out(1, "private static final int[] ACTIONS = new int[" + tables.mActions.length + "];");
+    List<String> actions = new ArrayList<String>();
+    actions.add("java.util.Arrays.fill(ACTIONS, -1);");
+    for (int i = 0; i < tables.mActions.length; i++) {
+      if (tables.mActions[i] >= 0) {
+        actions.add("ACTIONS[" + i + "] = " + tables.mActions[i] + ";");
+      }
+    }
+    statements.addAll(0, actions);
+    int methods = (statements.size() + MAX_TABLE_STATEMENTS - 1) / MAX_TABLE_STATEMENTS;
+    out(1, "static {");
+    for (int i = 0; i < methods; i++) {
+      out(2, "initTables" + i + "();");
+    }
+    out(1, "}\n");
+    for (int i = 0; i < methods; i++) {
+      out(1, "private static void initTables" + i + "() {");
+      int end = Math.min(statements.size(), (i + 1) * MAX_TABLE_STATEMENTS);
+      for (String statement : statements.subList(i * MAX_TABLE_STATEMENTS, end)) {
+        out(2, statement);
+      }
+      out(1, "}\n");
+    }
+  }
+
+  private void outputPerformAction() {
+    out(1, "private void performAction(" + machineParams("int action") + ") {");
+    out(2, "switch (action) {");
+    for (String action : mDoc.getActionSet()) {
+      out(3, "case " + mDoc.getActionIndex(action) + ":");
+      outputDebugLog(4, "onAction", "Action." + action);
+      outputActionCall(4, "", action);
       out(4, "break;");
     }
-    out(3, "default:");
-    out(4, "throw new EventException(\"Unknown Event: \"+mCurrentState);");
     out(2, "}");
-    out(2, "mPushingEvent = null;");
+    out(1, "}\n");
+  }
+
+  private void outputAtomicFields() {
+    out(1, "// Any thread may call start() and pushEvent(). Each call claims the machine by");
+    out(1, "// adding STATE_COUNT to mCurrentState with a single compareAndSet, runs the");
+    out(1, "// actions and onStateChange() while holding the claim, and releases it by");
+    out(1, "// publishing the target state. Calls are linearizable at the claim. A call that");
+    out(1, "// finds another push in progress, on this or any other thread, does not wait: it");
+    out(1, "// throws StateException and leaves the machine unchanged.");
+    out(1, "private final java.util.concurrent.atomic.AtomicInteger mCurrentState =");
+    out(3, "new java.util.concurrent.atomic.AtomicInteger(NONE);");
+    out(1, "private volatile DebugLogger mDebugLogger;");
+  }
+
+  /**
+   * Generate a bounded ring-buffer mailbox that any thread may offer events to,
+   * and the drain() method that its single consumer uses to push them. Slots
+   * hold event + 1 so that a zeroed slot is empty; the consumer empties a slot
+   * before advancing the head past it, so a producer that has claimed a tail
+   * index within capacity always finds its slot empty.
+   */
+  private void outputMailbox() {
+    int capacity = 1;
+    while (capacity < mDoc.getMailboxCapacity()) {
+      capacity <<= 1;
+    }
+    out(1, "// Events offered from any thread wait here until drain() pushes them. Only one");
+    out(1, "// thread at a time may call drain(); actions that need to fire follow-up events");
+    out(1, "// offer them, and the running drain() pushes them after the current transition.");
+    out(1, "public static final int MAILBOX_CAPACITY = " + capacity + ";");
+    out(1, "private final java.util.concurrent.atomic.AtomicIntegerArray mMailbox =");
+    out(3, "new java.util.concurrent.atomic.AtomicIntegerArray(MAILBOX_CAPACITY);");
+    out(1, "private final java.util.concurrent.atomic.AtomicInteger mMailboxTail =");
+    out(3, "new java.util.concurrent.atomic.AtomicInteger();");
+    out(1, "private volatile int mMailboxHead;\n");
+
+    out(1, "public final boolean offerEvent(Event event) {");
+    out(2, "return offerEvent(event.ordinal());");
+    out(1, "}\n");
+
+    out(1, "public final boolean offerEvent(int event) {");
+    out(2, "if (event < 0 || event >= EVENT_COUNT) {");
+    out(3, "throw new EventException(\"Unknown Event: \"+event);");
+    out(2, "}");
+    out(2, "int tail;");
+    out(2, "do {");
+    out(3, "tail = mMailboxTail.get();");
+    out(3, "if (tail - mMailboxHead >= MAILBOX_CAPACITY) {");
+    out(4, "return false;");
+    out(3, "}");
+    out(2, "} while (!mMailboxTail.compareAndSet(tail, tail + 1));");
+    out(2, "mMailbox.set(tail & (MAILBOX_CAPACITY - 1), event + 1);");
     out(2, "return true;");
     out(1, "}\n");
+
+    out(1, "public final int drain(int maxEvents) {");
+    out(2, "int head = mMailboxHead;");
+    out(2, "int count = 0;");
+    out(2, "while (count < maxEvents) {");
+    out(3, "int slot = head & (MAILBOX_CAPACITY - 1);");
+    out(3, "int event = mMailbox.get(slot) - 1;");
+    out(3, "if (event == NONE) {");
+    out(4, "break;");
+    out(3, "}");
+    out(3, "mMailbox.lazySet(slot, 0);");
+    out(3, "mMailboxHead = ++head;");
+    out(3, "count++;");
+    out(3, "pushEvent(event);");
+    out(2, "}");
+    out(2, "return count;");
+    out(1, "}\n");
+  }
+
+  /**
+   * Generate the Java code to standard output
+   */
+  void outputJava() throws IOException {
+    outputJava(new OutputStreamWriter(System.out));
   }
 
   /**
    * Generate the Java code
+   *
+   * @param writer destination of the code, which is flushed but not closed
+   * @throws IOException
    */
+  public void outputJava(Writer writer) throws IOException {
+    mOut = new IndentWriter(writer);
+    try {
+      outputClass();
+      mOut.flush();
+    } finally {
+      mOut = null;
+    }
+  }
 
-  void outputJava() {
+  private void outputClass() {
     out("// Generated by Scxml2Java -- DO NOT EDIT");
     out("// (edits will be overwritten automatically when scxml is compiled)\n");
 
@@ -171,58 +833,490 @@ public class Scxml2Java {
     // Enums
     outputEnum("Event", mDoc.getEventSet());
     outputEnum("State", mDoc.mDeclaredStateNames);
+    outputEnum("Action", mDoc.getActionSet());
 
     // Exceptions
     outputExceptionDeclaration("StateException");
     outputExceptionDeclaration("EventException");
+    if (mDoc.getUnhandled() == Unhandled.THROW) {
+      outputUnhandledEventException();
+    }
 
     // Interface
     out(1, "public interface DebugLogger {");
-    out(2, "public void onState(String msg);");
-    out(2, "public void onAction(String msg);");
-    out(2, "public void onEvent(String msg);");
+    out(2, "public void onState(State state);");
+    out(2, "public void onAction(Action action);");
+    out(2, "public void onEvent(Event event);");
     out(1, "}");
 
+    // Constants
+    out(1, "public static final int EVENT_COUNT = " + mDoc.getEventSet().size() + ";");
+    out(1, "public static final int STATE_COUNT = " + mDoc.getStates().size() + ";");
+    out(1, "// the bytes that snapshot() writes for each state ordinal");
+    out(1, "public static final int STATE_BYTES = " + snapshotStateBytes() + ";");
+    out(1, "private static final int NONE = -1;");
+    out(1, "private static final int HANDLED = 0;");
+    out(1, "private static final int UNHANDLED = -1;");
+    out(1, "private static final int TERMINAL = -2;");
+    out(1, "private static final int UNKNOWN_STATE = -3;");
+    out(1, "private static final Event[] EVENTS = Event.values();");
+    out(1, "private static final State[] STATES = State.values();");
+
     // Fields
-    out(1, "private State mCurrentState;");
-    out(1, "private Event mPushingEvent;");
-    out(1, "private DebugLogger mDebugLogger;");
+    if (isAtomic()) {
+      outputAtomicFields();
+    } else {
+      out(1, "private int mCurrentState = NONE;");
+      out(1, "private int mPushingEvent = NONE;");
+      out(1, "private DebugLogger mDebugLogger;");
+    }
     out("");
+    if (mDoc.mDebug) {
+      outputDebugSwitch();
+    }
+    if (isMetered()) {
+      outputMetrics();
+    }
 
     // Methods
     out(1, "public " + getClassName() + "() {}\n");
-    out(1, "public State getCurrentState() {");
-    out(2, "return mCurrentState;");
+    outputMachineMethods();
+
+    if (mDoc.getMailboxCapacity() > 0) {
+      outputMailbox();
+    }
+
+    if (mDoc.getFleetFlag()) {
+      outputFleet();
+    }
+
+    out("}");
+
+  }
+
+  /**
+   * Generate the methods shared by the generated class and its nested Fleet
+   * class, ending with the abstract methods to be implemented by subclasses
+   */
+  private void outputMachineMethods() {
+    out(1, "public State getCurrentState(" + machineParams("") + ") {");
+    if (isAtomic()) {
+      out(2, "int state = getCurrentStateOrdinal();");
+      out(2, "return state == NONE ? null : STATES[state];");
+    } else {
+      out(2, "return " + currentState() + " == NONE ? null : STATES[" + currentState() + "];");
+    }
+    out(1, "}\n");
+    out(1, "public int getCurrentStateOrdinal(" + machineParams("") + ") {");
+    if (isAtomic()) {
+      out(2, "int state = mCurrentState.get();");
+      out(2, "return state >= STATE_COUNT ? state - STATE_COUNT : state;");
+    } else {
+      out(2, "return " + currentState() + ";");
+    }
     out(1, "}\n");
 
     outputStartMethods();
 
-    if (mDoc.getBaseState() != null) {
+    if (mDoc.getDispatch() == Dispatch.TABLE) {
+      if (!mFleet) {
+        outputDispatchTables();
+      }
+      outputPerformAction();
+    } else if (mDoc.getDispatch() == Dispatch.STATE) {
+      outputStateHandlers();
+    } else if (mDoc.getBaseState() != null) {
       outputHandleBaseEvent();
     }
-    outputPushEventMethod();
+    outputDispatchEventMethod();
+    if (isAtomic()) {
+      outputClaimPush();
+    }
+    outputPushEventMethods();
+    if (!mFleet) {
+      outputPushEventsMethod("Event[]");
+      outputPushEventsMethod("int[]");
+    }
     outputIsInTerminalState();
+    outputSnapshotMethods();
 
     out(1, "public void setDebugLogger(DebugLogger logger) {");
     out(2, "mDebugLogger = logger;");
+    if (mDoc.mDebug) {
+      out(2, "if (logger != null) {");
+      out(3, "enableDebug();");
+      out(2, "}");
+    }
     out(1, "}\n");
 
-    out(1, "private void transitionToState(State state) {");
-    out(2, "mCurrentState = state;");
-    outputDebugLog(2, "onState", "state.toString()");
-    out(2, "onStateChange(state);");
+    out(1, "private void transitionToState(" + machineParams("int state") + ") {");
+    if (isAtomic()) {
+      out(2, "mCurrentState.set(STATE_COUNT + state);");
+    } else if (mFleet) {
+      out(2, "mStates[machine] = (" + fleetColumnType() + ") state;");
+    } else {
+      out(2, "mCurrentState = state;");
+    }
+    outputDebugLog(2, "onState", "STATES[state]");
+    if (isMetered()) {
+      out(2, "meterState(state);");
+    }
+    out(2, "onStateChange(" + machineArgs("STATES[state]") + ");");
+    if (isAtomic()) {
+      out(2, "mCurrentState.set(state);");
+    }
 
     out(1, "}\n");
 
     // Abstract methods
-    out(1, "protected abstract void onStateChange(State state);\n");
+    out(1, "protected abstract void onStateChange(" + machineParams("State state") + ");\n");
+    if (mDoc.getUnhandled() == Unhandled.CALLBACK) {
+      out(1, "protected abstract void onUnhandledEvent(" + machineParams("State state, Event event")
+          + ");\n");
+    }
     // Actions
     for (String action : mDoc.getActionSet()) {
-      out(1, "protected abstract void onAction" + action + "();");
+      out(1, "protected abstract void onAction" + action + "(" + machineParams("") + ");");
     }
+  }
 
-    out("}");
+  /**
+   * @return the bytes of a state ordinal in a snapshot, which is as wide as a
+   *         state in the column of a Fleet
+   */
+  private int snapshotStateBytes() {
+    String type = fleetColumnType();
+    return type.equals("byte") ? 1 : type.equals("short") ? 2 : 4;
+  }
 
+  /**
+   * @return the suffix of the ByteBuffer methods that read and write a state
+   *         ordinal
+   */
+  private String snapshotAccessor() {
+    String type = fleetColumnType();
+    return type.equals("byte") ? "" : type.equals("short") ? "Short" : "Int";
+  }
+
+  /**
+   * Generate the code that throws StateException when a snapshot method is
+   * called while an event is pushed. An atomic machine is checked by the
+   * caller, which reads the state and its claim together.
+   */
+  private void outputSnapshotPushCheck(int i, String method) {
+    if (!isAtomic()) {
+      out(i, "if (mPushingEvent != NONE) {");
+      out(i + 1, "throw new StateException(\"" + method + "() called during push of \""
+          + "+EVENTS[mPushingEvent]);");
+      out(i, "}");
+    }
+  }
+
+  private void outputCheckSnapshotState(int i) {
+    out(i, "if (state < NONE || state >= STATE_COUNT) {");
+    out(i + 1, "throw new StateException(\"Unknown State: \"+state);");
+    out(i, "}");
+  }
+
+  /**
+   * Generate snapshot(), which writes the state of a machine to a ByteBuffer
+   * without allocating, and restore(), which reads it back, along with static
+   * variants for arrays of machines. The state ordinal, or NONE before start(),
+   * takes STATE_BYTES; a machine with a mailbox follows it with the number of
+   * queued events and their ordinals, as ints. A Fleet writes the ordinals of
+   * all of its machines. restore() sets the state without calling
+   * onStateChange(), and works whether or not the machine was started. A
+   * metered machine charges the time from the restore to the restored state.
+   */
+  private void outputSnapshotMethods() {
+    String accessor = snapshotAccessor();
+    String cast = fleetColumnType().equals("int") ? "" : "(" + fleetColumnType() + ") ";
+    boolean mailbox = !mFleet && mDoc.getMailboxCapacity() > 0;
+    out(1, "public final void snapshot(java.nio.ByteBuffer buffer) {");
+    outputSnapshotPushCheck(2, "snapshot");
+    if (mFleet) {
+      if (accessor.isEmpty()) {
+        out(2, "buffer.put(mStates);");
+      } else {
+        out(2, "for (int i = 0; i < mStates.length; i++) {");
+        out(3, "buffer.put" + accessor + "(mStates[i]);");
+        out(2, "}");
+      }
+    } else {
+      if (isAtomic()) {
+        out(2, "int state = mCurrentState.get();");
+        out(2, "if (state >= STATE_COUNT) {");
+        out(3, "throw new StateException(\"snapshot() called during push of another event\");");
+        out(2, "}");
+      } else {
+        out(2, "int state = mCurrentState;");
+      }
+      out(2, "buffer.put" + accessor + "(" + cast + "state);");
+      if (mailbox) {
+        out(2, "snapshotMailbox(buffer);");
+      }
+    }
+    out(1, "}\n");
+
+    out(1, "public final void restore(java.nio.ByteBuffer buffer) {");
+    outputSnapshotPushCheck(2, "restore");
+    if (mFleet) {
+      // every ordinal is checked before any is stored, so that a bad snapshot
+      // leaves the fleet unchanged
+      String offset = accessor.isEmpty() ? "i" : snapshotStateBytes() + " * i";
+      out(2, "int position = buffer.position();");
+      out(2, "for (int i = 0; i < mStates.length; i++) {");
+      out(3, "int state = buffer.get" + accessor + "(position + " + offset + ");");
+      outputCheckSnapshotState(3);
+      out(2, "}");
+      if (accessor.isEmpty()) {
+        out(2, "buffer.get(mStates);");
+      } else {
+        out(2, "for (int i = 0; i < mStates.length; i++) {");
+        out(3, "mStates[i] = buffer.get" + accessor + "();");
+        out(2, "}");
+      }
+    } else {
+      out(2, "int state = buffer.get" + accessor + "();");
+      outputCheckSnapshotState(2);
+      if (mailbox) {
+        out(2, "restoreMailbox(buffer);");
+      }
+      if (isAtomic()) {
+        out(2, "int current;");
+        out(2, "do {");
+        out(3, "current = mCurrentState.get();");
+        out(3, "if (current >= STATE_COUNT) {");
+        out(4, "throw new StateException(\"restore() called during push of another event\");");
+        out(3, "}");
+        out(2, "} while (!mCurrentState.compareAndSet(current, state));");
+      } else {
+        out(2, "mCurrentState = state;");
+      }
+      if (isMetered()) {
+        out(2, "meterState(state);");
+      }
+    }
+    out(1, "}\n");
+
+    if (mFleet) {
+      return;
+    }
+    for (String method : new String[] {"snapshot", "restore"}) {
+      out(1, "public static void " + method + "(" + getClassName()
+          + "[] machines, java.nio.ByteBuffer buffer) {");
+      out(2, "for (int i = 0; i < machines.length; i++) {");
+      out(3, "machines[i]." + method + "(buffer);");
+      out(2, "}");
+      out(1, "}\n");
+    }
+    if (mailbox) {
+      outputSnapshotMailbox();
+    }
+  }
+
+  /**
+   * Generate the methods that write and read the events queued in the
+   * mailbox. An event that is being offered while the snapshot is written may
+   * be left out of it; restoring must not race with offerEvent() or drain().
+   */
+  private void outputSnapshotMailbox() {
+    out(1, "private void snapshotMailbox(java.nio.ByteBuffer buffer) {");
+    out(2, "int head = mMailboxHead;");
+    out(2, "int queued = mMailboxTail.get() - head;");
+    out(2, "int countPosition = buffer.position();");
+    out(2, "buffer.putInt(0);");
+    out(2, "int count = 0;");
+    out(2, "while (count < queued) {");
+    out(3, "int event = mMailbox.get((head + count) & (MAILBOX_CAPACITY - 1)) - 1;");
+    out(3, "if (event == NONE) {");
+    out(4, "break;");
+    out(3, "}");
+    out(3, "buffer.putInt(event);");
+    out(3, "count++;");
+    out(2, "}");
+    out(2, "buffer.putInt(countPosition, count);");
+    out(1, "}\n");
+
+    out(1, "private void restoreMailbox(java.nio.ByteBuffer buffer) {");
+    out(2, "int count = buffer.getInt();");
+    out(2, "if (count < 0 || count > MAILBOX_CAPACITY) {");
+    out(3, "throw new StateException(\"Queued event count out of range: \"+count);");
+    out(2, "}");
+    out(2, "int position = buffer.position();");
+    out(2, "for (int i = 0; i < count; i++) {");
+    out(3, "int event = buffer.getInt(position + 4 * i);");
+    out(3, "if (event < 0 || event >= EVENT_COUNT) {");
+    out(4, "throw new EventException(\"Unknown Event: \"+event);");
+    out(3, "}");
+    out(2, "}");
+    out(2, "int head = mMailboxHead;");
+    out(2, "for (int i = head, tail = mMailboxTail.get(); i != tail; i++) {");
+    out(3, "mMailbox.set(i & (MAILBOX_CAPACITY - 1), 0);");
+    out(2, "}");
+    out(2, "for (int i = 0; i < count; i++) {");
+    out(3, "mMailbox.set((head + i) & (MAILBOX_CAPACITY - 1), buffer.getInt() + 1);");
+    out(2, "}");
+    out(2, "mMailboxTail.set(head + count);");
+    out(1, "}\n");
+  }
+
+  /**
+   * Generate the fields that count transitions and time states and actions,
+   * the methods that update them, and snapshotMetrics(), which copies them
+   * into a Metrics object. Transitions are numbered in document order, and
+   * base transitions are counted once whichever state takes them. Action times
+   * are kept in a histogram of 64 buckets, where bucket i counts the actions
+   * that took from 2^(i-1) to 2^i - 1 nanoseconds. A Fleet is not metered.
+   */
+  private void outputMetrics() {
+    String[] names = new String[mDoc.getTransitionCount()];
+    for (State state : mDoc.getStates()) {
+      for (Transition transition : state.mTransitions) {
+        names[transition.mIndex] = state.mId + "." + transition.mEvent;
+      }
+    }
+    out(1, "// Metrics are updated by the thread pushing events, without synchronization.");
+    out(1, "// snapshotMetrics() must be called by that thread, or while no event is pushed.");
+    out(1, "public static final int TRANSITION_COUNT = " + names.length + ";");
+    // The names are split from string constants, which keeps <clinit> small for
+    // any number of transitions. No constant may be longer than 65535 bytes.
+    out(1, "// the state declaring each transition and its event, indexed by transition");
+    if (names.length == 0) {
+      out(1, "public static final String[] TRANSITIONS = {};");
+    } else {
+      out(1, "public static final String[] TRANSITIONS = new StringBuilder()");
+      StringBuilder line = new StringBuilder();
+      int constantLength = 0;
+      for (int i = 0; i < names.length; i++) {
+        boolean last = i + 1 == names.length;
+        line.append(names[i]).append(last ? "" : " ");
+        boolean endConstant = last || constantLength + line.length() > 60000;
+        if (endConstant || line.length() > 80) {
+          out(3, (constantLength == 0 ? ".append(\"" : "    + \"") + line + "\""
+              + (endConstant ? ")" : ""));
+          constantLength = endConstant ? 0 : constantLength + line.length();
+          line.setLength(0);
+        }
+      }
+      out(3, ".toString().split(\" \");");
+    }
+    out(1, "private final long[] mTransitionCounts = new long[TRANSITION_COUNT];");
+    out(1, "private final long[] mStateNanos = new long[STATE_COUNT];");
+    out(1, "private final long[] mActionNanos = new long[64];");
+    out(1, "private int mMeteredState = NONE;");
+    out(1, "private long mStateEnteredNanos;");
+    out(1, "private long mActionStartNanos;");
+    out("");
+
+    out(1, "public static final class Metrics {");
+    out(2, "private final long[] mTransitionCounts;");
+    out(2, "private final long[] mStateNanos;");
+    out(2, "private final long[] mActionNanos;");
+    out("");
+    out(2, "private Metrics(long[] transitionCounts, long[] stateNanos, long[] actionNanos) {");
+    out(3, "mTransitionCounts = transitionCounts;");
+    out(3, "mStateNanos = stateNanos;");
+    out(3, "mActionNanos = actionNanos;");
+    out(2, "}\n");
+    out(2, "/** @return the number of times the transition was taken */");
+    out(2, "public long getTransitionCount(int transition) {");
+    out(3, "return mTransitionCounts[transition];");
+    out(2, "}\n");
+    out(2, "/** @return the nanoseconds spent in the state, including the current visit */");
+    out(2, "public long getStateNanos(State state) {");
+    out(3, "return mStateNanos[state.ordinal()];");
+    out(2, "}\n");
+    out(2, "/** @return the number of actions performed */");
+    out(2, "public long getActionCount() {");
+    out(3, "long count = 0;");
+    out(3, "for (long bucket : mActionNanos) {");
+    out(4, "count += bucket;");
+    out(3, "}");
+    out(3, "return count;");
+    out(2, "}\n");
+    out(2, "/**");
+    out(2, " * @return an upper bound, less than twice the exact value, on the nanoseconds");
+    out(2, " *         taken by the given percentage of actions, or 0 for no actions");
+    out(2, " */");
+    out(2, "public long getActionNanosAtPercentile(double percentile) {");
+    out(3, "long rank = (long) Math.ceil(percentile / 100 * getActionCount());");
+    out(3, "long count = 0;");
+    out(3, "for (int i = 0; i < mActionNanos.length; i++) {");
+    out(4, "count += mActionNanos[i];");
+    out(4, "if (count > 0 && count >= rank) {");
+    out(5, "return (1L << i) - 1;");
+    out(4, "}");
+    out(3, "}");
+    out(3, "return 0;");
+    out(2, "}");
+    out(1, "}\n");
+
+    out(1, "public Metrics snapshotMetrics() {");
+    out(2, "long[] stateNanos = mStateNanos.clone();");
+    out(2, "int state = mMeteredState;");
+    out(2, "if (state != NONE) {");
+    out(3, "stateNanos[state] += System.nanoTime() - mStateEnteredNanos;");
+    out(2, "}");
+    out(2, "return new Metrics(mTransitionCounts.clone(), stateNanos, mActionNanos.clone());");
+    out(1, "}\n");
+    out(1, "private void meterState(int state) {");
+    out(2, "long now = System.nanoTime();");
+    out(2, "if (mMeteredState != NONE) {");
+    out(3, "mStateNanos[mMeteredState] += now - mStateEnteredNanos;");
+    out(2, "}");
+    out(2, "mMeteredState = state;");
+    out(2, "mStateEnteredNanos = now;");
+    out(1, "}\n");
+    out(1, "private void startAction() {");
+    out(2, "mActionStartNanos = System.nanoTime();");
+    out(1, "}\n");
+    out(1, "private void endAction() {");
+    out(2, "long nanos = Math.max(0, System.nanoTime() - mActionStartNanos);");
+    out(2, "mActionNanos[64 - Long.numberOfLeadingZeros(nanos)]++;");
+    out(1, "}\n");
+  }
+
+  /**
+   * @return the narrowest primitive type that holds every state ordinal and NONE
+   */
+  private String fleetColumnType() {
+    if (mDoc.getStates().size() <= Byte.MAX_VALUE) {
+      return "byte";
+    } else if (mDoc.getStates().size() <= Short.MAX_VALUE) {
+      return "short";
+    }
+    return "int";
+  }
+
+  /**
+   * Generate the nested Fleet class, which runs many machines of this type
+   * from a single column of state ordinals indexed by machine id. It shares
+   * the enums, exceptions and dispatch tables of the enclosing class, but not
+   * its concurrency mode or mailbox.
+   */
+  private void outputFleet() {
+    String column = fleetColumnType();
+    out("");
+    out(1, "// A Fleet holds the state of many machines in one column indexed by machine id.");
+    out(1, "// Like a single machine, a Fleet must only be used by one thread at a time, and");
+    out(1, "// actions must not push events to any machine of the fleet.");
+    out(1, "public abstract static class Fleet {");
+    mFleet = true;
+    out(1, "private final " + column + "[] mStates;");
+    out(1, "private int mPushingEvent = NONE;");
+    out(1, "private DebugLogger mDebugLogger;");
+    out("");
+    out(1, "public Fleet(int size) {");
+    out(2, "mStates = new " + column + "[size];");
+    out(2, "java.util.Arrays.fill(mStates, (" + column + ") NONE);");
+    out(1, "}\n");
+    out(1, "public final int size() {");
+    out(2, "return mStates.length;");
+    out(1, "}\n");
+    outputMachineMethods();
+    mFleet = false;
+    out(1, "}");
   }
 
 
@@ -252,6 +1346,9 @@ public class Scxml2Java {
 
 
   /**
+   * Translate one file to standard output. {@link ScxmlBatch} translates many
+   * files in one JVM.
+   *
    * @param args The scxml input file
    * @throws IOException
    * @throws ParseException
@@ -0,0 +1,586 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import com.google.common.labs.fsm.ScxmlDoc.ParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The ScxmlBatch translates many scxml files in one JVM. Each input is a
+ * file, a directory, which is searched for .xml and .scxml files, or a glob
+ * pattern such as fsm/**.xml. The files are parsed and translated in parallel
+ * on a ForkJoinPool, and the output of each file is written into a tree under
+ * the output directory that mirrors the path of the file under the directory
+ * or glob it was found by. The .java file of a machine is named after its
+ * class, and the .dot file after the scxml file.
+ *
+ * An output file is only written when its content changes, so that
+ * incremental builds downstream are not triggered by an unchanged machine.
+ * With a cache file, a file is not even parsed when a SHA-256 hash of its
+ * content, the output directories and the class files of the translators
+ * matches the hash recorded in the cache when its outputs were written, and
+ * the outputs still exist.
+ *
+ * For example:
+ *
+ *  $ java com.google.common.labs.fsm.ScxmlBatch -java gen/java -dot gen/dot \
+ *      -cache gen/scxml.cache fsm
+ *
+ * prints the time taken by each file, and exits with status 1 if any file
+ * could not be translated.
+ */
+public class ScxmlBatch {
+
+  private Path mJavaDir;
+  private Path mDotDir;
+  private int mThreads = Runtime.getRuntime().availableProcessors();
+  private Path mCacheFile;
+  // the input that each output file is written from, while translate() runs
+  private final ConcurrentMap<Path, Path> mOutputs = new ConcurrentHashMap<Path, Path>();
+  // the cache entry of each input by absolute path, while translate() runs
+  private final ConcurrentMap<Path, CacheEntry> mCache = new ConcurrentHashMap<Path, CacheEntry>();
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  // the classes whose code decides the output, with their nested classes
+  private static final Class<?>[] TRANSLATOR_CLASSES = {
+      ScxmlDoc.class, Scxml2Java.class, Scxml2Dot.class, DispatchTables.class, IndentWriter.class};
+  private static byte[] sTranslatorHash;
+
+  /**
+   * The outcome of translating one scxml file
+   */
+  public static class Result {
+    private final Path mInput;
+    private Path mJavaOutput;
+    private Path mDotOutput;
+    private long mParseNanos;
+    private long mJavaNanos;
+    private long mDotNanos;
+    private boolean mCached;
+    private boolean mJavaWritten;
+    private boolean mDotWritten;
+    private Exception mError;
+
+    private Result(Path input) {
+      mInput = input;
+    }
+
+    public Path getInput() {
+      return mInput;
+    }
+
+    /**
+     * @return the .java file written, or null if none was
+     */
+    public Path getJavaOutput() {
+      return mJavaOutput;
+    }
+
+    /**
+     * @return the .dot file written, or null if none was
+     */
+    public Path getDotOutput() {
+      return mDotOutput;
+    }
+
+    public long getParseNanos() {
+      return mParseNanos;
+    }
+
+    public long getJavaNanos() {
+      return mJavaNanos;
+    }
+
+    public long getDotNanos() {
+      return mDotNanos;
+    }
+
+    /**
+     * @return true if the file was skipped without being parsed, because the
+     *         cache shows its outputs are up to date
+     */
+    public boolean isCached() {
+      return mCached;
+    }
+
+    /**
+     * @return true if the .java file was written, false if there was none or
+     *         its content was unchanged
+     */
+    public boolean isJavaWritten() {
+      return mJavaWritten;
+    }
+
+    /**
+     * @return true if the .dot file was written, false if there was none or
+     *         its content was unchanged
+     */
+    public boolean isDotWritten() {
+      return mDotWritten;
+    }
+
+    /**
+     * @return the exception that stopped the translation, or null if the
+     *         file was translated
+     */
+    public Exception getError() {
+      return mError;
+    }
+  }
+
+  /**
+   * An scxml file, and the directory its output path is relative to
+   */
+  private static class Input {
+    final Path mRoot;
+    final Path mFile;
+
+    Input(Path root, Path file) {
+      mRoot = root;
+      mFile = file;
+    }
+  }
+
+  /**
+   * The hash of an input when its outputs were last written, and the outputs
+   */
+  private static class CacheEntry {
+    final String mHash;
+    final Path mJavaOutput;
+    final Path mDotOutput;
+
+    CacheEntry(String hash, Path javaOutput, Path dotOutput) {
+      mHash = hash;
+      mJavaOutput = javaOutput;
+      mDotOutput = dotOutput;
+    }
+  }
+
+  /**
+   * @param dir the root of the tree of generated .java files, or null for none
+   */
+  public ScxmlBatch setJavaDir(Path dir) {
+    mJavaDir = dir;
+    return this;
+  }
+
+  /**
+   * @param dir the root of the tree of generated .dot files, or null for none
+   */
+  public ScxmlBatch setDotDir(Path dir) {
+    mDotDir = dir;
+    return this;
+  }
+
+  /**
+   * @param threads the parallelism of the pool, which defaults to the number
+   *        of processors
+   */
+  public ScxmlBatch setThreads(int threads) {
+    mThreads = threads;
+    return this;
+  }
+
+  /**
+   * @param file the cache of the hashes of inputs, which is read before and
+   *        written after translate(), or null for none
+   */
+  public ScxmlBatch setCacheFile(Path file) {
+    mCacheFile = file;
+    return this;
+  }
+
+  /**
+   * @param args -java and -dot, each followed by an output directory,
+   *        -threads followed by a count and -cache followed by a file, then
+   *        the inputs
+   * @throws IOException if an input can not be searched
+   */
+  public static void main(String[] args) throws IOException {
+    ScxmlBatch batch = new ScxmlBatch();
+    List<String> inputs = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("-")) {
+        inputs.add(args[i]);
+        continue;
+      }
+      if (i + 1 == args.length) {
+        throw new IllegalArgumentException("no value for " + args[i]);
+      }
+      String value = args[++i];
+      if (args[i - 1].equals("-java")) {
+        batch.setJavaDir(Paths.get(value));
+      } else if (args[i - 1].equals("-dot")) {
+        batch.setDotDir(Paths.get(value));
+      } else if (args[i - 1].equals("-threads")) {
+        batch.setThreads(Integer.parseInt(value));
+      } else if (args[i - 1].equals("-cache")) {
+        batch.setCacheFile(Paths.get(value));
+      } else {
+        throw new IllegalArgumentException("unknown option " + args[i - 1]);
+      }
+    }
+
+    long start = System.nanoTime();
+    List<Result> results = batch.translate(inputs);
+    long nanos = System.nanoTime() - start;
+    int failed = 0;
+    for (Result result : results) {
+      if (result.mError != null) {
+        failed++;
+        System.out.println("FAILED " + result.mInput + ": " + result.mError);
+        continue;
+      }
+      if (result.mCached) {
+        System.out.println("   unchanged  " + result.mInput);
+        continue;
+      }
+      System.out.println(String.format("%8.2f ms parse %8.2f ms java %8.2f ms dot  %s",
+          result.mParseNanos / 1e6, result.mJavaNanos / 1e6, result.mDotNanos / 1e6,
+          result.mInput));
+    }
+    System.out.println(String.format("%d files, %d failed, in %.2f ms on %d threads",
+        results.size(), failed, nanos / 1e6, batch.mThreads));
+    if (failed > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Translate every scxml file found by the inputs. A file that can not be
+   * parsed or written does not stop the others.
+   *
+   * @param inputs files, directories or glob patterns
+   * @return the result of each file found, in the order of the inputs, and of
+   *         the paths of the files found by each input
+   * @throws IllegalArgumentException if there is no output directory or input
+   * @throws IOException if an input can not be searched
+   */
+  public List<Result> translate(List<String> inputs) throws IOException {
+    if (mJavaDir == null && mDotDir == null) {
+      throw new IllegalArgumentException("no output directory for .java or .dot files");
+    }
+    if (inputs.isEmpty()) {
+      throw new IllegalArgumentException("no input files");
+    }
+    List<TranslateTask> tasks = new ArrayList<TranslateTask>();
+    for (String input : inputs) {
+      for (Input file : find(input)) {
+        tasks.add(new TranslateTask(file));
+      }
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(mThreads);
+    List<Result> results = new ArrayList<Result>();
+    mOutputs.clear();
+    mCache.clear();
+    try {
+      if (mCacheFile != null) {
+        readCache();
+      }
+      for (TranslateTask task : tasks) {
+        pool.execute(task);
+      }
+      for (TranslateTask task : tasks) {
+        results.add(task.join());
+      }
+      if (mCacheFile != null) {
+        writeCache();
+      }
+    } finally {
+      pool.shutdown();
+      mOutputs.clear();
+      mCache.clear();
+    }
+    return results;
+  }
+
+  /**
+   * Read the cache file, if there is one. Each line holds the hash, the
+   * .java and .dot outputs, which are empty for none, and the absolute path of
+   * the input, separated by tabs.
+   */
+  private void readCache() throws IOException {
+    if (!Files.exists(mCacheFile)) {
+      return;
+    }
+    for (String line : Files.readAllLines(mCacheFile, UTF_8)) {
+      String[] fields = line.split("\t", -1);
+      if (fields.length != 4) {
+        throw new IOException("bad line in " + mCacheFile + ": " + line);
+      }
+      mCache.put(Paths.get(fields[3]), new CacheEntry(fields[0],
+          fields[1].isEmpty() ? null : Paths.get(fields[1]),
+          fields[2].isEmpty() ? null : Paths.get(fields[2])));
+    }
+  }
+
+  /**
+   * Write the entries of the inputs of this and earlier batches, sorted by
+   * input, unless the cache file already holds them
+   */
+  private void writeCache() throws IOException {
+    List<Path> inputs = new ArrayList<Path>(mCache.keySet());
+    Collections.sort(inputs);
+    StringBuilder lines = new StringBuilder();
+    for (Path input : inputs) {
+      CacheEntry entry = mCache.get(input);
+      lines.append(entry.mHash).append('\t')
+          .append(entry.mJavaOutput == null ? "" : entry.mJavaOutput).append('\t')
+          .append(entry.mDotOutput == null ? "" : entry.mDotOutput).append('\t')
+          .append(input).append('\n');
+    }
+    writeIfChanged(mCacheFile, lines.toString());
+  }
+
+  /**
+   * @return the hash of the content of an input and everything else that
+   *         decides its outputs
+   */
+  private String hash(Path dir, byte[] scxml) {
+    MessageDigest digest = newDigest();
+    digest.update(translatorHash());
+    String options = mJavaDir + "\0" + mDotDir + "\0" + dir + "\0";
+    digest.update(options.getBytes(UTF_8));
+    return new BigInteger(1, digest.digest(scxml)).toString(16);
+  }
+
+  /**
+   * @return a hash of the class files of the translators, or random bytes
+   *         that never match an earlier run if a class file can not be read
+   */
+  private static synchronized byte[] translatorHash() {
+    if (sTranslatorHash == null) {
+      MessageDigest digest = newDigest();
+      try {
+        List<Class<?>> classes = new ArrayList<Class<?>>(Arrays.asList(TRANSLATOR_CLASSES));
+        for (int i = 0; i < classes.size(); i++) {
+          Class<?> c = classes.get(i);
+          classes.addAll(Arrays.asList(c.getDeclaredClasses()));
+          InputStream in = c.getResourceAsStream(
+              c.getName().substring(c.getName().lastIndexOf('.') + 1) + ".class");
+          if (in == null) {
+            throw new IOException("no class file for " + c.getName());
+          }
+          try {
+            byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+              digest.update(buffer, 0, n);
+            }
+          } finally {
+            in.close();
+          }
+        }
+        sTranslatorHash = digest.digest();
+      } catch (IOException e) {
+        sTranslatorHash = new byte[32];
+        new SecureRandom().nextBytes(sTranslatorHash);
+      }
+    }
+    return sTranslatorHash;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform is required to support SHA-256
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return the scxml files found by an input, sorted by path
+   */
+  private static List<Input> find(String input) throws IOException {
+    final List<Input> found = new ArrayList<Input>();
+    int glob = firstGlobCharacter(input);
+    if (glob < 0) {
+      final Path root = Paths.get(input);
+      if (!Files.isDirectory(root)) {
+        if (!Files.exists(root)) {
+          throw new IOException("no such file " + input);
+        }
+        Path parent = root.toAbsolutePath().getParent();
+        found.add(new Input(parent, root));
+        return found;
+      }
+      Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+          String name = file.getFileName().toString();
+          if (attributes.isRegularFile() && (name.endsWith(".xml") || name.endsWith(".scxml"))) {
+            found.add(new Input(root, file));
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } else {
+      // the files matching a glob are searched for below the directory that
+      // precedes its first special character
+      int slash = input.lastIndexOf('/', glob);
+      final Path root = Paths.get(slash < 0 ? "." : input.substring(0, slash + 1));
+      final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+      if (Files.isDirectory(root)) {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+            if (attributes.isRegularFile() && matcher.matches(file.normalize())) {
+              found.add(new Input(root, file));
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+      }
+    }
+    Collections.sort(found, new Comparator<Input>() {
+      @Override
+      public int compare(Input a, Input b) {
+        return a.mFile.compareTo(b.mFile);
+      }
+    });
+    return found;
+  }
+
+  private static int firstGlobCharacter(String input) {
+    for (int i = 0; i < input.length(); i++) {
+      if ("*?[{".indexOf(input.charAt(i)) >= 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Parses and translates one file on a thread of the pool
+   */
+  private class TranslateTask extends RecursiveTask<Result> {
+    private final Input mInput;
+
+    TranslateTask(Input input) {
+      mInput = input;
+    }
+
+    @Override
+    protected Result compute() {
+      Result result = new Result(mInput.mFile);
+      Path input = mInput.mFile.toAbsolutePath();
+      try {
+        long start = System.nanoTime();
+        Path dir = mInput.mRoot.toAbsolutePath().relativize(input.getParent());
+        byte[] scxml = Files.readAllBytes(mInput.mFile);
+        String hash = hash(dir, scxml);
+        CacheEntry entry = mCache.get(input);
+        if (entry != null && entry.mHash.equals(hash) && isOutput(entry.mJavaOutput)
+            && isOutput(entry.mDotOutput)) {
+          result.mCached = true;
+          result.mJavaOutput = entry.mJavaOutput;
+          result.mDotOutput = entry.mDotOutput;
+          return result;
+        }
+        mCache.remove(input);
+        ScxmlDoc doc = ScxmlDoc.createFrom(ByteBuffer.wrap(scxml));
+        result.mParseNanos = System.nanoTime() - start;
+
+        if (mJavaDir != null) {
+          start = System.nanoTime();
+          Path java = mJavaDir.resolve(dir).resolve(doc.getClassName() + ".java");
+          claimOutput(java, mInput.mFile);
+          StringWriter writer = new StringWriter();
+          Scxml2Java.translatorForScxml(doc).outputJava(writer);
+          result.mJavaWritten = writeIfChanged(java, writer.toString());
+          result.mJavaOutput = java;
+          result.mJavaNanos = System.nanoTime() - start;
+        }
+        if (mDotDir != null) {
+          start = System.nanoTime();
+          String name = mInput.mFile.getFileName().toString();
+          if (name.lastIndexOf('.') > 0) {
+            name = name.substring(0, name.lastIndexOf('.'));
+          }
+          Path dot = mDotDir.resolve(dir).resolve(name + ".dot");
+          claimOutput(dot, mInput.mFile);
+          StringWriter writer = new StringWriter();
+          Scxml2Dot.translatorForScxml(doc).outputDot(writer);
+          result.mDotWritten = writeIfChanged(dot, writer.toString());
+          result.mDotOutput = dot;
+          result.mDotNanos = System.nanoTime() - start;
+        }
+        mCache.put(input, new CacheEntry(hash, result.mJavaOutput, result.mDotOutput));
+      } catch (ParseException e) {
+        result.mError = e;
+      } catch (IOException e) {
+        result.mError = e;
+      } catch (RuntimeException e) {
+        result.mError = e;
+      }
+      return result;
+    }
+
+    /**
+     * @return true if the output is not generated, or is claimed by this input
+     *         and exists
+     */
+    private boolean isOutput(Path output) throws IOException {
+      if (output == null) {
+        return true;
+      }
+      claimOutput(output, mInput.mFile);
+      return Files.exists(output);
+    }
+  }
+
+  /**
+   * @throws IOException if another input of the batch has the same output
+   */
+  private void claimOutput(Path path, Path input) throws IOException {
+    Path other = mOutputs.putIfAbsent(path.toAbsolutePath(), input);
+    if (other != null && !other.equals(input)) {
+      throw new IOException(path + " is also written from " + other);
+    }
+  }
+
+  /**
+   * Write a file, unless it already holds the content
+   *
+   * @return true if the file was written
+   */
+  private static boolean writeIfChanged(Path path, String content) throws IOException {
+    byte[] bytes = content.getBytes(UTF_8);
+    if (Files.exists(path) && Files.size(path) == bytes.length
+        && Arrays.equals(bytes, Files.readAllBytes(path))) {
+      return false;
+    }
+    if (path.getParent() != null) {
+      Files.createDirectories(path.getParent());
+    }
+    Files.write(path, bytes);
+    return true;
+  }
+}
@@ -0,0 +1,230 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import com.google.common.labs.fsm.ScxmlDoc.ParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * The ScxmlCompiler turns scxml into a loaded abstract state machine class at
+ * runtime, without touching the filesystem. The source generated by
+ * {@link Scxml2Java} is compiled by the system Java compiler into memory, and
+ * each machine is defined by a class loader of its own, so machines with the
+ * same class name do not collide.
+ *
+ * Compiled classes are cached by a SHA-256 hash of the scxml, so compiling an
+ * unchanged definition again returns the class already loaded. The cache holds
+ * every class it returns, so cached classes are not unloaded while the
+ * compiler is reachable; a class from compile(ScxmlDoc), which skips the
+ * cache, can be unloaded once it and its instances are unreferenced.
+ */
+public class ScxmlCompiler {
+
+  private final JavaCompiler mCompiler;
+  private final ClassLoader mParent;
+  private final ConcurrentMap<String, Class<?>> mCache =
+      new ConcurrentHashMap<String, Class<?>>();
+
+  /**
+   * Exception class that indicates generated source that did not compile
+   */
+  public class CompileException extends Exception {
+    public CompileException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Compiles into class loaders that delegate to the loader of this class
+   */
+  public ScxmlCompiler() {
+    this(ScxmlCompiler.class.getClassLoader());
+  }
+
+  /**
+   * @param parent the class loader that each compiled machine's loader delegates to
+   * @throws IllegalStateException if the runtime has no system Java compiler
+   */
+  public ScxmlCompiler(ClassLoader parent) {
+    mCompiler = ToolProvider.getSystemJavaCompiler();
+    if (mCompiler == null) {
+      throw new IllegalStateException("no system Java compiler is available");
+    }
+    mParent = parent;
+  }
+
+  public Class<?> compile(Path path) throws IOException, ParseException, CompileException {
+    return compile(Files.readAllBytes(path));
+  }
+
+  /**
+   * @param scxml the bytes of an scxml document
+   * @return the generated abstract class, loaded in a class loader of its own
+   * @throws ParseException
+   * @throws CompileException
+   */
+  public Class<?> compile(byte[] scxml) throws ParseException, CompileException {
+    String key = hash(scxml);
+    Class<?> cached = mCache.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    Class<?> compiled = compile(ScxmlDoc.createFrom(ByteBuffer.wrap(scxml)));
+    cached = mCache.putIfAbsent(key, compiled);
+    return cached == null ? compiled : cached;
+  }
+
+  /**
+   * Compile a parsed document, bypassing the cache
+   *
+   * @return the generated abstract class, loaded in a class loader of its own
+   * @throws CompileException
+   */
+  public Class<?> compile(ScxmlDoc doc) throws CompileException {
+    String className = doc.getPackageName() == null
+        ? doc.getClassName() : doc.getPackageName() + "." + doc.getClassName();
+    StringWriter source = new StringWriter();
+    try {
+      Scxml2Java.translatorForScxml(doc).outputJava(source);
+    } catch (IOException e) {
+      // a StringWriter does not throw
+      throw new AssertionError(e);
+    }
+
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+    MemoryFileManager fileManager =
+        new MemoryFileManager(mCompiler.getStandardFileManager(diagnostics, null, null));
+    boolean success;
+    try {
+      success = mCompiler.getTask(null, fileManager, diagnostics,
+          Arrays.asList("-nowarn"), null,
+          Arrays.asList(new SourceFile(className, source.toString()))).call();
+    } finally {
+      try {
+        fileManager.close();
+      } catch (IOException e) {
+        // nothing was written through the standard file manager
+      }
+    }
+    if (!success) {
+      StringBuilder message = new StringBuilder("generated " + className + " did not compile");
+      for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+        message.append("\n").append(d.getLineNumber()).append(": ").append(d.getMessage(null));
+      }
+      throw new CompileException(message.toString());
+    }
+
+    try {
+      Map<String, byte[]> classFiles = new HashMap<String, byte[]>();
+      for (Map.Entry<String, ClassFile> entry : fileManager.mClassFiles.entrySet()) {
+        classFiles.put(entry.getKey(), entry.getValue().mBytes.toByteArray());
+      }
+      return new MemoryClassLoader(mParent, classFiles).loadClass(className);
+    } catch (ClassNotFoundException e) {
+      throw new CompileException("compiler did not produce " + className);
+    }
+  }
+
+  /**
+   * @return the number of compiled classes held by the cache
+   */
+  public int getCacheSize() {
+    return mCache.size();
+  }
+
+  public void clearCache() {
+    mCache.clear();
+  }
+
+  private static String hash(byte[] bytes) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return new BigInteger(1, digest.digest(bytes)).toString(16);
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform is required to support SHA-256
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Generated source held in memory
+   */
+  private static class SourceFile extends SimpleJavaFileObject {
+    private final String mCode;
+
+    SourceFile(String className, String code) {
+      super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension),
+          Kind.SOURCE);
+      mCode = code;
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+      return mCode;
+    }
+  }
+
+  /**
+   * Class file written by the compiler into memory
+   */
+  private static class ClassFile extends SimpleJavaFileObject {
+    private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+
+    ClassFile(String className) {
+      super(URI.create("bytes:///" + className.replace('.', '/') + Kind.CLASS.extension),
+          Kind.CLASS);
+    }
+
+    @Override
+    public OutputStream openOutputStream() {
+      return mBytes;
+    }
+  }
+
+  /**
+   * Keeps every class file the compiler writes, by binary class name
+   */
+  private static class MemoryFileManager
+      extends ForwardingJavaFileManager<StandardJavaFileManager> {
+    final Map<String, ClassFile> mClassFiles = new HashMap<String, ClassFile>();
+
+    MemoryFileManager(StandardJavaFileManager fileManager) {
+      super(fileManager);
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(
+        Location location, String className, Kind kind, FileObject sibling) {
+      ClassFile file = new ClassFile(className);
+      mClassFiles.put(className, file);
+      return file;
+    }
+  }
+}
@@ -9,16 +9,37 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * The ScxmlDoc class encapsulates the parameters of a finite state machine as
@@ -33,18 +54,91 @@ public class ScxmlDoc {
   private String mClassName;
   private String mPackageName;
   private String mInitialStateName;
+  private String mBaseStateName;
   private State mBaseState;
   private final List<State> mStates = new ArrayList<State>();
   protected final List<State> mTerminalStates = new ArrayList<State>();
-  protected final Set<String> mGlobalActions = new HashSet<String>();
-  protected final Set<String> mEvents = new HashSet<String>();
+  // events and actions keep declaration order, which fixes their generated ordinals
+  protected final Set<String> mGlobalActions = new LinkedHashSet<String>();
+  protected final Set<String> mEvents = new LinkedHashSet<String>();
   protected final List<String> mDeclaredStateNames = new ArrayList<String>();
-  protected final Set<String> mTargets = new HashSet<String>();
+  protected final Set<String> mTargets = new LinkedHashSet<String>();
+  // symbol table built while parsing: names to states and to declaration-order indices
+  private final Map<String, State> mStatesById = new HashMap<String, State>();
+  private final Map<String, Integer> mStateIndex = new HashMap<String, Integer>();
+  private final Map<String, Integer> mEventIndex = new HashMap<String, Integer>();
+  private final Map<String, Integer> mActionIndex = new HashMap<String, Integer>();
   protected boolean mDebug;
+  private boolean mFleet;
+  private boolean mMetrics;
+  // the number of transitions parsed so far, which is the index of the next one
+  private int mTransitionCount;
+  private Dispatch mDispatch;
+  private Unhandled mUnhandled;
+  private Concurrency mConcurrency;
+  private int mMailboxCapacity;
   private static final Set<String> VALID_ELEMENTS =
       new HashSet<String>(Arrays.asList("scxml", "state", "transition", "action"));
   private static final Set<String> VALID_ATTRIBUTES = new HashSet<String>(Arrays.asList(
-      "xmlns", "version", "initial", "base", "debug", "name", "id", "event", "action", "target"));
+      "xmlns", "version", "initial", "base", "debug", "dispatch", "concurrency", "mailbox", "fleet",
+      "metrics", "unhandled", "name", "id", "event", "action", "target"));
+  private static final int MAX_MAILBOX_CAPACITY = 1 << 30;
+  // the first bytes of a binary document, "SCXB"
+  private static final byte[] BINARY_MAGIC = {'S', 'C', 'X', 'B'};
+  // the version of the binary format written by writeBinary()
+  private static final int BINARY_VERSION = 1;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * XML parser used to read an scxml file
+   */
+  public enum Parser {
+    /** single pass StAX parser that builds states and transitions as it reads (default) */
+    STREAMING,
+    /** W3C DOM parser that builds the whole document tree first, kept for compatibility */
+    DOM,
+  }
+
+  /**
+   * Strategy used by generated code to select a transition for an event, as
+   * chosen by the dispatch attribute of the scxml element
+   */
+  public enum Dispatch {
+    /** nested switch statements on the current state and the event (default) */
+    SWITCH,
+    /** precomputed next-state and action tables indexed by state and event ordinals */
+    TABLE,
+    /** a virtual call to a singleton handler object for the current state */
+    STATE,
+  }
+
+  /**
+   * Behavior of generated pushEvent() when the current state does not handle
+   * the event, as chosen by the unhandled attribute of the scxml element
+   */
+  public enum Unhandled {
+    /** throw a new StateException naming the state and event (default) */
+    THROW_NEW,
+    /** throw a preallocated StateException that has no stack trace */
+    THROW,
+    /** return false */
+    RETURN_FALSE,
+    /** return true as if the event were handled by a transition with no effect */
+    IGNORE,
+    /** call the abstract onUnhandledEvent() method, then return false */
+    CALLBACK,
+  }
+
+  /**
+   * Thread safety of generated code, as chosen by the concurrency attribute of
+   * the scxml element
+   */
+  public enum Concurrency {
+    /** a machine must only be used by one thread at a time (default) */
+    NONE,
+    /** events may be pushed from any thread; transitions are claimed by compare-and-set */
+    ATOMIC,
+  }
 
   /**
    * Exception class that indicates an error in parsing the XML
@@ -60,45 +154,54 @@ public class ScxmlDoc {
     final String mEvent;
     String mTarget;
     List<String> mActions = new ArrayList<String>();
+    // the position of the transition in the document, counting from 0
+    final int mIndex = mTransitionCount++;
 
 
-    private void addActionFromElement(Element e) throws ParseException {
-      String id = e.getAttribute("id");
+    private void addAction(String id) throws ParseException {
       if (id.isEmpty()) {
         throw new ParseException("All actions must have an id attribute");
       }
       mActions.add(id);
+      addSymbol(id, mGlobalActions, mActionIndex);
     }
 
     /**
-     * @param e the element declaring the transition
+     * @param event the value of the event attribute
+     * @param target the value of the target attribute
+     * @param action the value of the action attribute, or empty if absent
      * @throws ParseException
      */
-    public Transition(Element e) throws ParseException {
-
-      mEvent = e.getAttribute("event");
+    Transition(String event, String target, String action) throws ParseException {
+      mEvent = event;
       if (mEvent.isEmpty()) {
         throw new ParseException("All transitions must be triggered by an event");
       }
 
-      mEvents.add(mEvent);
-      mTarget = e.getAttribute("target");
+      addSymbol(mEvent, mEvents, mEventIndex);
+      mTarget = target;
       if (mTarget.isEmpty()) {
         throw new ParseException("All transitions must have a target");
       }
       mTargets.add(mTarget);
 
-      String action = e.getAttribute("action");
       if (!action.isEmpty()) {
-        mActions.add(action);
+        addAction(action);
       }
+    }
+
+    /**
+     * @param e the element declaring the transition
+     * @throws ParseException
+     */
+    public Transition(Element e) throws ParseException {
+      this(e.getAttribute("event"), e.getAttribute("target"), e.getAttribute("action"));
       List<Element> actionElements = getElements(e.getElementsByTagName("action"));
       if (actionElements != null) {
         for (Element ae : actionElements) {
-          addActionFromElement(ae);
+          addAction(ae.getAttribute("id"));
         }
       }
-      mGlobalActions.addAll(mActions);
     }
 
     public String getEvent() {
@@ -113,6 +216,10 @@ public class ScxmlDoc {
       return mTarget;
     }
 
+    public int getIndex() {
+      return mIndex;
+    }
+
   }
 
   /**
@@ -123,15 +230,28 @@ public class ScxmlDoc {
     final List<Transition> mTransitions = new ArrayList<Transition>();
 
     /**
-     * @param el the scxml element for this state
+     * @param id the value of the id attribute
      * @throws ParseException
      */
-    public State(Element el) throws ParseException {
-      mId = el.getAttribute("id");
+    State(String id) throws ParseException {
+      mId = id;
       if (mId.isEmpty()) {
         throw new ParseException("Every state must have an id attribute");
       }
+      if (mStatesById.containsKey(mId)) {
+        throw new ParseException("state " + mId + " is declared more than once");
+      }
+      mStatesById.put(mId, this);
+      mStateIndex.put(mId, mDeclaredStateNames.size());
       mDeclaredStateNames.add(mId);
+    }
+
+    /**
+     * @param el the scxml element for this state
+     * @throws ParseException
+     */
+    public State(Element el) throws ParseException {
+      this(el.getAttribute("id"));
       List<Element> elements = getElements(el.getElementsByTagName("transition"));
       if (elements != null) {
         for (Element e : elements) {
@@ -154,13 +274,295 @@ public class ScxmlDoc {
 
   private ScxmlDoc() {}
 
+  private static void addSymbol(String symbol, Set<String> symbols, Map<String, Integer> index) {
+    if (symbols.add(symbol)) {
+      index.put(symbol, index.size());
+    }
+  }
+
   public static ScxmlDoc createFromFile(String filename) throws ParseException, IOException {
+    return createFromFile(filename, Parser.STREAMING);
+  }
+
+  public static ScxmlDoc createFromFile(String filename, Parser parser)
+      throws ParseException, IOException {
+    ScxmlDoc doc = new ScxmlDoc();
+    if (parser == Parser.DOM) {
+      doc.parseXmlFile(filename);
+      doc.parseDocument();
+    } else {
+      InputStream in = new BufferedInputStream(new FileInputStream(filename));
+      try {
+        doc.parseStream(in);
+      } finally {
+        in.close();
+      }
+    }
+    return doc;
+  }
+
+  /**
+   * Parses a document from a stream, which is read to its end but not closed.
+   */
+  public static ScxmlDoc createFrom(InputStream in) throws ParseException {
+    ScxmlDoc doc = new ScxmlDoc();
+    doc.parseStream(in);
+    return doc;
+  }
+
+  /**
+   * Parses a document from a reader, which is read to its end but not closed.
+   */
+  public static ScxmlDoc createFrom(Reader reader) throws ParseException {
+    ScxmlDoc doc = new ScxmlDoc();
+    doc.parseStream(reader);
+    return doc;
+  }
+
+  public static ScxmlDoc createFrom(Path path) throws ParseException, IOException {
+    InputStream in = new BufferedInputStream(Files.newInputStream(path));
+    try {
+      return createFrom(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Parses a document from the remaining bytes of a buffer, such as a memory
+   * mapped file. The position of the buffer is not changed.
+   */
+  public static ScxmlDoc createFrom(ByteBuffer buffer) throws ParseException {
+    return createFrom(new ByteBufferInputStream(buffer.duplicate()));
+  }
+
+  /**
+   * Reads a buffer without copying it to an array first
+   */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer mBuffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      mBuffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!mBuffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(len, mBuffer.remaining());
+      mBuffer.get(b, off, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return mBuffer.remaining();
+    }
+  }
+
+
+  /**
+   * Reads a document written by {@link #writeBinary} from the position of a
+   * buffer, such as a memory mapped file, and advances the position past it,
+   * so that documents written one after another can be read in turn. The
+   * document is validated like one parsed from XML.
+   *
+   * @throws ParseException if the buffer does not hold a valid binary document
+   *         of a version this class reads, in which case the position is not
+   *         changed
+   */
+  public static ScxmlDoc readBinary(ByteBuffer buffer) throws ParseException {
     ScxmlDoc doc = new ScxmlDoc();
-    doc.parseXmlFile(filename);
-    doc.parseDocument();
+    ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+    doc.parseBinary(in);
+    buffer.position(in.position());
     return doc;
   }
 
+  /**
+   * Writes the document in a compact binary form, which {@link #readBinary}
+   * loads much faster than the XML can be parsed. After the magic bytes SCXB
+   * and the format version, the binary holds a table of the distinct strings
+   * of the document, then the attributes of the scxml element, and the states
+   * with their transitions and actions in document order. Every count, length
+   * and index into the string table is an unsigned LEB128 varint.
+   *
+   * @param out destination of the document, which is flushed but not closed
+   * @throws IOException
+   */
+  public void writeBinary(OutputStream out) throws IOException {
+    Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    Map<String, String> attributes = getScxmlAttributes();
+    writeVarint(body, attributes.size());
+    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+      writeString(body, strings, attribute.getKey());
+      writeString(body, strings, attribute.getValue());
+    }
+    writeVarint(body, mStates.size());
+    for (State state : mStates) {
+      writeString(body, strings, state.mId);
+      writeVarint(body, state.mTransitions.size());
+      for (Transition transition : state.mTransitions) {
+        writeString(body, strings, transition.mEvent);
+        writeString(body, strings, transition.mTarget);
+        writeVarint(body, transition.mActions.size());
+        for (String action : transition.mActions) {
+          writeString(body, strings, action);
+        }
+      }
+    }
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    header.write(BINARY_MAGIC);
+    writeVarint(header, BINARY_VERSION);
+    writeVarint(header, strings.size());
+    for (String string : strings.keySet()) {
+      byte[] bytes = string.getBytes(UTF_8);
+      writeVarint(header, bytes.length);
+      header.write(bytes);
+    }
+    header.writeTo(out);
+    body.writeTo(out);
+    out.flush();
+  }
+
+  /**
+   * @return the attributes of the scxml element that declare the options of
+   *         the document as parsed
+   */
+  private Map<String, String> getScxmlAttributes() {
+    Map<String, String> attributes = new LinkedHashMap<String, String>();
+    attributes.put("name", mPackageName == null ? mClassName : mPackageName + "." + mClassName);
+    attributes.put("initial", mInitialStateName);
+    if (!mBaseStateName.isEmpty()) {
+      attributes.put("base", mBaseStateName);
+    }
+    if (mDebug) {
+      attributes.put("debug", "true");
+    }
+    if (mFleet) {
+      attributes.put("fleet", "true");
+    }
+    if (mMetrics) {
+      attributes.put("metrics", "true");
+    }
+    attributes.put("dispatch", mDispatch.name().toLowerCase(Locale.ENGLISH));
+    if (mUnhandled != Unhandled.THROW_NEW) {
+      attributes.put("unhandled", mUnhandled.name().toLowerCase(Locale.ENGLISH).replace('_', '-'));
+    }
+    attributes.put("concurrency", mConcurrency.name().toLowerCase(Locale.ENGLISH));
+    if (mMailboxCapacity > 0) {
+      attributes.put("mailbox", Integer.toString(mMailboxCapacity));
+    }
+    return attributes;
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static void writeString(ByteArrayOutputStream out, Map<String, Integer> strings,
+      String string) {
+    Integer index = strings.get(string);
+    if (index == null) {
+      index = strings.size();
+      strings.put(string, index);
+    }
+    writeVarint(out, index);
+  }
+
+  /**
+   * Builds states and transitions from a binary document, in the order the
+   * streaming parser builds them from XML.
+   */
+  private void parseBinary(ByteBuffer in) throws ParseException {
+    try {
+      for (byte b : BINARY_MAGIC) {
+        if (in.get() != b) {
+          throw new ParseException("not a binary scxml document");
+        }
+      }
+      int version = readVarint(in);
+      if (version != BINARY_VERSION) {
+        throw new ParseException("binary scxml version " + version + " is not "
+            + BINARY_VERSION);
+      }
+      // every string takes at least the byte of its length
+      String[] strings = new String[readCount(in, in.remaining())];
+      for (int i = 0; i < strings.length; i++) {
+        byte[] bytes = new byte[readCount(in, in.remaining())];
+        in.get(bytes);
+        strings[i] = new String(bytes, UTF_8);
+      }
+
+      Map<String, String> attributes = new HashMap<String, String>();
+      for (int i = readCount(in, in.remaining()); i > 0; i--) {
+        String name = readString(in, strings);
+        validateAttribute(name);
+        attributes.put(name, readString(in, strings));
+      }
+      parseScxmlAttributes(attributes);
+
+      for (int i = readCount(in, in.remaining()); i > 0; i--) {
+        State state = new State(readString(in, strings));
+        for (int j = readCount(in, in.remaining()); j > 0; j--) {
+          Transition transition =
+              new Transition(readString(in, strings), readString(in, strings), "");
+          for (int k = readCount(in, in.remaining()); k > 0; k--) {
+            transition.addAction(readString(in, strings));
+          }
+          state.mTransitions.add(transition);
+        }
+        addState(state);
+      }
+    } catch (BufferUnderflowException e) {
+      throw new ParseException("binary scxml document is truncated");
+    }
+    validateStates();
+  }
+
+  private int readVarint(ByteBuffer in) throws ParseException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = in.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new ParseException("binary scxml varint is too long");
+  }
+
+  /**
+   * @return a varint that must be between 0 and max, which keeps a corrupt
+   *         count from allocating more than the buffer could fill
+   */
+  private int readCount(ByteBuffer in, int max) throws ParseException {
+    int count = readVarint(in);
+    if (count < 0 || count > max) {
+      throw new ParseException("binary scxml count " + count + " is out of range");
+    }
+    return count;
+  }
+
+  private String readString(ByteBuffer in, String[] strings) throws ParseException {
+    return strings[readCount(in, strings.length - 1)];
+  }
 
   public String getInitialStateName() {
     return mInitialStateName;
@@ -185,6 +587,99 @@ public class ScxmlDoc {
     }
   }
 
+  private static XMLInputFactory newInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    // match the DOM parser, which reports xmlns declarations as plain attributes
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+    return factory;
+  }
+
+  private void parseStream(InputStream in) throws ParseException {
+    try {
+      parseStream(newInputFactory().createXMLStreamReader(in));
+    } catch (XMLStreamException xse) {
+      throw new ParseException("XMLStreamException " + xse.getMessage());
+    }
+  }
+
+  private void parseStream(Reader in) throws ParseException {
+    try {
+      parseStream(newInputFactory().createXMLStreamReader(in));
+    } catch (XMLStreamException xse) {
+      throw new ParseException("XMLStreamException " + xse.getMessage());
+    }
+  }
+
+  private void parseStream(XMLStreamReader reader) throws XMLStreamException, ParseException {
+    try {
+      parseStreamEvents(reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Builds states and transitions in one pass over the document, validating
+   * each element as it starts.
+   */
+  private void parseStreamEvents(XMLStreamReader reader)
+      throws XMLStreamException, ParseException {
+    boolean atRoot = true;
+    State state = null;
+    Transition transition = null;
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        String name = reader.getLocalName();
+        if (atRoot) {
+          if (!name.equals("scxml")) {
+            throw new ParseException("Document must be of type scxml");
+          }
+          Map<String, String> attributes = new HashMap<String, String>();
+          for (int i = 0; i < reader.getAttributeCount(); i++) {
+            validateAttribute(reader.getAttributeLocalName(i));
+            attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+          }
+          parseScxmlAttributes(attributes);
+          atRoot = false;
+          continue;
+        }
+        if (!VALID_ELEMENTS.contains(name)) {
+          throw new ParseException("element " + name + " is not accepted");
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+          validateAttribute(reader.getAttributeLocalName(i));
+        }
+        if (name.equals("state")) {
+          if (state != null) {
+            throw new ParseException("state " + state.mId + " must not contain a state");
+          }
+          state = new State(getAttribute(reader, "id"));
+        } else if (name.equals("transition") && state != null) {
+          transition = new Transition(getAttribute(reader, "event"),
+              getAttribute(reader, "target"), getAttribute(reader, "action"));
+          state.mTransitions.add(transition);
+        } else if (name.equals("action") && transition != null) {
+          transition.addAction(getAttribute(reader, "id"));
+        }
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        String name = reader.getLocalName();
+        if (name.equals("state") && state != null) {
+          addState(state);
+          state = null;
+        } else if (name.equals("transition")) {
+          transition = null;
+        }
+      }
+    }
+    validateStates();
+  }
+
+  private static String getAttribute(XMLStreamReader reader, String name) {
+    String value = reader.getAttributeValue(null, name);
+    return value == null ? "" : value;
+  }
+
   private List<Element> getElements(NodeList nl) throws ParseException {
     if ((nl == null) || (nl.getLength() == 0)) {
       return null;
@@ -199,13 +694,16 @@ public class ScxmlDoc {
     return result;
   }
 
+  private void validateAttribute(String name) throws ParseException {
+    if (!VALID_ATTRIBUTES.contains(name)) {
+      throw new ParseException("attribute " + name + " is not accepted");
+    }
+  }
+
   private void validateAttributes(Element e) throws ParseException {
     NamedNodeMap nm = e.getAttributes();
     for (int i = 0; i < nm.getLength(); i++) {
-      Node n = nm.item(i);
-      if (!VALID_ATTRIBUTES.contains(n.getNodeName())) {
-        throw new ParseException("attribute " + n.getNodeName() + " is not accepted");
-      }
+      validateAttribute(nm.item(i).getNodeName());
     }
   }
 
@@ -235,7 +733,35 @@ public class ScxmlDoc {
 
     validateElement(docEle);
 
-    String name = docEle.getAttribute("name");
+    Map<String, String> attributes = new HashMap<String, String>();
+    NamedNodeMap nm = docEle.getAttributes();
+    for (int i = 0; i < nm.getLength(); i++) {
+      attributes.put(nm.item(i).getNodeName(), nm.item(i).getNodeValue());
+    }
+    parseScxmlAttributes(attributes);
+
+    List<Element> elements = getElements(docEle.getElementsByTagName("state"));
+    if (elements != null) {
+      for (Element e : elements) {
+        if (e.getElementsByTagName("state").getLength() > 0) {
+          throw new ParseException("state " + e.getAttribute("id") + " must not contain a state");
+        }
+        addState(new State(e));
+      }
+    }
+    validateStates();
+  }
+
+  private static String getAttribute(Map<String, String> attributes, String name) {
+    String value = attributes.get(name);
+    return value == null ? "" : value;
+  }
+
+  /**
+   * Reads the options declared as attributes of the scxml element.
+   */
+  private void parseScxmlAttributes(Map<String, String> attributes) throws ParseException {
+    String name = getAttribute(attributes, "name");
 
     if (name.isEmpty()) {
       throw new ParseException("scxml tag must contain a name attribute to specify output class");
@@ -254,56 +780,105 @@ public class ScxmlDoc {
       mPackageName = name.substring(0, lastDotIndex);
     }
 
-    mInitialStateName = docEle.getAttribute("initial");
+    mInitialStateName = getAttribute(attributes, "initial");
 
 
-    mDebug = docEle.getAttribute("debug").equalsIgnoreCase("true");
+    mDebug = getAttribute(attributes, "debug").equalsIgnoreCase("true");
 
+    mFleet = getAttribute(attributes, "fleet").equalsIgnoreCase("true");
 
-    List<Element> elements = getElements(docEle.getElementsByTagName("state"));
-    if (elements == null) {
-      throw new ParseException("scxml must contain at least one state");
+    mMetrics = getAttribute(attributes, "metrics").equalsIgnoreCase("true");
+
+    String dispatch = getAttribute(attributes, "dispatch");
+    if (dispatch.isEmpty() || dispatch.equalsIgnoreCase("switch")) {
+      mDispatch = Dispatch.SWITCH;
+    } else if (dispatch.equalsIgnoreCase("table")) {
+      mDispatch = Dispatch.TABLE;
+    } else if (dispatch.equalsIgnoreCase("state")) {
+      mDispatch = Dispatch.STATE;
+    } else {
+      throw new ParseException("dispatch " + dispatch + " is not one of switch, table or state");
     }
 
+    String unhandled = getAttribute(attributes, "unhandled");
+    if (unhandled.isEmpty()) {
+      mUnhandled = Unhandled.THROW_NEW;
+    } else if (unhandled.equalsIgnoreCase("throw")) {
+      mUnhandled = Unhandled.THROW;
+    } else if (unhandled.equalsIgnoreCase("return-false")) {
+      mUnhandled = Unhandled.RETURN_FALSE;
+    } else if (unhandled.equalsIgnoreCase("ignore")) {
+      mUnhandled = Unhandled.IGNORE;
+    } else if (unhandled.equalsIgnoreCase("callback")) {
+      mUnhandled = Unhandled.CALLBACK;
+    } else {
+      throw new ParseException("unhandled " + unhandled
+          + " is not one of ignore, return-false, throw or callback");
+    }
 
-    for (Element e : elements) {
-      State s = new State(e);
-      getStates().add(s);
-      if (getInitialStateName().isEmpty()) {
-        mInitialStateName = s.getId();
-      }
-      if (s.mTransitions.size() == 0) {
-        mTerminalStates.add(s);
-      }
+    String concurrency = getAttribute(attributes, "concurrency");
+    if (concurrency.isEmpty() || concurrency.equalsIgnoreCase("none")) {
+      mConcurrency = Concurrency.NONE;
+    } else if (concurrency.equalsIgnoreCase("atomic")) {
+      mConcurrency = Concurrency.ATOMIC;
+    } else {
+      throw new ParseException("concurrency " + concurrency + " is not one of none or atomic");
     }
 
-    String baseStateName = docEle.getAttribute("base");
-    if (!baseStateName.isEmpty()) {
-      for (State s : getStates()) {
-        if (baseStateName.equals(s.mId)) {
-          mBaseState = s;
-        }
+    String mailbox = getAttribute(attributes, "mailbox");
+    if (!mailbox.isEmpty()) {
+      try {
+        mMailboxCapacity = Integer.parseInt(mailbox);
+      } catch (NumberFormatException e) {
+        mMailboxCapacity = 0;
       }
-      if (mBaseState == null) {
-        throw new ParseException("referenced base state " + baseStateName + " is not declared");
+      if (mMailboxCapacity <= 0 || mMailboxCapacity > MAX_MAILBOX_CAPACITY) {
+        throw new ParseException("mailbox " + mailbox + " is not a capacity between 1 and "
+            + MAX_MAILBOX_CAPACITY);
       }
     }
 
-    boolean validatedInitialStateName = false;
-    for (State s : getStates()) {
-      if (s.getId().equals(getInitialStateName())) {
-        validatedInitialStateName = true;
+    mBaseStateName = getAttribute(attributes, "base");
+  }
+
+  /**
+   * Records a state once all of its transitions have been parsed.
+   */
+  private void addState(State s) {
+    getStates().add(s);
+    if (getInitialStateName().isEmpty()) {
+      mInitialStateName = s.getId();
+    }
+    if (s.mTransitions.size() == 0) {
+      mTerminalStates.add(s);
+    }
+  }
+
+  /**
+   * Checks the references between states once every state has been parsed.
+   */
+  private void validateStates() throws ParseException {
+    if (getStates().isEmpty()) {
+      throw new ParseException("scxml must contain at least one state");
+    }
+
+    if (!mBaseStateName.isEmpty()) {
+      mBaseState = mStatesById.get(mBaseStateName);
+      if (mBaseState == null) {
+        throw new ParseException("referenced base state " + mBaseStateName + " is not declared");
       }
     }
-    if (!validatedInitialStateName) {
+
+    if (!mStatesById.containsKey(getInitialStateName())) {
       throw new ParseException("referenced initial state " + getInitialStateName()
           + " was not declared.");
     }
 
-    if (!mDeclaredStateNames.containsAll(mTargets)) {
-      mTargets.removeAll(mDeclaredStateNames);
-      throw new ParseException("target " + mTargets.iterator().next()
-          + " does not represent a state declared in this scxml file");
+    for (String target : mTargets) {
+      if (!mStatesById.containsKey(target)) {
+        throw new ParseException("target " + target
+            + " does not represent a state declared in this scxml file");
+      }
     }
 
   }
@@ -324,6 +899,50 @@ public class ScxmlDoc {
     return mDebug;
   }
 
+  /**
+   * @return whether a nested Fleet class is generated to run many machines
+   *         from one column of states
+   */
+  public boolean getFleetFlag() {
+    return mFleet;
+  }
+
+  /**
+   * @return whether generated machines count transitions and time states and
+   *         actions
+   */
+  public boolean getMetricsFlag() {
+    return mMetrics;
+  }
+
+  /**
+   * @return the number of transitions of the document, whose indexes are 0 to
+   *         the count - 1
+   */
+  public int getTransitionCount() {
+    return mTransitionCount;
+  }
+
+  public Dispatch getDispatch() {
+    return mDispatch;
+  }
+
+  public Unhandled getUnhandled() {
+    return mUnhandled;
+  }
+
+  public Concurrency getConcurrency() {
+    return mConcurrency;
+  }
+
+  /**
+   * @return the number of events the generated mailbox can hold, or 0 if no
+   *         mailbox is generated
+   */
+  public int getMailboxCapacity() {
+    return mMailboxCapacity;
+  }
+
   public List<State> getTerminalStates() {
     return mTerminalStates;
   }
@@ -340,10 +959,58 @@ public class ScxmlDoc {
     return mGlobalActions;
   }
 
+  /**
+   * @return the state declared with the given id, or null if there is none
+   */
+  public State getState(String id) {
+    return mStatesById.get(id);
+  }
+
+  /**
+   * @return the position of the state in declaration order, which is the
+   *         ordinal of its generated State constant, or -1 if it is not declared
+   */
+  public int getStateIndex(String id) {
+    return indexOf(mStateIndex, id);
+  }
+
+  /**
+   * @return the position of the event in {@link #getEventSet()}, or -1 if no
+   *         transition is triggered by it
+   */
+  public int getEventIndex(String event) {
+    return indexOf(mEventIndex, event);
+  }
+
+  /**
+   * @return the position of the action in {@link #getActionSet()}, or -1 if no
+   *         transition performs it
+   */
+  public int getActionIndex(String action) {
+    return indexOf(mActionIndex, action);
+  }
+
+  private static int indexOf(Map<String, Integer> index, String symbol) {
+    Integer i = index.get(symbol);
+    return i == null ? -1 : i;
+  }
+
   public void changeClassName(String newClassName) {
     mClassName = newClassName;
   }
 
+  public void changeDebugFlag(boolean debug) {
+    mDebug = debug;
+  }
+
+  public void changeDispatch(Dispatch dispatch) {
+    mDispatch = dispatch;
+  }
+
+  public void changeMetricsFlag(boolean metrics) {
+    mMetrics = metrics;
+  }
+
 
 
 }
@@ -0,0 +1,272 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import com.google.common.labs.fsm.ScxmlDoc.ParseException;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * The ScxmlGenerator writes synthetic scxml documents of any size for
+ * benchmarks and stress tests. The same seed and settings always produce the
+ * same document. Every setting has a default, so that
+ * new ScxmlGenerator().setStateCount(1000).generate() is a valid machine.
+ *
+ * States are named S0, S1, ..., events E0, E1, ... and actions A0, A1, ...
+ * Each state handles fanOut distinct events picked from the event alphabet.
+ * In a RING machine the first transition of every state moves on to the next
+ * state, so every state can be reached; in a RANDOM machine every target is
+ * picked at random. Each transition performs a random action with the given
+ * probability, and a base state, when asked for, handles a number of events
+ * for every state that does not handle them itself.
+ *
+ * For example:
+ *
+ *  $ java com.google.common.labs.fsm.ScxmlGenerator -states 10000 -fanout 4 > big.xml
+ */
+public class ScxmlGenerator {
+
+  /**
+   * How transition targets are chosen
+   */
+  public enum Shape {
+    /** the first transition of each state targets the next state */
+    RING,
+    /** every transition targets a random state */
+    RANDOM,
+  }
+
+  private long mSeed = 1;
+  private String mName = "Generated";
+  private Shape mShape = Shape.RING;
+  private int mStateCount = 100;
+  private int mFanOut = 3;
+  private int mEventCount = 8;
+  private int mActionCount = 16;
+  private double mActionDensity = 0.25;
+  private int mBaseTransitions = 0;
+
+  // destination of out() while outputScxml() runs
+  private IndentWriter mOut;
+
+  public ScxmlGenerator setSeed(long seed) {
+    mSeed = seed;
+    return this;
+  }
+
+  /**
+   * @param name the name attribute of the document, which is the generated class name
+   */
+  public ScxmlGenerator setName(String name) {
+    mName = name;
+    return this;
+  }
+
+  public ScxmlGenerator setShape(Shape shape) {
+    mShape = shape;
+    return this;
+  }
+
+  public ScxmlGenerator setStateCount(int states) {
+    mStateCount = states;
+    return this;
+  }
+
+  /**
+   * @param fanOut the number of transitions of each state
+   */
+  public ScxmlGenerator setFanOut(int fanOut) {
+    mFanOut = fanOut;
+    return this;
+  }
+
+  /**
+   * @param events the size of the event alphabet
+   */
+  public ScxmlGenerator setEventCount(int events) {
+    mEventCount = events;
+    return this;
+  }
+
+  /**
+   * @param actions the number of distinct actions
+   */
+  public ScxmlGenerator setActionCount(int actions) {
+    mActionCount = actions;
+    return this;
+  }
+
+  /**
+   * @param density the probability that a transition performs an action
+   */
+  public ScxmlGenerator setActionDensity(double density) {
+    mActionDensity = density;
+    return this;
+  }
+
+  /**
+   * @param transitions the number of events handled by a base state, or 0
+   *        for no base state
+   */
+  public ScxmlGenerator setBaseTransitions(int transitions) {
+    mBaseTransitions = transitions;
+    return this;
+  }
+
+  /**
+   * @param args -seed, -name, -shape, -states, -fanout, -events, -actions,
+   *        -density and -base, each followed by its value
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    ScxmlGenerator generator = new ScxmlGenerator();
+    for (int i = 0; i < args.length; i += 2) {
+      if (i + 1 == args.length) {
+        throw new IllegalArgumentException("no value for " + args[i]);
+      }
+      String value = args[i + 1];
+      if (args[i].equals("-seed")) {
+        generator.setSeed(Long.parseLong(value));
+      } else if (args[i].equals("-name")) {
+        generator.setName(value);
+      } else if (args[i].equals("-shape")) {
+        generator.setShape(Shape.valueOf(value.toUpperCase(Locale.ENGLISH)));
+      } else if (args[i].equals("-states")) {
+        generator.setStateCount(Integer.parseInt(value));
+      } else if (args[i].equals("-fanout")) {
+        generator.setFanOut(Integer.parseInt(value));
+      } else if (args[i].equals("-events")) {
+        generator.setEventCount(Integer.parseInt(value));
+      } else if (args[i].equals("-actions")) {
+        generator.setActionCount(Integer.parseInt(value));
+      } else if (args[i].equals("-density")) {
+        generator.setActionDensity(Double.parseDouble(value));
+      } else if (args[i].equals("-base")) {
+        generator.setBaseTransitions(Integer.parseInt(value));
+      } else {
+        throw new IllegalArgumentException("unknown option " + args[i]);
+      }
+    }
+    generator.outputScxml(new OutputStreamWriter(System.out, "UTF-8"));
+  }
+
+  /**
+   * @return the generated document
+   */
+  public String generate() {
+    StringWriter writer = new StringWriter();
+    try {
+      outputScxml(writer);
+    } catch (IOException e) {
+      // a StringWriter does not throw
+      throw new AssertionError(e);
+    }
+    return writer.toString();
+  }
+
+  /**
+   * @return the generated document, parsed
+   */
+  public ScxmlDoc createDoc() {
+    try {
+      return ScxmlDoc.createFrom(new StringReader(generate()));
+    } catch (ParseException e) {
+      // every generated document is valid
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Write the generated document
+   *
+   * @param writer destination of the document, which is flushed but not closed
+   * @throws IllegalArgumentException if the settings describe no valid machine
+   * @throws IOException
+   */
+  public void outputScxml(Writer writer) throws IOException {
+    validate();
+    mOut = new IndentWriter(writer);
+    try {
+      outputDocument();
+      mOut.flush();
+    } finally {
+      mOut = null;
+    }
+  }
+
+  private void validate() {
+    if (mStateCount < 1) {
+      throw new IllegalArgumentException("states must be at least 1");
+    }
+    if (mFanOut < 1 || mFanOut > mEventCount) {
+      throw new IllegalArgumentException("fanout must be between 1 and the number of events");
+    }
+    if (mBaseTransitions < 0 || mBaseTransitions > mEventCount) {
+      throw new IllegalArgumentException("base must be between 0 and the number of events");
+    }
+    if (mActionCount < 1 && mActionDensity > 0) {
+      throw new IllegalArgumentException("actions must be at least 1 for a nonzero density");
+    }
+  }
+
+  private void outputDocument() {
+    Random random = new Random(mSeed);
+    int[] events = new int[mEventCount];
+    for (int i = 0; i < events.length; i++) {
+      events[i] = i;
+    }
+
+    out(0, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    out(0, "<scxml xmlns=\"http://www.w3.org/2005/07/scxml\" name=\"" + mName
+        + "\" initial=\"S0\"" + (mBaseTransitions > 0 ? " base=\"Base\"" : "") + ">");
+    for (int state = 0; state < mStateCount; state++) {
+      out(1, "<state id=\"S" + state + "\">");
+      pickEvents(random, events, mFanOut);
+      for (int i = 0; i < mFanOut; i++) {
+        int target = (mShape == Shape.RING && i == 0)
+            ? (state + 1) % mStateCount : random.nextInt(mStateCount);
+        outputTransition(random, events[i], target);
+      }
+      out(1, "</state>");
+    }
+    if (mBaseTransitions > 0) {
+      out(1, "<state id=\"Base\">");
+      pickEvents(random, events, mBaseTransitions);
+      for (int i = 0; i < mBaseTransitions; i++) {
+        outputTransition(random, events[i], mShape == Shape.RING ? 0 : random.nextInt(mStateCount));
+      }
+      out(1, "</state>");
+    }
+    out(0, "</scxml>");
+  }
+
+  /**
+   * Move count distinct events chosen at random to the front of events
+   */
+  private static void pickEvents(Random random, int[] events, int count) {
+    for (int i = 0; i < count; i++) {
+      int j = i + random.nextInt(events.length - i);
+      int event = events[i];
+      events[i] = events[j];
+      events[j] = event;
+    }
+  }
+
+  private void outputTransition(Random random, int event, int target) {
+    String action = "";
+    if (random.nextDouble() < mActionDensity) {
+      action = " action=\"A" + random.nextInt(mActionCount) + "\"";
+    }
+    out(2, "<transition event=\"E" + event + "\"" + action + " target=\"S" + target + "\" />");
+  }
+
+  private void out(int tabs, String s) {
+    mOut.line(tabs, s);
+  }
+}
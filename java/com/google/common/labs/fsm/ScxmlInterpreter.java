@@ -0,0 +1,331 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import com.google.common.labs.fsm.ScxmlDoc.State;
+import com.google.common.labs.fsm.ScxmlDoc.Unhandled;
+
+/**
+ * The ScxmlInterpreter runs a finite state machine described by an
+ * {@link ScxmlDoc} without generating or compiling code. The document is
+ * turned into dense {@link DispatchTables} once, and each event is then
+ * dispatched with the semantics of the class generated by {@link Scxml2Java}:
+ * transitions of the base state apply to every state that does not handle the
+ * event itself, a state with no transitions is terminal, and the unhandled
+ * attribute of the document decides what an unhandled event does.
+ *
+ * Actions are performed by Runnable handlers registered per action, and state
+ * changes are reported to a {@link Listener}. Pushing a handled event does not
+ * allocate. Like the generated class with no concurrency attribute, an
+ * interpreter must be confined to one thread.
+ */
+public class ScxmlInterpreter {
+
+  private static final int NONE = -1;
+  private static final int HANDLED = 0;
+
+  private final ScxmlDoc mDoc;
+  private final String[] mEvents;
+  private final String[] mStates;
+  private final boolean[] mTerminal;
+  private final int mInitialState;
+  private final Unhandled mUnhandled;
+  private final int mEventCount;
+  private final int[] mNextState;
+  private final int[] mActionIndex;
+  private final int[] mActionRuns;
+  private final Runnable[] mActionHandlers;
+  private Listener mListener;
+  private int mCurrentState = NONE;
+  private int mPushingEvent = NONE;
+
+  /**
+   * Exception class that indicates a bad state transition
+   */
+  public static class StateException extends RuntimeException {
+    public StateException(String message) {
+      super(message);
+    }
+
+    protected StateException(String message, Throwable cause,
+        boolean enableSuppression, boolean writableStackTrace) {
+      super(message, cause, enableSuppression, writableStackTrace);
+    }
+  }
+
+  /**
+   * Exception class that indicates an event unknown to the machine
+   */
+  public static class EventException extends RuntimeException {
+    public EventException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Thrown for unhandled="throw"; the single instance has no stack trace, suppressed
+   * exceptions or settable cause, so callers can not change it for other machines
+   */
+  public static class UnhandledEventException extends StateException {
+    private UnhandledEventException() {
+      super("Event not handled by the current state", null, false, false);
+    }
+  }
+
+  private static final UnhandledEventException UNHANDLED_EVENT = new UnhandledEventException();
+
+  /**
+   * Implemented by users of the interpreter to follow the machine
+   */
+  public interface Listener {
+    /**
+     * Called on start() and after every transition
+     */
+    public void onStateChange(int state);
+
+    /**
+     * Called for unhandled="callback" when the current state does not
+     * handle an event
+     */
+    public void onUnhandledEvent(int state, int event);
+  }
+
+  public ScxmlInterpreter(ScxmlDoc doc) {
+    mDoc = doc;
+    mEvents = doc.getEventSet().toArray(new String[0]);
+    mStates = doc.mDeclaredStateNames.toArray(new String[0]);
+    mTerminal = new boolean[mStates.length];
+    for (State s : doc.getTerminalStates()) {
+      mTerminal[doc.getStateIndex(s.mId)] = true;
+    }
+    mInitialState = doc.getStateIndex(doc.getInitialStateName());
+    mUnhandled = doc.getUnhandled();
+
+    DispatchTables tables = new DispatchTables(doc);
+    mEventCount = tables.mEventCount;
+    mNextState = tables.mNextState;
+    mActionIndex = tables.mActionIndex;
+    mActionRuns = tables.mActions;
+    mActionHandlers = new Runnable[doc.getActionSet().size()];
+  }
+
+  /**
+   * Create an interpreter of the same machine that shares the tables of
+   * another, which is much cheaper than interpreting the document again. The
+   * new interpreter is not started and has no handlers or listener.
+   */
+  public ScxmlInterpreter(ScxmlInterpreter machine) {
+    mDoc = machine.mDoc;
+    mEvents = machine.mEvents;
+    mStates = machine.mStates;
+    mTerminal = machine.mTerminal;
+    mInitialState = machine.mInitialState;
+    mUnhandled = machine.mUnhandled;
+    mEventCount = machine.mEventCount;
+    mNextState = machine.mNextState;
+    mActionIndex = machine.mActionIndex;
+    mActionRuns = machine.mActionRuns;
+    mActionHandlers = new Runnable[machine.mActionHandlers.length];
+  }
+
+  public ScxmlDoc getDoc() {
+    return mDoc;
+  }
+
+  /**
+   * @return the index of the event, or -1 if the machine has no such event
+   */
+  public int getEventIndex(String event) {
+    return mDoc.getEventIndex(event);
+  }
+
+  /**
+   * @return the index of the state, or -1 if the machine has no such state
+   */
+  public int getStateIndex(String state) {
+    return mDoc.getStateIndex(state);
+  }
+
+  public String getEventName(int event) {
+    return mEvents[event];
+  }
+
+  public String getStateName(int state) {
+    return mStates[state];
+  }
+
+  public int getEventCount() {
+    return mEvents.length;
+  }
+
+  public int getStateCount() {
+    return mStates.length;
+  }
+
+  /**
+   * @param action the id of an action of the machine
+   * @param handler performs the action, or null for none
+   * @throws IllegalArgumentException if the machine has no such action
+   */
+  public void setActionHandler(String action, Runnable handler) {
+    int index = mDoc.getActionIndex(action);
+    if (index < 0) {
+      throw new IllegalArgumentException("no action " + action);
+    }
+    mActionHandlers[index] = handler;
+  }
+
+  public void setListener(Listener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * @return the name of the current state, or null before start()
+   */
+  public String getCurrentState() {
+    return mCurrentState == NONE ? null : mStates[mCurrentState];
+  }
+
+  /**
+   * @return the index of the current state, or -1 before start()
+   */
+  public int getCurrentStateIndex() {
+    return mCurrentState;
+  }
+
+  public void start() {
+    start(mInitialState);
+  }
+
+  public void start(String state) {
+    int index = mDoc.getStateIndex(state);
+    if (index < 0) {
+      throw new StateException("Unknown State: " + state);
+    }
+    start(index);
+  }
+
+  public void start(int state) {
+    if (mCurrentState >= 0) {
+      throw new StateException("FSM already started.");
+    }
+    if (state < 0 || state >= mStates.length) {
+      throw new StateException("Unknown State: " + state);
+    }
+    transitionToState(state);
+  }
+
+  public final boolean pushEvent(String event) {
+    int index = mDoc.getEventIndex(event);
+    if (index < 0) {
+      throw new EventException("Unknown Event: " + event);
+    }
+    return pushEvent(index);
+  }
+
+  /**
+   * @param event the index of the event
+   * @return true if the event was handled, false if the current state is
+   *         terminal or, depending on the unhandled attribute, does not handle
+   *         the event
+   */
+  public final boolean pushEvent(int event) {
+    if (event < 0 || event >= mEventCount) {
+      throw new EventException("Unknown Event: " + event);
+    }
+    if (mPushingEvent != NONE) {
+      throw new StateException("pushEvent(" + mEvents[event] + ") called during push of "
+          + mEvents[mPushingEvent]);
+    }
+    mPushingEvent = event;
+    int current = mCurrentState;
+    int result = dispatchEvent(current, event);
+    mPushingEvent = NONE;
+    if (result == HANDLED) {
+      return true;
+    }
+    if (result == DispatchTables.TERMINAL) {
+      return false;
+    }
+    if (result == DispatchTables.UNKNOWN_STATE) {
+      throw new EventException("Unknown Event: " + getCurrentState());
+    }
+    return unhandledEvent(current, event);
+  }
+
+  /**
+   * Push events[from] to events[to - 1] in order. Stops at, and returns the
+   * index of, the first event that is unknown or not handled, and returns to
+   * if every event is handled. Unhandled events are skipped rather than
+   * stopping the batch when unhandled events are ignored.
+   */
+  public final int pushEvents(int[] events, int from, int to) {
+    if (mPushingEvent != NONE) {
+      throw new StateException("pushEvents() called during push of " + mEvents[mPushingEvent]);
+    }
+    int i = from;
+    for (; i < to; i++) {
+      int event = events[i];
+      if (event < 0 || event >= mEventCount) {
+        break;
+      }
+      mPushingEvent = event;
+      int result = dispatchEvent(mCurrentState, event);
+      if (result != HANDLED
+          && !(result == DispatchTables.UNHANDLED && mUnhandled == Unhandled.IGNORE)) {
+        break;
+      }
+    }
+    mPushingEvent = NONE;
+    return i;
+  }
+
+  public boolean isInTerminalState() {
+    return mCurrentState != NONE && mTerminal[mCurrentState];
+  }
+
+  private int dispatchEvent(int current, int event) {
+    if (current == NONE) {
+      return DispatchTables.UNKNOWN_STATE;
+    }
+    int cell = current * mEventCount + event;
+    int nextState = mNextState[cell];
+    if (nextState < 0) {
+      return nextState;
+    }
+    for (int i = mActionIndex[cell]; mActionRuns[i] >= 0; i++) {
+      Runnable handler = mActionHandlers[mActionRuns[i]];
+      if (handler != null) {
+        handler.run();
+      }
+    }
+    transitionToState(nextState);
+    return HANDLED;
+  }
+
+  private boolean unhandledEvent(int current, int event) {
+    switch (mUnhandled) {
+      case THROW:
+        throw UNHANDLED_EVENT;
+      case RETURN_FALSE:
+        return false;
+      case IGNORE:
+        return true;
+      case CALLBACK:
+        if (mListener != null) {
+          mListener.onUnhandledEvent(current, event);
+        }
+        return false;
+      default:
+        throw new StateException("State." + mStates[current] + " does not handle Event."
+            + mEvents[event]);
+    }
+  }
+
+  private void transitionToState(int state) {
+    mCurrentState = state;
+    if (mListener != null) {
+      mListener.onStateChange(state);
+    }
+  }
+}
@@ -0,0 +1,29 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Asks {@link ScxmlProcessor} to generate the abstract state machine class of
+ * an scxml file while javac compiles the annotated class, which is usually
+ * the class that extends it. For example:
+ *
+ *  {@literal @}ScxmlMachine("code_entry.xml")
+ *  public class Lock extends CodeEntry {
+ *    ...
+ *  }
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface ScxmlMachine {
+  /**
+   * The scxml file, relative to the package of the annotated class, or to the
+   * root of the source path when it starts with a '/'. It is found on the
+   * source path, or on the class path if it is not on the source path.
+   */
+  String value();
+}
@@ -0,0 +1,113 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import com.google.common.labs.fsm.ScxmlDoc.ParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * The ScxmlProcessor is an annotation processor that runs {@link Scxml2Java}
+ * inside javac for every class annotated with {@link ScxmlMachine}, so that a
+ * build needs no separate generation step. The generated source is written
+ * through the Filer with the annotated class as its originating element,
+ * which lets incremental compilers regenerate it with that class. A file
+ * that can not be read or parsed is reported as a compile error on the
+ * annotation.
+ *
+ * For example:
+ *
+ *  $ javac -processor com.google.common.labs.fsm.ScxmlProcessor -sourcepath src \
+ *      src/com/example/Lock.java
+ */
+@SupportedAnnotationTypes("com.google.common.labs.fsm.ScxmlMachine")
+public class ScxmlProcessor extends AbstractProcessor {
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+    for (Element element : round.getElementsAnnotatedWith(ScxmlMachine.class)) {
+      String file = element.getAnnotation(ScxmlMachine.class).value();
+      try {
+        generate(element, file);
+      } catch (ParseException e) {
+        error(element, file + ": " + e.getMessage());
+      } catch (IOException e) {
+        error(element, file + ": " + e);
+      }
+    }
+    return true;
+  }
+
+  private void generate(Element element, String file) throws IOException, ParseException {
+    ScxmlDoc doc;
+    InputStream in = findScxml(element, file).openInputStream();
+    try {
+      doc = ScxmlDoc.createFrom(in);
+    } finally {
+      in.close();
+    }
+    String className = doc.getPackageName() == null
+        ? doc.getClassName() : doc.getPackageName() + "." + doc.getClassName();
+    Writer writer = processingEnv.getFiler().createSourceFile(className, element).openWriter();
+    try {
+      Scxml2Java.translatorForScxml(doc).outputJava(writer);
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * @throws IOException if the file is on neither the source path nor the
+   *         class path
+   */
+  private FileObject findScxml(Element element, String file) throws IOException {
+    String pkg = "";
+    String name = file;
+    if (file.startsWith("/")) {
+      name = file.substring(1);
+    } else {
+      PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(element);
+      if (!packageElement.isUnnamed()) {
+        pkg = packageElement.getQualifiedName().toString();
+      }
+    }
+    IOException missing = null;
+    for (StandardLocation location
+        : new StandardLocation[] {StandardLocation.SOURCE_PATH, StandardLocation.CLASS_PATH}) {
+      try {
+        FileObject resource = processingEnv.getFiler().getResource(location, pkg, name);
+        // a FileObject may be returned for a file that does not exist
+        resource.openInputStream().close();
+        return resource;
+      } catch (IOException e) {
+        missing = e;
+      } catch (IllegalArgumentException e) {
+        // the compiler has no such location
+      }
+    }
+    throw missing != null ? missing : new IOException("not found");
+  }
+
+  private void error(Element element, String message) {
+    processingEnv.getMessager().printMessage(Kind.ERROR, message, element);
+  }
+}
@@ -0,0 +1,49 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+/**
+ * Compares the time to generate and load a machine through {@link Scxml2Bytecode}
+ * against generating java source and compiling it with {@link ScxmlCompiler}.
+ *
+ * Usage: BytecodeLoadBenchmark [-n iterations] file.xml...
+ */
+public class BytecodeLoadBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 5;
+
+  public static void main(String[] args) throws Exception {
+    int iterations = 20;
+    int first = 0;
+    if (args.length > 1 && args[0].equals("-n")) {
+      iterations = Integer.parseInt(args[1]);
+      first = 2;
+    }
+    ScxmlCompiler compiler = new ScxmlCompiler();
+    ClassLoader parent = BytecodeLoadBenchmark.class.getClassLoader();
+    System.out.printf("%-40s %12s %12s%n", "file", "javac ms", "bytecode ms");
+    for (int i = first; i < args.length; i++) {
+      ScxmlDoc doc = ScxmlDoc.createFromFile(args[i]);
+      Scxml2Bytecode generator = Scxml2Bytecode.translatorForScxml(doc);
+      for (int n = 0; n < WARMUP_ITERATIONS; n++) {
+        compiler.compile(doc);
+        generator.load(parent);
+      }
+
+      long start = System.nanoTime();
+      for (int n = 0; n < iterations; n++) {
+        compiler.compile(doc).getField("STATE_COUNT").getInt(null);
+      }
+      long javac = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int n = 0; n < iterations; n++) {
+        Scxml2Bytecode.translatorForScxml(doc).load(parent).getField("STATE_COUNT").getInt(null);
+      }
+      long bytecode = System.nanoTime() - start;
+
+      System.out.printf("%-40s %12.3f %12.3f%n", doc.getClassName(),
+          javac / 1e6 / iterations, bytecode / 1e6 / iterations);
+    }
+  }
+}
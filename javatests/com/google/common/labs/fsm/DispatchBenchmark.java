@@ -0,0 +1,404 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import static com.google.common.labs.fsm.ClassFileWriter.ACC_PUBLIC;
+import static com.google.common.labs.fsm.ClassFileWriter.ACC_SUPER;
+import static com.google.common.labs.fsm.ClassFileWriter.ALOAD;
+import static com.google.common.labs.fsm.ClassFileWriter.INVOKESPECIAL;
+import static com.google.common.labs.fsm.ClassFileWriter.RETURN;
+
+import com.google.common.labs.fsm.ScxmlDoc.Dispatch;
+import com.google.common.labs.fsm.ScxmlDoc.State;
+import com.google.common.labs.fsm.ScxmlDoc.Transition;
+import com.google.common.labs.fsm.ScxmlDoc.Unhandled;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures pushEvent throughput, latency and allocation of state machines run
+ * by each backend:
+ * <ul>
+ * <li>javac: the source of {@link Scxml2Java}, compiled by {@link ScxmlCompiler}
+ * <li>javac-debug: the same with debug="true" and no DebugLogger
+ * <li>javac-logger: the same with debug="true" and a no-op DebugLogger
+ * <li>javac-state: the same with dispatch="state"
+ * <li>bytecode: the classes of {@link Scxml2Bytecode}
+ * <li>interpreter: a {@link ScxmlInterpreter}
+ * </ul>
+ *
+ * Each machine is driven by a random walk over its handled, non-terminal
+ * transitions, once over every transition and, for machines with a base state,
+ * once over the transitions only the base state handles. Events are pushed
+ * through pushEvents() in batches, so each batch gives one latency sample in
+ * ns per event. Allocation is read from the thread's allocated bytes counter.
+ *
+ * Usage: DispatchBenchmark [-t millis] [file.xml...]
+ *
+ * Without files, which needs the root of the source tree as working
+ * directory, the tiny, small, medium, large and code_entry testdata
+ * machines are run together with machines of 10, 1000 and 100000 states
+ * from {@link ScxmlGenerator}. Backends that cannot build a machine, such as javac for machines
+ * whose methods exceed the class file limits, are reported as n/a.
+ */
+public class DispatchBenchmark {
+
+  private static final String TESTDATA_DIR = "javatests/com/google/common/labs/fsm/testdata/";
+  private static final String[] TESTDATA =
+      {"tiny.xml", "small.xml", "medium.xml", "large.xml", "code_entry.xml"};
+  private static final int[] SYNTHETIC_STATES = {10, 1000, 100000};
+  private static final int WALK_LENGTH = 1 << 14;
+  private static final int BATCH = 64;
+  private static final int SAMPLES = 1 << 16;
+  // javac takes minutes to reject the source of machines this large
+  private static final int MAX_JAVAC_STATES = 10000;
+  private static final long SEED = 1;
+
+  private final long mMillis;
+  private final ScxmlCompiler mCompiler = new ScxmlCompiler();
+
+  /**
+   * A machine ready to run, and the cost of making it
+   */
+  private interface Machine {
+    /**
+     * @return a started instance
+     */
+    Object create() throws Throwable;
+
+    /**
+     * @return the number of events handled
+     */
+    int pushEvents(Object machine, int[] events, int from, int to) throws Throwable;
+  }
+
+  private DispatchBenchmark(long millis) {
+    mMillis = millis;
+  }
+
+  public static void main(String[] args) throws Exception {
+    long millis = 1000;
+    int first = 0;
+    if (args.length > 1 && args[0].equals("-t")) {
+      millis = Long.parseLong(args[1]);
+      first = 2;
+    }
+    DispatchBenchmark benchmark = new DispatchBenchmark(millis);
+    System.out.printf("%-24s %-12s %-5s %10s %8s %8s %8s %8s%n", "machine", "backend", "walk",
+        "Mevents/s", "p50 ns", "p99 ns", "p99.9 ns", "B/event");
+    if (args.length > first) {
+      for (int i = first; i < args.length; i++) {
+        benchmark.run(ScxmlDoc.createFromFile(args[i]));
+      }
+      return;
+    }
+    for (String file : TESTDATA) {
+      benchmark.run(ScxmlDoc.createFromFile(TESTDATA_DIR + file));
+    }
+    for (int states : SYNTHETIC_STATES) {
+      benchmark.run(new ScxmlGenerator()
+          .setSeed(SEED)
+          .setName("Synthetic" + states)
+          .setStateCount(states)
+          .setEventCount(24)
+          .setBaseTransitions(1)
+          .createDoc());
+    }
+  }
+
+  private void run(ScxmlDoc doc) {
+    List<int[]> walks = new ArrayList<int[]>();
+    List<String> walkNames = new ArrayList<String>();
+    int[] all = walk(doc, false);
+    if (all != null) {
+      walks.add(all);
+      walkNames.add("all");
+    }
+    int[] base = doc.getBaseState() == null ? null : walk(doc, true);
+    if (base != null) {
+      walks.add(base);
+      walkNames.add("base");
+    }
+    if (walks.isEmpty()) {
+      System.out.printf("%-24s n/a (every walk reaches a terminal state)%n", doc.getClassName());
+      return;
+    }
+    String[] backends =
+        {"javac", "javac-debug", "javac-logger", "javac-state", "bytecode", "interpreter"};
+    for (String backend : backends) {
+      Machine machine;
+      try {
+        machine = machine(doc, backend);
+      } catch (Throwable t) {
+        System.out.printf("%-24s %-12s n/a (%s)%n", doc.getClassName(), backend,
+            firstLine(t));
+        continue;
+      }
+      for (int i = 0; i < walks.size(); i++) {
+        try {
+          measure(doc.getClassName(), backend, walkNames.get(i), machine, walks.get(i));
+        } catch (Throwable t) {
+          System.out.printf("%-24s %-12s %-5s failed (%s)%n", doc.getClassName(), backend,
+              walkNames.get(i), firstLine(t));
+        }
+      }
+    }
+  }
+
+  private static String firstLine(Throwable t) {
+    while (t.getCause() != null) {
+      t = t.getCause();
+    }
+    String message = String.valueOf(t.getMessage());
+    int newline = message.indexOf('\n');
+    return t.getClass().getSimpleName() + ": "
+        + (newline < 0 ? message : message.substring(0, newline));
+  }
+
+  private void measure(String name, String backend, String walkName, Machine machine,
+      int[] events) throws Throwable {
+    long[] samples = new long[SAMPLES];
+    long warmupEnd = System.nanoTime() + mMillis * 1000000;
+    while (System.nanoTime() < warmupEnd) {
+      runWalk(machine, events, samples, 0);
+    }
+
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    int sampleCount = 0;
+    long eventCount = 0;
+    long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+    long start = System.nanoTime();
+    long end = start + mMillis * 1000000;
+    while (System.nanoTime() < end) {
+      sampleCount = runWalk(machine, events, samples, sampleCount);
+      eventCount += events.length;
+    }
+    long elapsed = System.nanoTime() - start;
+    long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+    sampleCount = Math.min(sampleCount, SAMPLES);
+    Arrays.sort(samples, 0, sampleCount);
+    System.out.printf("%-24s %-12s %-5s %10.1f %8.1f %8.1f %8.1f %8.2f%n", name, backend, walkName,
+        eventCount * 1e3 / elapsed,
+        percentile(samples, sampleCount, 0.5),
+        percentile(samples, sampleCount, 0.99),
+        percentile(samples, sampleCount, 0.999),
+        (double) allocated / eventCount);
+  }
+
+  /**
+   * Push a walk through a new machine in batches, and record the time of each
+   * batch in samples, wrapping around once samples is full
+   *
+   * @return the new number of samples taken
+   */
+  private static int runWalk(Machine machine, int[] events, long[] samples, int sampleCount)
+      throws Throwable {
+    Object instance = machine.create();
+    for (int from = 0; from < events.length; from += BATCH) {
+      int to = Math.min(events.length, from + BATCH);
+      long start = System.nanoTime();
+      int handled = machine.pushEvents(instance, events, from, to);
+      long time = System.nanoTime() - start;
+      if (handled != to) {
+        throw new IllegalStateException("event " + handled + " of the walk was not handled");
+      }
+      samples[sampleCount++ % SAMPLES] = time;
+    }
+    return sampleCount;
+  }
+
+  private static double percentile(long[] sorted, int count, double p) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    return (double) sorted[Math.min(count - 1, (int) (p * count))] / BATCH;
+  }
+
+  private Machine machine(ScxmlDoc doc, String backend) throws Throwable {
+    if (backend.equals("interpreter")) {
+      final ScxmlInterpreter prototype = new ScxmlInterpreter(doc);
+      return new Machine() {
+        @Override
+        public Object create() {
+          ScxmlInterpreter interpreter = new ScxmlInterpreter(prototype);
+          interpreter.start();
+          return interpreter;
+        }
+
+        @Override
+        public int pushEvents(Object machine, int[] events, int from, int to) {
+          return ((ScxmlInterpreter) machine).pushEvents(events, from, to);
+        }
+      };
+    }
+
+    Class<?> base;
+    boolean logger = backend.equals("javac-logger");
+    boolean debug = logger || backend.equals("javac-debug");
+    if (backend.equals("bytecode")) {
+      base = Scxml2Bytecode.translatorForScxml(doc).load(getClass().getClassLoader());
+    } else {
+      if (doc.getStates().size() > MAX_JAVAC_STATES) {
+        throw new IllegalArgumentException("more than " + MAX_JAVAC_STATES + " states");
+      }
+      boolean wasDebug = doc.getDebugFlag();
+      Dispatch dispatch = doc.getDispatch();
+      doc.changeDebugFlag(debug);
+      if (backend.equals("javac-state")) {
+        doc.changeDispatch(Dispatch.STATE);
+      }
+      try {
+        base = mCompiler.compile(doc);
+      } finally {
+        doc.changeDebugFlag(wasDebug);
+        doc.changeDispatch(dispatch);
+      }
+    }
+    return generatedMachine(doc, base, logger);
+  }
+
+  /**
+   * Define a subclass of a generated machine whose abstract methods do
+   * nothing, and when asked for, a DebugLogger that does nothing
+   */
+  private static Machine generatedMachine(ScxmlDoc doc, Class<?> base, boolean withLogger)
+      throws Throwable {
+    String baseName = base.getName().replace('.', '/');
+    String subName = baseName + "Benchmark";
+    String loggerName = baseName + "BenchmarkLogger";
+    Map<String, byte[]> classes = new HashMap<String, byte[]>();
+
+    ClassFileWriter cw = new ClassFileWriter(ACC_PUBLIC | ACC_SUPER, subName, baseName);
+    cw.method(ACC_PUBLIC, "<init>", "()V")
+        .local(ALOAD, 0)
+        .invoke(INVOKESPECIAL, baseName, "<init>", "()V")
+        .op(RETURN)
+        .end(1);
+    String state = "L" + baseName + "$State;";
+    cw.method(ACC_PUBLIC, "onStateChange", "(" + state + ")V").op(RETURN).end(2);
+    if (doc.getUnhandled() == Unhandled.CALLBACK) {
+      cw.method(ACC_PUBLIC, "onUnhandledEvent", "(" + state + "L" + baseName + "$Event;)V")
+          .op(RETURN)
+          .end(3);
+    }
+    for (String action : doc.getActionSet()) {
+      cw.method(ACC_PUBLIC, "onAction" + action, "()V").op(RETURN).end(1);
+    }
+    classes.put(subName.replace('/', '.'), cw.toByteArray());
+
+    if (withLogger) {
+      ClassFileWriter logger = new ClassFileWriter(ACC_PUBLIC | ACC_SUPER, loggerName,
+          "java/lang/Object", baseName + "$DebugLogger");
+      logger.method(ACC_PUBLIC, "<init>", "()V")
+          .local(ALOAD, 0)
+          .invoke(INVOKESPECIAL, "java/lang/Object", "<init>", "()V")
+          .op(RETURN)
+          .end(1);
+      for (String type : new String[] {"State", "Action", "Event"}) {
+        logger.method(ACC_PUBLIC, "on" + type, "(L" + baseName + "$" + type + ";)V")
+            .op(RETURN)
+            .end(2);
+      }
+      classes.put(loggerName.replace('/', '.'), logger.toByteArray());
+    }
+
+    ClassLoader loader = new MemoryClassLoader(base.getClassLoader(), classes);
+    Class<?> sub = loader.loadClass(subName.replace('/', '.'));
+    MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+    final MethodHandle constructor = lookup.findConstructor(sub, MethodType.methodType(void.class))
+        .asType(MethodType.methodType(Object.class));
+    final MethodHandle start = lookup.findVirtual(sub, "start", MethodType.methodType(void.class))
+        .asType(MethodType.methodType(void.class, Object.class));
+    final MethodHandle pushEvents = lookup.findVirtual(sub, "pushEvents",
+        MethodType.methodType(int.class, int[].class, int.class, int.class))
+        .asType(MethodType.methodType(int.class, Object.class, int[].class, int.class, int.class));
+    final Object logger;
+    final MethodHandle setDebugLogger;
+    if (withLogger) {
+      Class<?> loggerInterface = loader.loadClass(base.getName() + "$DebugLogger");
+      logger = loader.loadClass(loggerName.replace('/', '.')).getDeclaredConstructor()
+          .newInstance();
+      setDebugLogger = lookup.findVirtual(sub, "setDebugLogger",
+          MethodType.methodType(void.class, loggerInterface))
+          .asType(MethodType.methodType(void.class, Object.class, Object.class));
+    } else {
+      logger = null;
+      setDebugLogger = null;
+    }
+
+    return new Machine() {
+      @Override
+      public Object create() throws Throwable {
+        Object machine = (Object) constructor.invokeExact();
+        if (setDebugLogger != null) {
+          setDebugLogger.invokeExact(machine, logger);
+        }
+        start.invokeExact(machine);
+        return machine;
+      }
+
+      @Override
+      public int pushEvents(Object machine, int[] events, int from, int to) throws Throwable {
+        return (int) pushEvents.invokeExact(machine, events, from, to);
+      }
+    };
+  }
+
+  /**
+   * A random walk of events from the initial state that never enters a
+   * terminal state
+   *
+   * @param baseOnly whether to walk only transitions that the base state
+   *        handles for the current state
+   * @return the event indices of the walk, or null if there is none
+   */
+  static int[] walk(ScxmlDoc doc, boolean baseOnly) {
+    State base = doc.getBaseState();
+    Set<String> terminal = new HashSet<String>();
+    for (State s : doc.getTerminalStates()) {
+      terminal.add(s.getId());
+    }
+    Random random = new Random(SEED);
+    int[] events = new int[WALK_LENGTH];
+    String current = doc.getInitialStateName();
+    List<Transition> choices = new ArrayList<Transition>();
+    for (int i = 0; i < events.length; i++) {
+      choices.clear();
+      Set<String> own = new HashSet<String>();
+      for (Transition t : doc.getState(current).getTransitions()) {
+        own.add(t.getEvent());
+        if (!baseOnly && !terminal.contains(t.getTarget())) {
+          choices.add(t);
+        }
+      }
+      if (base != null && doc.getState(current) != base) {
+        for (Transition t : base.getTransitions()) {
+          if (!own.contains(t.getEvent()) && !terminal.contains(t.getTarget())) {
+            choices.add(t);
+          }
+        }
+      }
+      if (choices.isEmpty()) {
+        return null;
+      }
+      Transition t = choices.get(random.nextInt(choices.size()));
+      events[i] = doc.getEventIndex(t.getEvent());
+      current = t.getTarget();
+    }
+    return events;
+  }
+}
@@ -16,6 +16,7 @@ import javassist.NotFoundException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.security.ProtectionDomain;
 import java.util.HashMap;
 import java.util.Map;
@@ -33,11 +34,13 @@ public class FsmMock {
   private Class<?> mBaseClass;
   private Method mStart;
   private Method mPushEvent;
+  private Method mPushEventOrdinal;
   private Field mRecordedStateChange;
   public Source mSource;
   private Method mIsInTerminalState;
   private Class<?> mEventEnum;
   public Class<?> mStateException;
+  public Class<?> mEventException;
   private final Map<String, Integer> mActionCounts = new HashMap<String, Integer>();
 
   /**
@@ -165,11 +168,14 @@ public class FsmMock {
     try {
       mStart = mSubClass.getMethod("start");
       mPushEvent = mSubClass.getMethod("pushEvent", mEventEnum);
+      mPushEventOrdinal = mSubClass.getMethod("pushEvent", int.class);
       mIsInTerminalState = mSubClass.getMethod("isInTerminalState");
       mRecordedStateChange = mSubClass.getField("mRecordedStateChange");
       for (Class<?> c : mSubClass.getClasses()) {
         if (c.getCanonicalName().equals(mSource.mFullClassName + ".StateException")) {
           mStateException = c;
+        } else if (c.getCanonicalName().equals(mSource.mFullClassName + ".EventException")) {
+          mEventException = c;
         } else if (c.getCanonicalName().equals(mSource.mFullClassName + ".DebugLogger")) {
           mDebugLoggerInterface = c;
         }
@@ -245,6 +251,133 @@ public class FsmMock {
     }
   }
 
+  public int getEventOrdinal(String eventName) throws FsmException {
+    for (Object o : mEventEnum.getEnumConstants()) {
+      if (o.toString().equals(eventName)) {
+        return ((Enum<?>) o).ordinal();
+      }
+    }
+    throw new FsmException("Event named " + eventName + " not found");
+  }
+
+  public boolean pushEventOrdinal(int eventOrdinal) throws FsmException {
+    try {
+      return ((Boolean) mPushEventOrdinal.invoke(mObject, eventOrdinal)).booleanValue();
+    } catch (IllegalArgumentException e) {
+      throw new FsmException(e);
+    } catch (IllegalAccessException e) {
+      throw new FsmException(e);
+    } catch (InvocationTargetException e) {
+      throw new FsmException(e);
+    }
+  }
+
+  public int pushEvents(String[] eventNames, int from, int to) throws FsmException {
+    int[] events = new int[eventNames.length];
+    for (int i = 0; i < events.length; i++) {
+      events[i] = getEventOrdinal(eventNames[i]);
+    }
+    try {
+      Method pushEvents = mSubClass.getMethod("pushEvents", int[].class, int.class, int.class);
+      return ((Integer) pushEvents.invoke(mObject, events, from, to)).intValue();
+    } catch (SecurityException e) {
+      throw new FsmException(e);
+    } catch (NoSuchMethodException e) {
+      throw new FsmException(e);
+    } catch (IllegalArgumentException e) {
+      throw new FsmException(e);
+    } catch (IllegalAccessException e) {
+      throw new FsmException(e);
+    } catch (InvocationTargetException e) {
+      throw new FsmException(e);
+    }
+  }
+
+  public int getCurrentStateOrdinal() throws FsmException {
+    try {
+      Method getCurrentStateOrdinal = mSubClass.getMethod("getCurrentStateOrdinal");
+      return ((Integer) getCurrentStateOrdinal.invoke(mObject)).intValue();
+    } catch (SecurityException e) {
+      throw new FsmException(e);
+    } catch (NoSuchMethodException e) {
+      throw new FsmException(e);
+    } catch (IllegalArgumentException e) {
+      throw new FsmException(e);
+    } catch (IllegalAccessException e) {
+      throw new FsmException(e);
+    } catch (InvocationTargetException e) {
+      throw new FsmException(e);
+    }
+  }
+
+  public boolean offerEvent(String eventName) throws FsmException {
+    try {
+      Method offerEvent = mSubClass.getMethod("offerEvent", int.class);
+      return ((Boolean) offerEvent.invoke(mObject, getEventOrdinal(eventName))).booleanValue();
+    } catch (SecurityException e) {
+      throw new FsmException(e);
+    } catch (NoSuchMethodException e) {
+      throw new FsmException(e);
+    } catch (IllegalArgumentException e) {
+      throw new FsmException(e);
+    } catch (IllegalAccessException e) {
+      throw new FsmException(e);
+    } catch (InvocationTargetException e) {
+      throw new FsmException(e);
+    }
+  }
+
+  public int drain(int maxEvents) throws FsmException {
+    try {
+      Method drain = mSubClass.getMethod("drain", int.class);
+      return ((Integer) drain.invoke(mObject, maxEvents)).intValue();
+    } catch (SecurityException e) {
+      throw new FsmException(e);
+    } catch (NoSuchMethodException e) {
+      throw new FsmException(e);
+    } catch (IllegalArgumentException e) {
+      throw new FsmException(e);
+    } catch (IllegalAccessException e) {
+      throw new FsmException(e);
+    } catch (InvocationTargetException e) {
+      throw new FsmException(e);
+    }
+  }
+
+  public void snapshot(ByteBuffer buffer) throws FsmException {
+    try {
+      Method snapshot = mSubClass.getMethod("snapshot", ByteBuffer.class);
+      snapshot.invoke(mObject, buffer);
+    } catch (SecurityException e) {
+      throw new FsmException(e);
+    } catch (NoSuchMethodException e) {
+      throw new FsmException(e);
+    } catch (IllegalArgumentException e) {
+      throw new FsmException(e);
+    } catch (IllegalAccessException e) {
+      throw new FsmException(e);
+    } catch (InvocationTargetException e) {
+      throw new FsmException(e);
+    }
+  }
+
+  public void restore(ByteBuffer buffer) throws FsmException {
+    try {
+      Method restore = mSubClass.getMethod("restore", ByteBuffer.class);
+      restore.invoke(mObject, buffer);
+    } catch (SecurityException e) {
+      throw new FsmException(e);
+    } catch (NoSuchMethodException e) {
+      throw new FsmException(e);
+    } catch (IllegalArgumentException e) {
+      throw new FsmException(e);
+    } catch (IllegalAccessException e) {
+      throw new FsmException(e);
+    } catch (InvocationTargetException e) {
+      throw new FsmException(e);
+    }
+  }
+
   public boolean isInTerminalState() throws FsmException {
     Boolean result;
     try {
@@ -317,14 +450,16 @@ public class FsmMock {
     }
 
     try {
-      // override onEvent, etc. to write the message to mLastEventMsg, etc.
-      CtMethod m =
-          CtMethod.make("public void onState(String msg) { mLastStateMsg = msg; }", debugLoggerCt);
+      // override onEvent, etc. to write the name of their argument to mLastEventMsg, etc.
+      String prefix = mSource.mFullClassName + "$";
+      CtMethod m = CtMethod.make("public void onState(" + prefix
+          + "State state) { mLastStateMsg = state.toString(); }", debugLoggerCt);
       debugLoggerCt.addMethod(m);
-      m = CtMethod.make(
-          "public void onAction(String msg) { mLastActionMsg = msg; }", debugLoggerCt);
+      m = CtMethod.make("public void onAction(" + prefix
+          + "Action action) { mLastActionMsg = action.toString(); }", debugLoggerCt);
       debugLoggerCt.addMethod(m);
-      m = CtMethod.make("public void onEvent(String msg) { mLastEventMsg = msg; }", debugLoggerCt);
+      m = CtMethod.make("public void onEvent(" + prefix
+          + "Event event) { mLastEventMsg = event.toString(); }", debugLoggerCt);
       debugLoggerCt.addMethod(m);
     } catch (CannotCompileException e) {
       throw new FsmException(e);
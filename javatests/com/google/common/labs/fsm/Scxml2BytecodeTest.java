@@ -0,0 +1,226 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.labs.fsm.ScxmlDoc.ParseException;
+import com.google.common.labs.fsm.Source.SourceException;
+import com.google.testing.util.TestUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for the Scxml2Bytecode class
+ */
+@RunWith(JUnit4.class)
+public class Scxml2BytecodeTest {
+
+  private static final String TESTDATA_DIR =
+      TestUtil.getSrcDir() + "/google3/javatests/com/google/common/labs/fsm/testdata/";
+  private static final String TINY_SCXML_FILE = TESTDATA_DIR + "tiny.xml";
+  private static final String SMALL_SCXML_FILE = TESTDATA_DIR + "small.xml";
+  private static final String LARGE_SCXML_FILE = TESTDATA_DIR + "code_entry.xml";
+  private static final String MEDIUM_SCXML_FILE = TESTDATA_DIR + "medium.xml";
+  private static final String DEBUG_SCXML_FILE = TESTDATA_DIR + "debug.xml";
+  private static final String ATOMIC_SCXML_FILE = TESTDATA_DIR + "atomic.xml";
+  private static final String MAILBOX_SCXML_FILE = TESTDATA_DIR + "mailbox.xml";
+  private static final String FLEET_SCXML_FILE = TESTDATA_DIR + "fleet.xml";
+  private static final String UNHANDLED_THROW_SCXML_FILE = TESTDATA_DIR + "unhandled_throw.xml";
+  private static final String UNHANDLED_RETURN_FALSE_SCXML_FILE =
+      TESTDATA_DIR + "unhandled_return_false.xml";
+
+  @Test
+  public void outputsMachineAndNestedClasses() throws IOException, ParseException {
+    Scxml2Bytecode generator =
+        Scxml2Bytecode.translatorForScxml(ScxmlDoc.createFromFile(LARGE_SCXML_FILE));
+    Map<String, byte[]> classes = generator.outputClasses();
+    assertEquals("com.google.common.labs.fsm.CodeEntry", generator.getClassName());
+    assertEquals(7, classes.size());
+    for (String nested : new String[] {"", "$Event", "$State", "$Action", "$StateException",
+        "$EventException", "$DebugLogger"}) {
+      assertNotNull(classes.get(generator.getClassName() + nested));
+    }
+  }
+
+  @Test
+  public void loadsAbstractMachine() throws Exception {
+    Class<?> c = Scxml2Bytecode.translatorForScxml(ScxmlDoc.createFromFile(LARGE_SCXML_FILE))
+        .load(getClass().getClassLoader());
+    assertEquals("com.google.common.labs.fsm.CodeEntry", c.getName());
+    assertTrue(Modifier.isAbstract(c.getModifiers()));
+    assertEquals(3, c.getField("STATE_COUNT").getInt(null));
+    assertEquals(5, c.getField("EVENT_COUNT").getInt(null));
+    assertEquals(6, c.getClasses().length);
+    Set<String> names = new HashSet<String>();
+    for (Class<?> nested : c.getClasses()) {
+      assertSame(c, nested.getDeclaringClass());
+      names.add(nested.getSimpleName());
+    }
+    assertTrue(names.contains("Action"));
+  }
+
+  @Test
+  public void enumsListDeclaredNames() throws SourceException {
+    Source s = Source.fromScxmlFileAsBytecode(LARGE_SCXML_FILE);
+    Object[] states = s.getNamedEnum("State").getEnumConstants();
+    assertEquals(s.mTranslator.getDoc().mDeclaredStateNames.size(), states.length);
+    for (int i = 0; i < states.length; i++) {
+      assertEquals(s.mTranslator.getDoc().mDeclaredStateNames.get(i), states[i].toString());
+      assertEquals(i, ((Enum<?>) states[i]).ordinal());
+    }
+    assertEquals(s.mTranslator.getDoc().getEventSet().size(),
+        s.getNamedEnum("Event").getEnumConstants().length);
+  }
+
+  @Test
+  public void fsmStartsInDeclaredInitialState() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(Source.fromScxmlFileAsBytecode(LARGE_SCXML_FILE));
+    fsm.start();
+    assertEquals("Ready", fsm.getCurrentStateName());
+    assertEquals("Ready", fsm.getRecordedStateChangeName());
+  }
+
+  @Test
+  public void fsmHandlesBaseTransitions() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(Source.fromScxmlFileAsBytecode(LARGE_SCXML_FILE));
+    fsm.start();
+    fsm.pushEvent("DigitPressed");
+    fsm.pushEvent("ResetPressed");
+    assertEquals("Ready", fsm.getCurrentStateName());
+  }
+
+  @Test
+  public void fsmPerformsActionsInOrder() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(Source.fromScxmlFileAsBytecode(MEDIUM_SCXML_FILE));
+    fsm.start();
+    fsm.pushEvent("Dog");
+    assertEquals(1, fsm.getActionCount("Grunt"));
+    assertEquals(1, fsm.getActionCount("Kick"));
+    fsm.pushEvent("Nightmare");
+    assertEquals(1, fsm.getActionCount("Scream"));
+    assertEquals(3, fsm.getTotalActionCount());
+  }
+
+  @Test
+  public void fsmFindsTerminalState() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(Source.fromScxmlFileAsBytecode(MEDIUM_SCXML_FILE));
+    fsm.start();
+    assertFalse(fsm.isInTerminalState());
+    fsm.pushEvent("AlarmRings");
+    fsm.pushEvent("GetUp");
+    assertTrue(fsm.isInTerminalState());
+    assertFalse(fsm.pushEvent("AlarmRings"));
+  }
+
+  @Test
+  public void fsmThrowsOnUnexpectedEvent() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(Source.fromScxmlFileAsBytecode(SMALL_SCXML_FILE));
+    fsm.start();
+    try {
+      fsm.pushEvent("EventB");
+      fail();
+    } catch (FsmException e) {
+      assertTrue(FsmTestUtil.isExceptionCausedBy(e, fsm.mStateException));
+    }
+  }
+
+  @Test
+  public void fsmThrowsOnUnknownEventOrdinal() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(Source.fromScxmlFileAsBytecode(TINY_SCXML_FILE));
+    fsm.start();
+    try {
+      fsm.pushEventOrdinal(-1);
+      fail();
+    } catch (FsmException e) {
+      assertTrue(FsmTestUtil.isExceptionCausedBy(e, fsm.mEventException));
+    }
+  }
+
+  @Test
+  public void fsmCantStartTwice() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(Source.fromScxmlFileAsBytecode(TINY_SCXML_FILE));
+    fsm.start();
+    try {
+      fsm.start();
+      fail();
+    } catch (FsmException e) {
+      assertTrue(FsmTestUtil.isExceptionCausedBy(e, fsm.mStateException));
+    }
+  }
+
+  @Test
+  public void unhandledReturnFalse() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(Source.fromScxmlFileAsBytecode(UNHANDLED_RETURN_FALSE_SCXML_FILE));
+    fsm.start();
+    assertFalse(fsm.pushEvent("HitSnooze"));
+    assertEquals("Sleeping", fsm.getCurrentStateName());
+    assertTrue(fsm.pushEvent("AlarmRings"));
+  }
+
+  @Test
+  public void pushEventsMatchesJavaBackend() throws FsmException, SourceException {
+    FsmMock expected = new FsmMock(MEDIUM_SCXML_FILE);
+    FsmMock actual = new FsmMock(Source.fromScxmlFileAsBytecode(MEDIUM_SCXML_FILE));
+    String[] events = {"Dog", "Dog", "Nightmare", "HitSnooze", "AlarmRings", "GetUp", "Dog"};
+    expected.start();
+    actual.start();
+    assertEquals(expected.pushEvents(events, 0, events.length),
+        actual.pushEvents(events, 0, events.length));
+    assertEquals(expected.getCurrentStateName(), actual.getCurrentStateName());
+    assertEquals(expected.getTotalActionCount(), actual.getTotalActionCount());
+    assertEquals(expected.isInTerminalState(), actual.isInTerminalState());
+  }
+
+  @Test
+  public void snapshotMatchesJavaBackend() throws FsmException, SourceException {
+    FsmMock expected = new FsmMock(MEDIUM_SCXML_FILE);
+    FsmMock actual = new FsmMock(Source.fromScxmlFileAsBytecode(MEDIUM_SCXML_FILE));
+    expected.start();
+    expected.pushEvent("AlarmRings");
+    ByteBuffer buffer = ByteBuffer.allocate(2);
+    expected.snapshot(buffer);
+    buffer.flip();
+    actual.restore(buffer);
+    assertEquals(expected.getCurrentStateName(), actual.getCurrentStateName());
+    assertEquals(0, actual.getTotalActionCount());
+
+    ByteBuffer copy = ByteBuffer.allocate(2);
+    actual.snapshot(copy);
+    assertEquals(1, copy.position());
+    assertEquals(buffer.get(0), copy.get(0));
+    try {
+      actual.restore(ByteBuffer.wrap(new byte[] {-2}));
+      fail();
+    } catch (FsmException e) {
+      assertTrue(FsmTestUtil.isExceptionCausedBy(e, actual.mStateException));
+    }
+  }
+
+  @Test
+  public void rejectsUnsupportedAttributes() throws IOException, ParseException {
+    for (String file : new String[] {DEBUG_SCXML_FILE, ATOMIC_SCXML_FILE, MAILBOX_SCXML_FILE,
+        FLEET_SCXML_FILE, UNHANDLED_THROW_SCXML_FILE}) {
+      try {
+        Scxml2Bytecode.translatorForScxml(ScxmlDoc.createFromFile(file));
+        fail(file);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+}
@@ -14,6 +14,7 @@ import org.junit.runners.JUnit4;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
 
 /**
  * The Scxml2DotTest class provides unit tests of the functionality of the
@@ -36,50 +37,45 @@ public class Scxml2DotTest {
 
   @Test
   public void outputIsNotNull() throws IOException, ParseException {
-    ByteArrayOutputStream output = FsmTestUtil.redirectToByteStream();
+    StringWriter output = new StringWriter();
     Scxml2Dot translator = Scxml2Dot.translatorForScxml(ScxmlDoc.createFromFile(TINY_SCXML_FILE));
-    translator.outputDot();
-    byte[] bytes = output.toByteArray();
-    assertTrue(bytes.length > 0);
+    translator.outputDot(output);
+    assertTrue(output.toString().length() > 0);
   }
 
   @Test
   public void tinyDotFileMatches() throws IOException, ParseException {
-    ByteArrayOutputStream output = FsmTestUtil.redirectToByteStream();
+    StringWriter output = new StringWriter();
     Scxml2Dot translator = Scxml2Dot.translatorForScxml(ScxmlDoc.createFromFile(TINY_SCXML_FILE));
-    translator.outputDot();
-    byte[] bytes = output.toByteArray();
-    String s = new String(bytes);
+    translator.outputDot(output);
+    byte[] bytes = output.toString().getBytes();
     assertArrayEquals(bytes, FsmTestUtil.readFileBytes(TINY_DOT_FILE));
   }
 
   @Test
   public void smallDotFileMatches() throws IOException, ParseException {
-    ByteArrayOutputStream output = FsmTestUtil.redirectToByteStream();
+    StringWriter output = new StringWriter();
     Scxml2Dot translator = Scxml2Dot.translatorForScxml(ScxmlDoc.createFromFile(SMALL_SCXML_FILE));
-    translator.outputDot();
-    byte[] bytes = output.toByteArray();
-    String s = new String(bytes);
+    translator.outputDot(output);
+    byte[] bytes = output.toString().getBytes();
     assertArrayEquals(bytes, FsmTestUtil.readFileBytes(SMALL_DOT_FILE));
   }
 
   @Test
   public void mediumDotFileMatches() throws IOException, ParseException {
-    ByteArrayOutputStream output = FsmTestUtil.redirectToByteStream();
+    StringWriter output = new StringWriter();
     Scxml2Dot translator = Scxml2Dot.translatorForScxml(ScxmlDoc.createFromFile(MEDIUM_SCXML_FILE));
-    translator.outputDot();
-    byte[] bytes = output.toByteArray();
-    String s = new String(bytes);
+    translator.outputDot(output);
+    byte[] bytes = output.toString().getBytes();
     assertArrayEquals(bytes, FsmTestUtil.readFileBytes(MEDIUM_DOT_FILE));
   }
 
   @Test
   public void largeDotFileMatches() throws IOException, ParseException {
-    ByteArrayOutputStream output = FsmTestUtil.redirectToByteStream();
+    StringWriter output = new StringWriter();
     Scxml2Dot translator = Scxml2Dot.translatorForScxml(ScxmlDoc.createFromFile(LARGE_SCXML_FILE));
-    translator.outputDot();
-    byte[] bytes = output.toByteArray();
-    String s = new String(bytes);
+    translator.outputDot(output);
+    byte[] bytes = output.toString().getBytes();
     assertArrayEquals(bytes, FsmTestUtil.readFileBytes(LARGE_DOT_FILE));
   }
 
@@ -10,6 +10,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.common.labs.fsm.ScxmlDoc.ParseException;
+import com.google.common.labs.fsm.ScxmlDoc.Transition;
 import com.google.common.labs.fsm.Source.SourceException;
 import com.google.testing.util.TestUtil;
 
@@ -18,16 +19,25 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.tools.JavaCompiler;
 import javax.tools.ToolProvider;
@@ -46,14 +56,40 @@ public class Scxml2JavaTest {
   private static final String LARGE_SCXML_FILE = TESTDATA_DIR + "code_entry.xml";
   private static final String MEDIUM_SCXML_FILE = TESTDATA_DIR + "medium.xml";
   private static final String DEBUG_SCXML_FILE = TESTDATA_DIR + "debug.xml";
+  private static final String TABLE_SCXML_FILE = TESTDATA_DIR + "table_dispatch.xml";
+  private static final String STATE_SCXML_FILE = TESTDATA_DIR + "state_dispatch.xml";
+  private static final String METRICS_SCXML_FILE = TESTDATA_DIR + "metrics.xml";
+  private static final String METRICS_TABLE_SCXML_FILE = TESTDATA_DIR + "metrics_table.xml";
+  private static final String ATOMIC_SCXML_FILE = TESTDATA_DIR + "atomic.xml";
+  private static final String ATOMIC_TABLE_SCXML_FILE = TESTDATA_DIR + "atomic_table.xml";
+  private static final String MAILBOX_SCXML_FILE = TESTDATA_DIR + "mailbox.xml";
+  private static final String FLEET_SCXML_FILE = TESTDATA_DIR + "fleet.xml";
+  private static final String FLEET_TABLE_SCXML_FILE = TESTDATA_DIR + "fleet_table.xml";
+  private static final String UNHANDLED_THROW_SCXML_FILE = TESTDATA_DIR + "unhandled_throw.xml";
+  private static final String UNHANDLED_RETURN_FALSE_SCXML_FILE =
+      TESTDATA_DIR + "unhandled_return_false.xml";
+  private static final String UNHANDLED_IGNORE_SCXML_FILE =
+      TESTDATA_DIR + "unhandled_ignore.xml";
+  private static final String UNHANDLED_CALLBACK_SCXML_FILE =
+      TESTDATA_DIR + "unhandled_callback.xml";
 
   @Test
   public void outputIsNotNull() throws IOException, ParseException {
-    ByteArrayOutputStream output = FsmTestUtil.redirectToByteStream();
+    StringWriter output = new StringWriter();
     Scxml2Java translator = Scxml2Java.translatorForScxml(ScxmlDoc.createFromFile(TINY_SCXML_FILE));
+    translator.outputJava(output);
+    assertTrue(output.toString().length() > 0);
+  }
+
+  @Test
+  public void outputMatchesStandardOutput() throws IOException, ParseException {
+    ByteArrayOutputStream stdout = FsmTestUtil.redirectToByteStream();
+    Scxml2Java translator =
+        Scxml2Java.translatorForScxml(ScxmlDoc.createFromFile(FLEET_SCXML_FILE));
     translator.outputJava();
-    byte[] bytes = output.toByteArray();
-    assertTrue(bytes.length > 0);
+    StringWriter output = new StringWriter();
+    translator.outputJava(output);
+    assertEquals(new String(stdout.toByteArray()), output.toString());
   }
 
   @Test
@@ -156,8 +192,9 @@ public class Scxml2JavaTest {
   @Test
   public void classHasCorrectFields() throws SourceException {
     Source s = Source.fromScxmlFile(LARGE_SCXML_FILE);
-    Set<String> expected =
-        new HashSet<String>(Arrays.asList("mCurrentState", "mPushingEvent", "mDebugLogger"));
+    Set<String> expected = new HashSet<String>(Arrays.asList("mCurrentState", "mPushingEvent",
+        "mDebugLogger", "EVENT_COUNT", "STATE_COUNT", "STATE_BYTES", "NONE", "HANDLED",
+        "UNHANDLED", "TERMINAL", "UNKNOWN_STATE", "EVENTS", "STATES"));
     for (Field field : s.mClass.getDeclaredFields()) {
       assertTrue(expected.contains(field.getName()));
       expected.remove(field.getName());
@@ -177,8 +214,10 @@ public class Scxml2JavaTest {
   public void classHasConcreteMethods() throws SourceException {
     Source s = Source.fromScxmlFile(LARGE_SCXML_FILE);
     List<String> expectedConcreteMethods = new ArrayList<String>(Arrays.asList(
-        "transitionToState", "isInTerminalState", "setDebugLogger", "pushEvent", "start", "start",
-        "getCurrentState", "handleBaseEvent"));
+        "transitionToState", "isInTerminalState", "setDebugLogger", "pushEvent", "pushEvent",
+        "pushEvents", "pushEvents", "dispatchEvent", "start", "start", "getCurrentState",
+        "getCurrentStateOrdinal", "handleBaseEvent", "snapshot", "snapshot", "restore",
+        "restore"));
     for (Method method : s.mClass.getDeclaredMethods()) {
       if (!Modifier.isAbstract(method.getModifiers())) {
         assertTrue(expectedConcreteMethods.contains(method.getName()));
@@ -426,6 +465,704 @@ public class Scxml2JavaTest {
     assertEquals("StateTwo", fsm.getLastStateMsg());
   }
 
+  @Test
+  public void classHasCorrectActions() throws SourceException {
+    Source s = Source.fromScxmlFile(LARGE_SCXML_FILE);
+    Class<?> actionEnum = s.getNamedEnum("Action");
+    Set<String> expected = new HashSet<String>(s.mTranslator.getDoc().getActionSet());
+    for (Object o : actionEnum.getEnumConstants()) {
+      assertTrue(expected.remove(o.toString()));
+    }
+    assertTrue(expected.isEmpty());
+  }
+
+  @Test
+  public void debugLoggerTakesEnums() throws SourceException, NoSuchMethodException {
+    Source s = Source.fromScxmlFile(DEBUG_SCXML_FILE);
+    Class<?> logger = null;
+    for (Class<?> innerCls : s.mClass.getClasses()) {
+      if (innerCls.getSimpleName().equals("DebugLogger")) {
+        logger = innerCls;
+      }
+    }
+    assertNotNull(logger);
+    logger.getMethod("onState", s.getNamedEnum("State"));
+    logger.getMethod("onAction", s.getNamedEnum("Action"));
+    logger.getMethod("onEvent", s.getNamedEnum("Event"));
+  }
+
+  @Test
+  public void installingDebugLoggerTurnsOnDebugSwitch() throws Throwable {
+    FsmMock fsm = new FsmMock(DEBUG_SCXML_FILE);
+    Field field = fsm.mSource.mClass.getDeclaredField("DEBUG_SWITCH");
+    field.setAccessible(true);
+    MutableCallSite debugSwitch = (MutableCallSite) field.get(null);
+    assertEquals(false, debugSwitch.getTarget().invoke());
+    fsm.setupDebugLogging();
+    assertEquals(true, debugSwitch.getTarget().invoke());
+  }
+
+  @Test
+  public void classHasCountConstants()
+      throws SourceException, NoSuchFieldException, IllegalAccessException {
+    Source s = Source.fromScxmlFile(LARGE_SCXML_FILE);
+    assertEquals(s.mTranslator.getDoc().getEventSet().size(),
+        s.mClass.getField("EVENT_COUNT").getInt(null));
+    assertEquals(s.mTranslator.getDoc().getStates().size(),
+        s.mClass.getField("STATE_COUNT").getInt(null));
+  }
+
+  @Test
+  public void fsmAcceptsEventOrdinals() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(MEDIUM_SCXML_FILE);
+    fsm.start();
+    assertEquals(0, fsm.getCurrentStateOrdinal());
+    fsm.pushEventOrdinal(fsm.getEventOrdinal("AlarmRings"));
+    assertEquals("AnnoyedState", fsm.getCurrentStateName());
+    assertEquals(1, fsm.getCurrentStateOrdinal());
+    assertEquals(1, fsm.getActionCount("Wake"));
+  }
+
+  @Test
+  public void fsmThrowsOnUnknownEventOrdinal() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(MEDIUM_SCXML_FILE);
+    fsm.start();
+    try {
+      fsm.pushEventOrdinal(-2);
+      // Exception expected
+      fail();
+    } catch (FsmException e) {
+      assertTrue(FsmTestUtil.isExceptionCausedBy(e, fsm.mEventException));
+    }
+    assertEquals("Sleeping", fsm.getCurrentStateName());
+  }
+
+  @Test
+  public void tableDispatchOutputCompiles() throws SourceException {
+    assertEquals(0, Source.fromScxmlFile(TABLE_SCXML_FILE).mCompilerResult);
+  }
+
+  @Test
+  public void tableDispatchPerformsActionsAndTransitions() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(TABLE_SCXML_FILE);
+    fsm.start();
+    fsm.pushEvent("EnterPressed");
+    assertEquals("ValidatingEntry", fsm.getCurrentStateName());
+    assertEquals(1, fsm.getActionCount("DoubleBeep"));
+    assertEquals(1, fsm.getActionCount("PerformValidation"));
+    fsm.pushEvent("EntryValid");
+    assertEquals("Ready", fsm.getCurrentStateName());
+    assertEquals(4, fsm.getTotalActionCount());
+  }
+
+  @Test
+  public void tableDispatchHandlesBaseTransitions() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(TABLE_SCXML_FILE);
+    fsm.start();
+    fsm.pushEvent("EnterPressed");
+    fsm.pushEvent("ResetPressed");
+    assertEquals("Ready", fsm.getCurrentStateName());
+    assertEquals(1, fsm.getActionCount("ClearCodeEntryBuffer"));
+  }
+
+  @Test
+  public void tableDispatchThrowsOnUnexpectedEvent() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(TABLE_SCXML_FILE);
+    fsm.start();
+    try {
+      fsm.pushEvent("EntryValid");
+      // Exception expected
+      fail();
+    } catch (FsmException e) {
+      assertTrue(FsmTestUtil.isExceptionCausedBy(e, fsm.mStateException));
+    }
+  }
+
+  @Test
+  public void stateDispatchOutputCompiles() throws SourceException {
+    assertEquals(0, Source.fromScxmlFile(STATE_SCXML_FILE).mCompilerResult);
+  }
+
+  @Test
+  public void stateDispatchHandlersExtendBaseStateHandler() throws SourceException {
+    Source s = Source.fromScxmlFile(STATE_SCXML_FILE);
+    Class<?> baseHandler = null;
+    Class<?> readyHandler = null;
+    for (Class<?> c : s.mClass.getDeclaredClasses()) {
+      if (c.getSimpleName().equals("BaseStateHandler")) {
+        baseHandler = c;
+      } else if (c.getSimpleName().equals("ReadyHandler")) {
+        readyHandler = c;
+      }
+    }
+    assertNotNull(baseHandler);
+    assertNotNull(readyHandler);
+    assertEquals(baseHandler, readyHandler.getSuperclass());
+    assertTrue(Modifier.isFinal(readyHandler.getModifiers()));
+  }
+
+  @Test
+  public void stateDispatchPerformsActionsAndTransitions() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(STATE_SCXML_FILE);
+    fsm.start();
+    fsm.pushEvent("EnterPressed");
+    assertEquals("ValidatingEntry", fsm.getCurrentStateName());
+    assertEquals(1, fsm.getActionCount("DoubleBeep"));
+    assertEquals(1, fsm.getActionCount("PerformValidation"));
+    fsm.pushEvent("EntryValid");
+    assertEquals("Ready", fsm.getCurrentStateName());
+    assertEquals(4, fsm.getTotalActionCount());
+  }
+
+  @Test
+  public void stateDispatchHandlesBaseTransitions() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(STATE_SCXML_FILE);
+    fsm.start();
+    fsm.pushEvent("EnterPressed");
+    fsm.pushEvent("ResetPressed");
+    assertEquals("Ready", fsm.getCurrentStateName());
+    assertEquals(1, fsm.getActionCount("ClearCodeEntryBuffer"));
+  }
+
+  @Test
+  public void stateDispatchThrowsOnUnexpectedEvent() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(STATE_SCXML_FILE);
+    fsm.start();
+    try {
+      fsm.pushEvent("EntryValid");
+      // Exception expected
+      fail();
+    } catch (FsmException e) {
+      assertTrue(FsmTestUtil.isExceptionCausedBy(e, fsm.mStateException));
+    }
+  }
+
+  @Test
+  public void metricsOutputCompiles() throws SourceException {
+    assertEquals(0, Source.fromScxmlFile(METRICS_SCXML_FILE).mCompilerResult);
+    assertEquals(0, Source.fromScxmlFile(METRICS_TABLE_SCXML_FILE).mCompilerResult);
+  }
+
+  @Test
+  public void classWithoutMetricsHasNoSnapshot() throws SourceException {
+    for (Method m : Source.fromScxmlFile(LARGE_SCXML_FILE).mClass.getDeclaredMethods()) {
+      assertFalse(m.getName().equals("snapshotMetrics"));
+    }
+  }
+
+  private static Object snapshotMetrics(FsmMock fsm) throws ReflectiveOperationException {
+    return fsm.mObject.getClass().getMethod("snapshotMetrics").invoke(fsm.mObject);
+  }
+
+  private static long getTransitionCount(Object metrics, int transition)
+      throws ReflectiveOperationException {
+    return (Long) metrics.getClass().getMethod("getTransitionCount", int.class)
+        .invoke(metrics, transition);
+  }
+
+  private static void assertCountsTransitionsAndActions(String file)
+      throws FsmException, SourceException, ReflectiveOperationException {
+    FsmMock fsm = new FsmMock(file);
+    fsm.start();
+    fsm.pushEvent("EnterPressed");
+    fsm.pushEvent("EntryInvalid");
+    fsm.pushEvent("DigitPressed");
+    fsm.pushEvent("ResetPressed");
+    Object metrics = snapshotMetrics(fsm);
+    assertEquals(Arrays.asList("BaseState.ResetPressed", "Ready.DigitPressed",
+        "Ready.EnterPressed", "ValidatingEntry.EntryValid", "ValidatingEntry.EntryInvalid"),
+        Arrays.asList((String[]) fsm.mSource.mClass.getField("TRANSITIONS").get(null)));
+    long[] expected = {1, 1, 1, 0, 1};
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], getTransitionCount(metrics, i));
+    }
+    Method actionCount = metrics.getClass().getMethod("getActionCount");
+    assertEquals(6L, actionCount.invoke(metrics));
+    Method percentile = metrics.getClass().getMethod("getActionNanosAtPercentile", double.class);
+    long median = (Long) percentile.invoke(metrics, 50.0);
+    assertTrue(median <= (Long) percentile.invoke(metrics, 100.0));
+  }
+
+  @Test
+  public void metricsCountTransitionsAndActions()
+      throws FsmException, SourceException, ReflectiveOperationException {
+    assertCountsTransitionsAndActions(METRICS_SCXML_FILE);
+  }
+
+  @Test
+  public void tableDispatchMetricsCountTransitionsAndActions()
+      throws FsmException, SourceException, ReflectiveOperationException {
+    assertCountsTransitionsAndActions(METRICS_TABLE_SCXML_FILE);
+  }
+
+  @Test
+  public void metricsIncludeTimeInCurrentState()
+      throws FsmException, SourceException, ReflectiveOperationException, InterruptedException {
+    FsmMock fsm = new FsmMock(METRICS_SCXML_FILE);
+    fsm.start();
+    Object ready = fsm.mSource.getNamedEnum("State").getField("Ready").get(null);
+    Method stateNanos = fsm.mSource.mClass.getMethod("snapshotMetrics").getReturnType()
+        .getMethod("getStateNanos", ready.getClass());
+    long before = (Long) stateNanos.invoke(snapshotMetrics(fsm), ready);
+    Thread.sleep(5);
+    long after = (Long) stateNanos.invoke(snapshotMetrics(fsm), ready);
+    assertTrue(after - before >= 5000000);
+    fsm.pushEvent("EnterPressed");
+    Object metrics = snapshotMetrics(fsm);
+    long left = (Long) stateNanos.invoke(metrics, ready);
+    assertTrue(left >= after);
+    Thread.sleep(1);
+    assertEquals(left, stateNanos.invoke(snapshotMetrics(fsm), ready));
+  }
+
+  @Test
+  public void metricsTimeRestoredState()
+      throws FsmException, SourceException, ReflectiveOperationException, InterruptedException {
+    FsmMock fsm = new FsmMock(METRICS_SCXML_FILE);
+    fsm.start();
+    fsm.restore(ByteBuffer.wrap(new byte[] {2}));
+    Class<?> stateEnum = fsm.mSource.getNamedEnum("State");
+    Object ready = stateEnum.getField("Ready").get(null);
+    Object validating = stateEnum.getField("ValidatingEntry").get(null);
+    Method stateNanos = fsm.mSource.mClass.getMethod("snapshotMetrics").getReturnType()
+        .getMethod("getStateNanos", stateEnum);
+    long readyBefore = (Long) stateNanos.invoke(snapshotMetrics(fsm), ready);
+    Thread.sleep(5);
+    Object metrics = snapshotMetrics(fsm);
+    assertEquals(readyBefore, stateNanos.invoke(metrics, ready));
+    assertTrue((Long) stateNanos.invoke(metrics, validating) >= 5000000);
+  }
+
+  @Test
+  public void terminalStateIgnoresRepeatedEvents() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(MEDIUM_SCXML_FILE);
+    fsm.start();
+    fsm.pushEvent("AlarmRings");
+    fsm.pushEvent("GetUp");
+    assertFalse(fsm.pushEvent("GetUp"));
+    assertFalse(fsm.pushEvent("HitSnooze"));
+  }
+
+  @Test
+  public void atomicClassHoldsStateInAtomicInteger()
+      throws SourceException, NoSuchFieldException {
+    Source s = Source.fromScxmlFile(ATOMIC_SCXML_FILE);
+    assertEquals(AtomicInteger.class, s.mClass.getDeclaredField("mCurrentState").getType());
+  }
+
+  @Test
+  public void atomicFsmPerformsTransitions() throws FsmException, SourceException {
+    for (String file : Arrays.asList(ATOMIC_SCXML_FILE, ATOMIC_TABLE_SCXML_FILE)) {
+      FsmMock fsm = new FsmMock(file);
+      fsm.start();
+      fsm.pushEvent("EnterPressed");
+      assertEquals("ValidatingEntry", fsm.getCurrentStateName());
+      fsm.pushEvent("ResetPressed");
+      assertEquals("Ready", fsm.getCurrentStateName());
+      assertEquals(1, fsm.getCurrentStateOrdinal());
+      assertEquals(3, fsm.getTotalActionCount());
+    }
+  }
+
+  @Test
+  public void atomicFsmReleasesClaimOnUnhandledEvent() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(ATOMIC_SCXML_FILE);
+    fsm.start();
+    try {
+      fsm.pushEvent("EntryValid");
+      // Exception expected
+      fail();
+    } catch (FsmException e) {
+      assertTrue(FsmTestUtil.isExceptionCausedBy(e, fsm.mStateException));
+    }
+    fsm.pushEvent("EnterPressed");
+    assertEquals("ValidatingEntry", fsm.getCurrentStateName());
+  }
+
+  @Test
+  public void atomicFsmThrowsOnPushEventDuringAction() throws FsmException, SourceException {
+    final FsmMock fsm = new FsmMock(ATOMIC_SCXML_FILE);
+    fsm.mTestActionListener = new FsmMock.ActionListener() {
+      @Override
+      public void onAction(String actionName) throws FsmException {
+        fsm.pushEvent("EntryValid");
+      }
+    };
+    fsm.start();
+    try {
+      fsm.pushEvent("EnterPressed");
+      // Exception expected
+      fail();
+    } catch (FsmException e) {
+      assertTrue(FsmTestUtil.isExceptionCausedBy(e, fsm.mStateException));
+    }
+  }
+
+  @Test
+  public void mailboxDrainsEventsOfferedByActions() throws FsmException, SourceException {
+    final FsmMock fsm = new FsmMock(MAILBOX_SCXML_FILE);
+    fsm.mTestActionListener = new FsmMock.ActionListener() {
+      @Override
+      public void onAction(String actionName) throws FsmException {
+        if (actionName.equals("PerformValidation")) {
+          assertTrue(fsm.offerEvent("EntryValid"));
+        }
+      }
+    };
+    fsm.start();
+    assertTrue(fsm.offerEvent("DigitPressed"));
+    assertTrue(fsm.offerEvent("EnterPressed"));
+    assertEquals("Ready", fsm.getCurrentStateName());
+    assertEquals(3, fsm.drain(100));
+    assertEquals("Ready", fsm.getCurrentStateName());
+    assertEquals(1, fsm.getActionCount("Unlock"));
+    assertEquals(0, fsm.drain(100));
+  }
+
+  @Test
+  public void mailboxDrainStopsAtMaxEvents() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(MAILBOX_SCXML_FILE);
+    fsm.start();
+    assertTrue(fsm.offerEvent("DigitPressed"));
+    assertTrue(fsm.offerEvent("DigitPressed"));
+    assertEquals(1, fsm.drain(1));
+    assertEquals(1, fsm.getActionCount("Beep"));
+    assertEquals(1, fsm.drain(1));
+    assertEquals(2, fsm.getActionCount("Beep"));
+  }
+
+  @Test
+  public void mailboxRejectsEventsWhenFull() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(MAILBOX_SCXML_FILE);
+    fsm.start();
+    for (int i = 0; i < 4; i++) {
+      assertTrue(fsm.offerEvent("DigitPressed"));
+    }
+    assertFalse(fsm.offerEvent("DigitPressed"));
+    assertEquals(4, fsm.drain(100));
+    assertTrue(fsm.offerEvent("DigitPressed"));
+  }
+
+  @Test
+  public void restoreSetsSnapshotStateWithoutStateChange() throws FsmException, SourceException {
+    for (String file : Arrays.asList(LARGE_SCXML_FILE, TABLE_SCXML_FILE, ATOMIC_SCXML_FILE)) {
+      FsmMock fsm = new FsmMock(file);
+      fsm.start();
+      fsm.pushEvent("EnterPressed");
+      ByteBuffer buffer = ByteBuffer.allocate(16);
+      fsm.snapshot(buffer);
+      assertEquals(1, buffer.position());
+      buffer.flip();
+
+      FsmMock restored = new FsmMock(file);
+      restored.start();
+      restored.restore(buffer);
+      assertFalse(buffer.hasRemaining());
+      assertEquals("ValidatingEntry", restored.getCurrentStateName());
+      assertEquals("Ready", restored.getRecordedStateChangeName());
+      restored.pushEvent("EntryValid");
+      assertEquals(1, restored.getActionCount("Unlock"));
+    }
+  }
+
+  @Test
+  public void snapshotOfUnstartedMachineRestoresUnstarted() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(LARGE_SCXML_FILE);
+    ByteBuffer buffer = ByteBuffer.allocate(1);
+    fsm.snapshot(buffer);
+    buffer.flip();
+    FsmMock restored = new FsmMock(LARGE_SCXML_FILE);
+    restored.start();
+    restored.restore(buffer);
+    assertEquals(-1, restored.getCurrentStateOrdinal());
+    restored.start();
+    assertEquals("Ready", restored.getCurrentStateName());
+  }
+
+  @Test
+  public void restoreThrowsOnUnknownState() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(LARGE_SCXML_FILE);
+    fsm.start();
+    try {
+      fsm.restore(ByteBuffer.wrap(new byte[] {3}));
+      // Exception expected
+      fail();
+    } catch (FsmException e) {
+      assertTrue(FsmTestUtil.isExceptionCausedBy(e, fsm.mStateException));
+    }
+    assertEquals("Ready", fsm.getCurrentStateName());
+  }
+
+  @Test
+  public void snapshotThrowsDuringPush() throws FsmException, SourceException {
+    final FsmMock fsm = new FsmMock(LARGE_SCXML_FILE);
+    fsm.mTestActionListener = new FsmMock.ActionListener() {
+      @Override
+      public void onAction(String actionName) throws FsmException {
+        fsm.snapshot(ByteBuffer.allocate(1));
+      }
+    };
+    fsm.start();
+    try {
+      fsm.pushEvent("DigitPressed");
+      // Exception expected
+      fail();
+    } catch (FsmException e) {
+      assertTrue(FsmTestUtil.isExceptionCausedBy(e, fsm.mStateException));
+    }
+  }
+
+  @Test
+  public void snapshotIncludesQueuedEvents() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(MAILBOX_SCXML_FILE);
+    fsm.start();
+    assertTrue(fsm.offerEvent("EnterPressed"));
+    assertTrue(fsm.offerEvent("EntryValid"));
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+    fsm.snapshot(buffer);
+    assertEquals(1 + 4 + 2 * 4, buffer.position());
+    buffer.flip();
+
+    FsmMock restored = new FsmMock(MAILBOX_SCXML_FILE);
+    restored.start();
+    assertTrue(restored.offerEvent("ResetPressed"));
+    restored.restore(buffer);
+    assertEquals(2, restored.drain(100));
+    assertEquals(1, restored.getActionCount("Unlock"));
+    assertEquals(0, restored.getActionCount("ClearCodeEntryBuffer"));
+  }
+
+  @Test
+  public void bulkSnapshotWritesEachMachineInTurn() throws Exception {
+    FsmMock fsm = new FsmMock(LARGE_SCXML_FILE);
+    Class<?> base = fsm.mObject.getClass().getSuperclass();
+    Object machines = Array.newInstance(base, 2);
+    Array.set(machines, 0, fsm.mObject);
+    Array.set(machines, 1, fsm.mObject);
+    Method snapshot = base.getMethod("snapshot", machines.getClass(), ByteBuffer.class);
+    Method restore = base.getMethod("restore", machines.getClass(), ByteBuffer.class);
+    assertTrue(Modifier.isStatic(snapshot.getModifiers()));
+
+    ByteBuffer buffer = ByteBuffer.allocate(2);
+    snapshot.invoke(null, machines, buffer);
+    assertEquals(2, buffer.position());
+    assertEquals(-1, buffer.get(1));
+    restore.invoke(null, machines, ByteBuffer.wrap(new byte[] {-1, 2}));
+    assertEquals("ValidatingEntry", fsm.getCurrentStateName());
+  }
+
+  @Test
+  public void fleetHasSnapshotMethods() throws Exception {
+    Source s = Source.fromScxmlFile(FLEET_SCXML_FILE);
+    Class<?> fleet = getFleetClass(s);
+    assertEquals(1, s.mClass.getField("STATE_BYTES").getInt(null));
+    fleet.getMethod("snapshot", ByteBuffer.class);
+    fleet.getMethod("restore", ByteBuffer.class);
+  }
+
+  private Class<?> getFleetClass(Source s) {
+    for (Class<?> innerCls : s.mClass.getClasses()) {
+      if (innerCls.getName().equals(s.mFullClassName + "$Fleet")) {
+        return innerCls;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void fleetOutputCompiles() throws SourceException {
+    assertEquals(0, Source.fromScxmlFile(FLEET_SCXML_FILE).mCompilerResult);
+    assertEquals(0, Source.fromScxmlFile(FLEET_TABLE_SCXML_FILE).mCompilerResult);
+  }
+
+  @Test
+  public void noFleetByDefault() throws SourceException {
+    assertNull(getFleetClass(Source.fromScxmlFile(LARGE_SCXML_FILE)));
+  }
+
+  @Test
+  public void fleetStoresStatesInByteColumn() throws SourceException, NoSuchFieldException {
+    Source s = Source.fromScxmlFile(FLEET_SCXML_FILE);
+    Class<?> fleet = getFleetClass(s);
+    assertNotNull(fleet);
+    assertTrue(Modifier.isAbstract(fleet.getModifiers()));
+    assertEquals(byte[].class, fleet.getDeclaredField("mStates").getType());
+  }
+
+  @Test
+  public void fleetMethodsTakeMachineId() throws SourceException, NoSuchMethodException {
+    Source s = Source.fromScxmlFile(FLEET_SCXML_FILE);
+    Class<?> fleet = getFleetClass(s);
+    fleet.getConstructor(int.class);
+    fleet.getMethod("start", int.class);
+    fleet.getMethod("pushEvent", int.class, s.getNamedEnum("Event"));
+    fleet.getMethod("pushEvent", int.class, int.class);
+    fleet.getMethod("getCurrentStateOrdinal", int.class);
+    fleet.getMethod("isInTerminalState", int.class);
+    for (String action : s.mTranslator.getDoc().getActionSet()) {
+      Method m = fleet.getDeclaredMethod("onAction" + action, int.class);
+      assertTrue(Modifier.isAbstract(m.getModifiers()));
+    }
+  }
+
+  @Test
+  public void pushEventsReturnsEndWhenAllEventsHandled() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(MEDIUM_SCXML_FILE);
+    fsm.start();
+    String[] events = {"HitSnooze", "Dog", "AlarmRings", "HitSnooze", "Nightmare", "HitSnooze"};
+    assertEquals(5, fsm.pushEvents(events, 1, 5));
+    assertEquals("AnnoyedState", fsm.getCurrentStateName());
+    assertEquals(1, fsm.getActionCount("Scream"));
+  }
+
+  @Test
+  public void pushEventsStopsAtUnhandledEvent() throws FsmException, SourceException {
+    for (String file : Arrays.asList(LARGE_SCXML_FILE, TABLE_SCXML_FILE, ATOMIC_SCXML_FILE)) {
+      FsmMock fsm = new FsmMock(file);
+      fsm.start();
+      String[] events = {"DigitPressed", "EnterPressed", "DigitPressed", "EntryValid"};
+      assertEquals(2, fsm.pushEvents(events, 0, events.length));
+      assertEquals("ValidatingEntry", fsm.getCurrentStateName());
+      assertEquals(1, fsm.getActionCount("Beep"));
+      fsm.pushEvent("EntryValid");
+      assertEquals("Ready", fsm.getCurrentStateName());
+    }
+  }
+
+  @Test
+  public void pushEventsStopsAtTerminalState() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(MEDIUM_SCXML_FILE);
+    fsm.start();
+    String[] events = {"AlarmRings", "GetUp", "HitSnooze"};
+    assertEquals(2, fsm.pushEvents(events, 0, events.length));
+    assertTrue(fsm.isInTerminalState());
+  }
+
+  @Test
+  public void unhandledThrowUsesPreallocatedStacklessException()
+      throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(UNHANDLED_THROW_SCXML_FILE);
+    fsm.start();
+    Throwable first = null;
+    for (int i = 0; i < 2; i++) {
+      try {
+        fsm.pushEvent("HitSnooze");
+        // Exception expected
+        fail();
+      } catch (FsmException e) {
+        Throwable cause = e.getCause().getCause();
+        assertTrue(fsm.mStateException.isInstance(cause));
+        assertEquals(0, cause.getStackTrace().length);
+        cause.addSuppressed(new RuntimeException());
+        assertEquals(0, cause.getSuppressed().length);
+        try {
+          cause.initCause(new RuntimeException());
+          fail();
+        } catch (IllegalStateException expected) {
+          // the shared instance keeps its null cause
+        }
+        assertTrue(first == null || first == cause);
+        first = cause;
+      }
+    }
+    fsm.pushEvent("AlarmRings");
+    assertEquals("AnnoyedState", fsm.getCurrentStateName());
+  }
+
+  @Test
+  public void unhandledReturnFalse() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(UNHANDLED_RETURN_FALSE_SCXML_FILE);
+    fsm.start();
+    assertFalse(fsm.pushEvent("HitSnooze"));
+    assertEquals("Sleeping", fsm.getCurrentStateName());
+    assertTrue(fsm.pushEvent("AlarmRings"));
+  }
+
+  @Test
+  public void unhandledIgnore() throws FsmException, SourceException {
+    FsmMock fsm = new FsmMock(UNHANDLED_IGNORE_SCXML_FILE);
+    fsm.start();
+    assertTrue(fsm.pushEvent("HitSnooze"));
+    assertEquals("Sleeping", fsm.getCurrentStateName());
+    assertEquals(0, fsm.getTotalActionCount());
+    String[] events = {"HitSnooze", "AlarmRings", "Dog", "HitSnooze"};
+    assertEquals(4, fsm.pushEvents(events, 0, events.length));
+    assertEquals("Sleeping", fsm.getCurrentStateName());
+  }
+
+  @Test
+  public void unhandledCallbackIsAbstract() throws SourceException, NoSuchMethodException {
+    Source s = Source.fromScxmlFile(UNHANDLED_CALLBACK_SCXML_FILE);
+    Method m = s.mClass.getDeclaredMethod(
+        "onUnhandledEvent", s.getNamedEnum("State"), s.getNamedEnum("Event"));
+    assertTrue(Modifier.isAbstract(m.getModifiers()));
+    assertNotNull(getFleetClass(s).getDeclaredMethod(
+        "onUnhandledEvent", int.class, s.getNamedEnum("State"), s.getNamedEnum("Event")));
+  }
+
+  /**
+   * @return the path of a temporary file holding a synthetic machine with too
+   *         many states to dispatch from a single method
+   */
+  private static String writeHugeScxmlFile(String dispatch) throws IOException {
+    String scxml = new ScxmlGenerator()
+        .setName("Huge")
+        .setStateCount(3000)
+        .setEventCount(24)
+        .setBaseTransitions(1)
+        .generate()
+        .replace("<scxml ", "<scxml dispatch=\"" + dispatch + "\" ");
+    File file = File.createTempFile("Huge", ".xml");
+    file.deleteOnExit();
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      writer.write(scxml);
+    } finally {
+      writer.close();
+    }
+    return file.getPath();
+  }
+
+  @Test
+  public void hugeSwitchDispatchIsSplitAmongMethods() throws IOException, ParseException {
+    StringWriter java = new StringWriter();
+    Scxml2Java.translatorForScxml(ScxmlDoc.createFromFile(writeHugeScxmlFile("switch")))
+        .outputJava(java);
+    assertTrue(java.toString().contains("switch (current >> "));
+    assertTrue(java.toString().contains("private int dispatchStates0To"));
+  }
+
+  @Test
+  public void hugeTablesAreFilledInBySeparateMethods() throws IOException, ParseException {
+    StringWriter java = new StringWriter();
+    Scxml2Java.translatorForScxml(ScxmlDoc.createFromFile(writeHugeScxmlFile("table")))
+        .outputJava(java);
+    assertTrue(java.toString().contains("private static void initTables0() {"));
+  }
+
+  @Test
+  public void hugeFsmMatchesInterpreter()
+      throws IOException, ParseException, FsmException, SourceException {
+    for (String dispatch : Arrays.asList("switch", "table")) {
+      String path = writeHugeScxmlFile(dispatch);
+      ScxmlDoc doc = ScxmlDoc.createFromFile(path);
+      ScxmlInterpreter interpreter = new ScxmlInterpreter(doc);
+      FsmMock fsm = new FsmMock(path);
+      assertEquals(0, fsm.mSource.mCompilerResult);
+      interpreter.start();
+      fsm.start();
+      Random random = new Random(17);
+      for (int i = 0; i < 1000; i++) {
+        List<Transition> transitions =
+            doc.getState(interpreter.getCurrentState()).getTransitions();
+        String event = transitions.get(random.nextInt(transitions.size())).getEvent();
+        assertTrue(interpreter.pushEvent(event));
+        assertTrue(fsm.pushEvent(event));
+        assertEquals(interpreter.getCurrentState(), fsm.getCurrentStateName());
+      }
+    }
+  }
+
   @Test
   public void mainPerformsTranslation() throws IOException, ParseException {
     File javaSrcFile = FsmTestUtil.redirectToTemporaryFile("tiny");
@@ -0,0 +1,224 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.labs.fsm.ScxmlBatch.Result;
+import com.google.common.labs.fsm.ScxmlDoc.ParseException;
+import com.google.testing.util.TestUtil;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the ScxmlBatch class
+ */
+@RunWith(JUnit4.class)
+public class ScxmlBatchTest {
+
+  private static final String TESTDATA_DIR =
+      TestUtil.getSrcDir() + "/google3/javatests/com/google/common/labs/fsm/testdata/";
+
+  private Path mTempDir;
+
+  @After
+  public void deleteTempDir() throws IOException {
+    if (mTempDir == null) {
+      return;
+    }
+    Files.walkFileTree(mTempDir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+          throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Copy testdata files into in/ of a new temporary directory
+   *
+   * @param paths pairs of a testdata file name and its path under in/
+   */
+  private Path copyInputs(String... paths) throws IOException {
+    mTempDir = Files.createTempDirectory("ScxmlBatchTest");
+    Path in = mTempDir.resolve("in");
+    for (int i = 0; i < paths.length; i += 2) {
+      Path target = in.resolve(paths[i + 1]);
+      Files.createDirectories(target.getParent());
+      Files.copy(Paths.get(TESTDATA_DIR + paths[i]), target);
+    }
+    return in;
+  }
+
+  private static String read(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), Charset.forName("UTF-8"));
+  }
+
+  @Test
+  public void writesMirroredTree() throws IOException, ParseException {
+    Path in = copyInputs("tiny.xml", "tiny.xml", "medium.xml", "alarm/clock/medium.xml");
+    List<Result> results = new ScxmlBatch()
+        .setJavaDir(mTempDir.resolve("java"))
+        .setDotDir(mTempDir.resolve("dot"))
+        .setThreads(2)
+        .translate(Arrays.asList(in.toString()));
+    assertEquals(2, results.size());
+    assertEquals(in.resolve("alarm/clock/medium.xml"), results.get(0).getInput());
+    assertEquals(in.resolve("tiny.xml"), results.get(1).getInput());
+
+    ScxmlDoc doc = ScxmlDoc.createFromFile(TESTDATA_DIR + "medium.xml");
+    Path java = mTempDir.resolve("java/alarm/clock/" + doc.getClassName() + ".java");
+    assertEquals(java, results.get(0).getJavaOutput());
+    StringWriter expected = new StringWriter();
+    Scxml2Java.translatorForScxml(doc).outputJava(expected);
+    assertEquals(expected.toString(), read(java));
+
+    Path dot = mTempDir.resolve("dot/alarm/clock/medium.dot");
+    assertEquals(dot, results.get(0).getDotOutput());
+    expected = new StringWriter();
+    Scxml2Dot.translatorForScxml(doc).outputDot(expected);
+    assertEquals(expected.toString(), read(dot));
+    assertTrue(Files.exists(mTempDir.resolve("dot/tiny.dot")));
+  }
+
+  @Test
+  public void failureDoesNotStopOtherFiles() throws IOException {
+    Path in = copyInputs("bad_dispatch.xml", "a.xml", "tiny.xml", "b.xml");
+    List<Result> results = new ScxmlBatch()
+        .setDotDir(mTempDir.resolve("dot"))
+        .translate(Arrays.asList(in.toString()));
+    assertTrue(results.get(0).getError() instanceof ParseException);
+    assertNull(results.get(0).getDotOutput());
+    assertNull(results.get(1).getError());
+    assertNull(results.get(1).getJavaOutput());
+    assertNotNull(results.get(1).getDotOutput());
+    assertTrue(results.get(1).getParseNanos() > 0);
+  }
+
+  @Test
+  public void findsFilesByGlob() throws IOException {
+    Path in = copyInputs("tiny.xml", "x/tiny.scxml", "small.xml", "x/y/small.scxml",
+        "medium.xml", "x/medium.xml");
+    List<Result> results = new ScxmlBatch()
+        .setDotDir(mTempDir.resolve("dot"))
+        .translate(Arrays.asList(in + "/x/**.scxml"));
+    assertEquals(2, results.size());
+    assertEquals(mTempDir.resolve("dot/tiny.dot"), results.get(0).getDotOutput());
+    assertEquals(mTempDir.resolve("dot/y/small.dot"), results.get(1).getDotOutput());
+  }
+
+  @Test
+  public void keepsOrderOfInputs() throws IOException {
+    Path in = copyInputs("tiny.xml", "tiny.xml", "small.xml", "small.xml");
+    List<Result> results = new ScxmlBatch()
+        .setDotDir(mTempDir.resolve("dot"))
+        .translate(Arrays.asList(in.resolve("tiny.xml").toString(),
+            in.resolve("small.xml").toString()));
+    assertEquals(in.resolve("tiny.xml"), results.get(0).getInput());
+    assertEquals(mTempDir.resolve("dot/small.dot"), results.get(1).getDotOutput());
+  }
+
+  @Test
+  public void failsOneOfTwoFilesWithSameOutput() throws IOException {
+    Path in = copyInputs("tiny.xml", "a.xml", "tiny.xml", "b.xml");
+    List<Result> results = new ScxmlBatch()
+        .setJavaDir(mTempDir.resolve("java"))
+        .translate(Arrays.asList(in.toString()));
+    assertTrue((results.get(0).getError() == null) != (results.get(1).getError() == null));
+  }
+
+  @Test
+  public void doesNotRewriteUnchangedOutput() throws IOException {
+    Path in = copyInputs("medium.xml", "medium.xml");
+    ScxmlBatch batch = new ScxmlBatch()
+        .setJavaDir(mTempDir.resolve("java"))
+        .setDotDir(mTempDir.resolve("dot"));
+    Result first = batch.translate(Arrays.asList(in.toString())).get(0);
+    assertTrue(first.isJavaWritten());
+    assertTrue(first.isDotWritten());
+    Files.write(first.getDotOutput(), "stale".getBytes(Charset.forName("UTF-8")));
+    Result second = batch.translate(Arrays.asList(in.toString())).get(0);
+    assertFalse(second.isCached());
+    assertFalse(second.isJavaWritten());
+    assertTrue(second.isDotWritten());
+  }
+
+  @Test
+  public void cacheSkipsUnchangedInput() throws IOException {
+    Path in = copyInputs("medium.xml", "medium.xml", "tiny.xml", "tiny.xml");
+    ScxmlBatch batch = new ScxmlBatch()
+        .setJavaDir(mTempDir.resolve("java"))
+        .setCacheFile(mTempDir.resolve("java/scxml.cache"));
+    List<Result> results = batch.translate(Arrays.asList(in.toString()));
+    assertFalse(results.get(0).isCached());
+    Path java = results.get(0).getJavaOutput();
+    String cache = read(mTempDir.resolve("java/scxml.cache"));
+
+    results = batch.translate(Arrays.asList(in.toString()));
+    assertTrue(results.get(0).isCached());
+    assertTrue(results.get(1).isCached());
+    assertEquals(java, results.get(0).getJavaOutput());
+    assertEquals(cache, read(mTempDir.resolve("java/scxml.cache")));
+
+    // a new comment changes the hash, but not the output
+    Files.write(in.resolve("medium.xml"),
+        (read(in.resolve("medium.xml")) + "<!-- -->").getBytes(Charset.forName("UTF-8")));
+    Files.delete(results.get(1).getJavaOutput());
+    results = batch.translate(Arrays.asList(in.toString()));
+    assertFalse(results.get(0).isCached());
+    assertFalse(results.get(0).isJavaWritten());
+    assertFalse(results.get(1).isCached());
+    assertTrue(results.get(1).isJavaWritten());
+  }
+
+  @Test
+  public void cacheDependsOnOutputDirectories() throws IOException {
+    Path in = copyInputs("tiny.xml", "tiny.xml");
+    Path cache = mTempDir.resolve("scxml.cache");
+    new ScxmlBatch().setJavaDir(mTempDir.resolve("java")).setCacheFile(cache)
+        .translate(Arrays.asList(in.toString()));
+    Result result = new ScxmlBatch().setJavaDir(mTempDir.resolve("java"))
+        .setDotDir(mTempDir.resolve("dot")).setCacheFile(cache)
+        .translate(Arrays.asList(in.toString())).get(0);
+    assertFalse(result.isCached());
+    assertTrue(result.isDotWritten());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void throwsWithoutOutputDirectory() throws IOException {
+    new ScxmlBatch().translate(Arrays.asList(TESTDATA_DIR + "tiny.xml"));
+  }
+
+  @Test(expected = IOException.class)
+  public void throwsOnMissingInput() throws IOException {
+    new ScxmlBatch().setDotDir(Paths.get("unused"))
+        .translate(Arrays.asList(TESTDATA_DIR + "no_such_file.xml"));
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.labs.fsm.ScxmlCompiler.CompileException;
+import com.google.common.labs.fsm.ScxmlDoc.ParseException;
+import com.google.testing.util.TestUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.file.Paths;
+
+/**
+ * Tests for the in-memory {@link ScxmlCompiler}
+ */
+@RunWith(JUnit4.class)
+public class ScxmlCompilerTest {
+
+  private static final String TESTDATA_DIR =
+      TestUtil.getSrcDir() + "/google3/javatests/com/google/common/labs/fsm/testdata/";
+  private static final String CODE_ENTRY_SCXML_FILE = TESTDATA_DIR + "code_entry.xml";
+  private static final String BAD_XML_FILE = TESTDATA_DIR + "bad_xml.xml";
+
+  @Test
+  public void compilesAbstractMachine() throws IOException, ParseException, CompileException,
+      NoSuchFieldException, IllegalAccessException {
+    Class<?> c = new ScxmlCompiler().compile(Paths.get(CODE_ENTRY_SCXML_FILE));
+    assertEquals("com.google.common.labs.fsm.CodeEntry", c.getName());
+    assertTrue(Modifier.isAbstract(c.getModifiers()));
+    assertEquals(3, c.getField("STATE_COUNT").getInt(null));
+    assertEquals(5, c.getField("EVENT_COUNT").getInt(null));
+  }
+
+  @Test
+  public void loadsEachMachineInItsOwnClassLoader()
+      throws IOException, ParseException, CompileException {
+    Class<?> c = new ScxmlCompiler().compile(Paths.get(CODE_ENTRY_SCXML_FILE));
+    assertNotSame(getClass().getClassLoader(), c.getClassLoader());
+    for (Class<?> nested : c.getClasses()) {
+      assertSame(c.getClassLoader(), nested.getClassLoader());
+    }
+  }
+
+  @Test
+  public void cachesByContent() throws IOException, ParseException, CompileException {
+    ScxmlCompiler compiler = new ScxmlCompiler();
+    byte[] scxml = FsmTestUtil.readFileBytes(CODE_ENTRY_SCXML_FILE);
+    Class<?> first = compiler.compile(scxml);
+    assertSame(first, compiler.compile(scxml.clone()));
+    assertEquals(1, compiler.getCacheSize());
+
+    byte[] changed = new String(scxml, "UTF-8").replace("\"Beep\"", "\"Chirp\"").getBytes("UTF-8");
+    Class<?> second = compiler.compile(changed);
+    assertEquals(first.getName(), second.getName());
+    assertNotSame(first, second);
+    assertEquals(2, compiler.getCacheSize());
+
+    compiler.clearCache();
+    assertNotSame(first, compiler.compile(scxml));
+  }
+
+  @Test(expected = ParseException.class)
+  public void throwsOnBadXml() throws IOException, ParseException, CompileException {
+    new ScxmlCompiler().compile(Paths.get(BAD_XML_FILE));
+  }
+
+  @Test(expected = CompileException.class)
+  public void throwsOnUncompilableName() throws ParseException, CompileException {
+    String scxml = "<scxml name=\"1Machine\"><state id=\"Only\" /></scxml>";
+    new ScxmlCompiler().compile(scxml.getBytes());
+  }
+}
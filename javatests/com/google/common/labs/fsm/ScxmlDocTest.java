@@ -7,11 +7,16 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.google.common.io.NullOutputStream;
+import com.google.common.labs.fsm.ScxmlDoc.Concurrency;
+import com.google.common.labs.fsm.ScxmlDoc.Dispatch;
 import com.google.common.labs.fsm.ScxmlDoc.ParseException;
+import com.google.common.labs.fsm.ScxmlDoc.Parser;
 import com.google.common.labs.fsm.ScxmlDoc.State;
 import com.google.common.labs.fsm.ScxmlDoc.Transition;
+import com.google.common.labs.fsm.ScxmlDoc.Unhandled;
 import com.google.testing.util.TestUtil;
 
 import org.junit.After;
@@ -20,8 +25,18 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
@@ -53,12 +68,36 @@ public class ScxmlDocTest {
   private static final String NO_STATE_ID_FILE = TESTDATA_DIR + "no_state_id.xml";
   private static final String NO_ACTION_ID_FILE = TESTDATA_DIR + "no_action_id.xml";
   private static final String LARGE_SCXML_FILE = TESTDATA_DIR + "large.xml";
+  private static final String CODE_ENTRY_SCXML_FILE = TESTDATA_DIR + "code_entry.xml";
   private static final String BAD_BASE_FILE = TESTDATA_DIR + "bad_base.xml";
   private static final String MISSING_EVENT_FILE = TESTDATA_DIR + "missing_event.xml";
   private static final String MISSING_ACTION_ID_FILE = TESTDATA_DIR + "missing_action_id.xml";
   private static final String MISSING_TRANSITION_TARGET_FILE =
       TESTDATA_DIR + "missing_transition_target.xml";
   private static final String UNDECLARED_TARGET_FILE = TESTDATA_DIR + "undeclared_target.xml";
+  private static final String TABLE_DISPATCH_FILE = TESTDATA_DIR + "table_dispatch.xml";
+  private static final String STATE_DISPATCH_FILE = TESTDATA_DIR + "state_dispatch.xml";
+  private static final String BAD_DISPATCH_FILE = TESTDATA_DIR + "bad_dispatch.xml";
+  private static final String ATOMIC_FILE = TESTDATA_DIR + "atomic.xml";
+  private static final String MAILBOX_FILE = TESTDATA_DIR + "mailbox.xml";
+  private static final String FLEET_FILE = TESTDATA_DIR + "fleet.xml";
+  private static final String METRICS_FILE = TESTDATA_DIR + "metrics.xml";
+  private static final String UNHANDLED_THROW_FILE = TESTDATA_DIR + "unhandled_throw.xml";
+  private static final String UNHANDLED_RETURN_FALSE_FILE =
+      TESTDATA_DIR + "unhandled_return_false.xml";
+  private static final String UNHANDLED_IGNORE_FILE = TESTDATA_DIR + "unhandled_ignore.xml";
+  private static final String UNHANDLED_CALLBACK_FILE = TESTDATA_DIR + "unhandled_callback.xml";
+  private static final String BAD_UNHANDLED_FILE = TESTDATA_DIR + "bad_unhandled.xml";
+  private static final String BAD_MAILBOX_FILE = TESTDATA_DIR + "bad_mailbox.xml";
+  private static final String DUPLICATE_STATE_FILE = TESTDATA_DIR + "duplicate_state.xml";
+  private static final String NESTED_STATE_FILE = TESTDATA_DIR + "nested_state.xml";
+  private static final String INLINE_SCXML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<scxml name=\"Inline\" initial=\"Off\">\n"
+      + "  <state id=\"Off\">\n"
+      + "    <transition event=\"Toggle\" action=\"Click\" target=\"On\" />\n"
+      + "  </state>\n"
+      + "  <state id=\"On\"><transition event=\"Toggle\" target=\"Off\" /></state>\n"
+      + "</scxml>\n";
 
   private State getStateByName(List<State> states, String name) {
     for (State s : states) {
@@ -175,6 +214,100 @@ public class ScxmlDocTest {
     assertFalse(doc.getDebugFlag());
   }
 
+  @Test
+  public void dispatchDefaultsToSwitch() throws IOException, ParseException {
+    ScxmlDoc doc = ScxmlDoc.createFromFile(TINY_SCXML_FILE);
+    assertEquals(Dispatch.SWITCH, doc.getDispatch());
+  }
+
+  @Test
+  public void parsesTableDispatch() throws IOException, ParseException {
+    ScxmlDoc doc = ScxmlDoc.createFromFile(TABLE_DISPATCH_FILE);
+    assertEquals(Dispatch.TABLE, doc.getDispatch());
+  }
+
+  @Test
+  public void parsesStateDispatch() throws IOException, ParseException {
+    ScxmlDoc doc = ScxmlDoc.createFromFile(STATE_DISPATCH_FILE);
+    assertEquals(Dispatch.STATE, doc.getDispatch());
+  }
+
+  @Test(expected = ParseException.class)
+  public void throwsOnBadDispatch() throws IOException, ParseException {
+    ScxmlDoc.createFromFile(BAD_DISPATCH_FILE);
+  }
+
+  @Test
+  public void concurrencyDefaultsToNone() throws IOException, ParseException {
+    ScxmlDoc doc = ScxmlDoc.createFromFile(TINY_SCXML_FILE);
+    assertEquals(Concurrency.NONE, doc.getConcurrency());
+  }
+
+  @Test
+  public void parsesAtomicConcurrency() throws IOException, ParseException {
+    ScxmlDoc doc = ScxmlDoc.createFromFile(ATOMIC_FILE);
+    assertEquals(Concurrency.ATOMIC, doc.getConcurrency());
+  }
+
+  @Test
+  public void noMailboxByDefault() throws IOException, ParseException {
+    ScxmlDoc doc = ScxmlDoc.createFromFile(TINY_SCXML_FILE);
+    assertEquals(0, doc.getMailboxCapacity());
+  }
+
+  @Test
+  public void parsesMailboxCapacity() throws IOException, ParseException {
+    ScxmlDoc doc = ScxmlDoc.createFromFile(MAILBOX_FILE);
+    assertEquals(4, doc.getMailboxCapacity());
+  }
+
+  @Test(expected = ParseException.class)
+  public void throwsOnBadMailboxCapacity() throws IOException, ParseException {
+    ScxmlDoc.createFromFile(BAD_MAILBOX_FILE);
+  }
+
+  @Test
+  public void setsFleetFlag() throws IOException, ParseException {
+    assertTrue(ScxmlDoc.createFromFile(FLEET_FILE).getFleetFlag());
+    assertFalse(ScxmlDoc.createFromFile(TINY_SCXML_FILE).getFleetFlag());
+  }
+
+  @Test
+  public void setsMetricsFlag() throws IOException, ParseException {
+    assertTrue(ScxmlDoc.createFromFile(METRICS_FILE).getMetricsFlag());
+    assertFalse(ScxmlDoc.createFromFile(TINY_SCXML_FILE).getMetricsFlag());
+  }
+
+  @Test
+  public void numbersTransitionsInDocumentOrder() throws IOException, ParseException {
+    ScxmlDoc doc = ScxmlDoc.createFromFile(METRICS_FILE);
+    assertEquals(5, doc.getTransitionCount());
+    assertEquals(0, doc.getBaseState().getTransitions().get(0).getIndex());
+    assertEquals(2, doc.getState("Ready").getTransitions().get(1).getIndex());
+    assertEquals(4, doc.getState("ValidatingEntry").getTransitions().get(1).getIndex());
+  }
+
+  @Test
+  public void unhandledDefaultsToThrowNew() throws IOException, ParseException {
+    ScxmlDoc doc = ScxmlDoc.createFromFile(TINY_SCXML_FILE);
+    assertEquals(Unhandled.THROW_NEW, doc.getUnhandled());
+  }
+
+  @Test
+  public void parsesUnhandled() throws IOException, ParseException {
+    assertEquals(Unhandled.THROW, ScxmlDoc.createFromFile(UNHANDLED_THROW_FILE).getUnhandled());
+    assertEquals(Unhandled.RETURN_FALSE,
+        ScxmlDoc.createFromFile(UNHANDLED_RETURN_FALSE_FILE).getUnhandled());
+    assertEquals(Unhandled.IGNORE, ScxmlDoc.createFromFile(UNHANDLED_IGNORE_FILE).getUnhandled());
+    assertEquals(Unhandled.CALLBACK,
+        ScxmlDoc.createFromFile(UNHANDLED_CALLBACK_FILE).getUnhandled());
+  }
+
+  @Test(expected = ParseException.class)
+  public void throwsOnBadUnhandled() throws IOException, ParseException {
+    ScxmlDoc.createFromFile(BAD_UNHANDLED_FILE);
+  }
+
   @Test
   public void terminalStatesParsed() throws IOException, ParseException {
     ScxmlDoc doc = ScxmlDoc.createFromFile(TINY_SCXML_FILE);
@@ -312,5 +445,216 @@ public class ScxmlDocTest {
     doc.changeClassName(newClassName);
     assertEquals(newClassName, doc.getClassName());
   }
+  private void assertSameDocument(ScxmlDoc expected, ScxmlDoc actual) {
+    assertEquals(expected.getClassName(), actual.getClassName());
+    assertEquals(expected.getPackageName(), actual.getPackageName());
+    assertEquals(expected.getInitialStateName(), actual.getInitialStateName());
+    assertEquals(new ArrayList<String>(expected.getEventSet()),
+        new ArrayList<String>(actual.getEventSet()));
+    assertEquals(new ArrayList<String>(expected.getActionSet()),
+        new ArrayList<String>(actual.getActionSet()));
+    assertEquals(expected.getTerminalStates().size(), actual.getTerminalStates().size());
+    assertEquals(expected.getStates().size(), actual.getStates().size());
+    for (int i = 0; i < expected.getStates().size(); i++) {
+      State e = expected.getStates().get(i);
+      State a = actual.getStates().get(i);
+      assertEquals(e.getId(), a.getId());
+      assertEquals(e.getTransitions().size(), a.getTransitions().size());
+      for (int j = 0; j < e.getTransitions().size(); j++) {
+        Transition et = e.getTransitions().get(j);
+        Transition at = a.getTransitions().get(j);
+        assertEquals(et.getEvent(), at.getEvent());
+        assertEquals(et.getTarget(), at.getTarget());
+        assertEquals(et.getActions(), at.getActions());
+        assertEquals(et.getIndex(), at.getIndex());
+      }
+    }
+  }
+
+  @Test
+  public void streamingParserMatchesDomParser() throws IOException, ParseException {
+    for (String file : new String[] {TINY_SCXML_FILE, LARGE_SCXML_FILE, CODE_ENTRY_SCXML_FILE}) {
+      assertSameDocument(ScxmlDoc.createFromFile(file, Parser.DOM),
+          ScxmlDoc.createFromFile(file, Parser.STREAMING));
+    }
+    assertEquals("BaseState",
+        ScxmlDoc.createFromFile(LARGE_SCXML_FILE, Parser.DOM).getBaseState().getId());
+  }
+
+  @Test(expected = ParseException.class)
+  public void domParserThrowsOnBadElementName() throws IOException, ParseException {
+    ScxmlDoc.createFromFile(BAD_ELEMENT_NAME_FILE, Parser.DOM);
+  }
+
+  @Test(expected = IOException.class)
+  public void domParserThrowsOnNoSuchFile() throws IOException, ParseException {
+    ScxmlDoc.createFromFile(NO_SUCH_FILE, Parser.DOM);
+  }
+
+  @Test
+  public void parsesFromInputStream() throws ParseException, UnsupportedEncodingException {
+    ScxmlDoc doc = ScxmlDoc.createFrom(new ByteArrayInputStream(INLINE_SCXML.getBytes("UTF-8")));
+    assertEquals("Inline", doc.getClassName());
+    assertEquals(2, doc.getStates().size());
+    assertTrue(doc.getActionSet().contains("Click"));
+  }
+
+  @Test
+  public void parsesFromReader() throws ParseException {
+    ScxmlDoc doc = ScxmlDoc.createFrom(new StringReader(INLINE_SCXML));
+    assertEquals("Off", doc.getInitialStateName());
+    assertTrue(doc.getEventSet().contains("Toggle"));
+  }
+
+  @Test
+  public void parsesFromPath() throws IOException, ParseException {
+    assertSameDocument(ScxmlDoc.createFromFile(LARGE_SCXML_FILE),
+        ScxmlDoc.createFrom(Paths.get(LARGE_SCXML_FILE)));
+  }
+
+  @Test
+  public void parsesFromByteBuffer() throws ParseException, UnsupportedEncodingException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(INLINE_SCXML.length());
+    buffer.put(INLINE_SCXML.getBytes("UTF-8"));
+    buffer.flip();
+    ScxmlDoc doc = ScxmlDoc.createFrom(buffer);
+    assertEquals(2, doc.getStates().size());
+    assertEquals(0, buffer.position());
+  }
+
+  private static byte[] toBinary(ScxmlDoc doc) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    doc.writeBinary(out);
+    return out.toByteArray();
+  }
+
+  private static String toJava(ScxmlDoc doc) throws IOException {
+    StringWriter out = new StringWriter();
+    Scxml2Java.translatorForScxml(doc).outputJava(out);
+    return out.toString();
+  }
+
+  @Test
+  public void binaryMatchesXml() throws IOException, ParseException {
+    for (String file : new String[] {TINY_SCXML_FILE, LARGE_SCXML_FILE, CODE_ENTRY_SCXML_FILE,
+        TABLE_DISPATCH_FILE, STATE_DISPATCH_FILE, ATOMIC_FILE, MAILBOX_FILE, FLEET_FILE,
+        METRICS_FILE, UNHANDLED_RETURN_FALSE_FILE, UNHANDLED_IGNORE_FILE,
+        UNHANDLED_CALLBACK_FILE}) {
+      ScxmlDoc expected = ScxmlDoc.createFromFile(file);
+      ScxmlDoc actual = ScxmlDoc.readBinary(ByteBuffer.wrap(toBinary(expected)));
+      assertSameDocument(expected, actual);
+      assertEquals(file, toJava(expected), toJava(actual));
+    }
+  }
+
+  @Test
+  public void binaryIsSmallerThanXml() throws IOException, ParseException {
+    assertTrue(toBinary(ScxmlDoc.createFromFile(LARGE_SCXML_FILE)).length
+        < Files.size(Paths.get(LARGE_SCXML_FILE)));
+  }
+
+  @Test
+  public void readsBinaryDocumentsInTurn() throws IOException, ParseException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ScxmlDoc.createFromFile(TINY_SCXML_FILE).writeBinary(out);
+    ScxmlDoc.createFromFile(SMALL_SCXML_FILE).writeBinary(out);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(out.size());
+    buffer.put(out.toByteArray());
+    buffer.flip();
+    assertEquals(ScxmlDoc.createFromFile(TINY_SCXML_FILE).getClassName(),
+        ScxmlDoc.readBinary(buffer).getClassName());
+    assertEquals(ScxmlDoc.createFromFile(SMALL_SCXML_FILE).getClassName(),
+        ScxmlDoc.readBinary(buffer).getClassName());
+    assertFalse(buffer.hasRemaining());
+  }
+
+  /**
+   * Asserts that reading bytes as a binary document throws a ParseException
+   * that mentions text, and leaves the position of the buffer unchanged
+   */
+  private static void assertBadBinary(byte[] bytes, String text) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    try {
+      ScxmlDoc.readBinary(buffer);
+      fail();
+    } catch (ParseException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(text));
+    }
+    assertEquals(0, buffer.position());
+  }
+
+  @Test
+  public void readBinaryThrowsOnXml() throws IOException {
+    assertBadBinary(Files.readAllBytes(Paths.get(TINY_SCXML_FILE)), "not a binary");
+  }
+
+  @Test
+  public void readBinaryThrowsOnNewerVersion() throws IOException, ParseException {
+    byte[] bytes = toBinary(ScxmlDoc.createFromFile(TINY_SCXML_FILE));
+    bytes[4]++;
+    assertBadBinary(bytes, "version");
+  }
+
+  @Test
+  public void readBinaryThrowsOnTruncatedDocument() throws IOException, ParseException {
+    byte[] bytes = toBinary(ScxmlDoc.createFromFile(SMALL_SCXML_FILE));
+    assertBadBinary(Arrays.copyOf(bytes, bytes.length - 1), "truncated");
+  }
+
+  @Test(expected = ParseException.class)
+  public void throwsOnBadXmlFromReader() throws ParseException {
+    System.setErr(new PrintStream(new NullOutputStream()));
+    ScxmlDoc.createFrom(new StringReader("<scxml name=\"Broken\""));
+  }
+
+  @Test
+  public void looksUpStatesById() throws IOException, ParseException {
+    ScxmlDoc doc = ScxmlDoc.createFromFile(LARGE_SCXML_FILE);
+    assertEquals("AnnoyedState", doc.getState("AnnoyedState").getId());
+    assertNull(doc.getState("Awake"));
+    assertEquals(0, doc.getStateIndex("BaseState"));
+    assertEquals(3, doc.getStateIndex("EndState"));
+    assertEquals(-1, doc.getStateIndex("Awake"));
+  }
+
+  @Test
+  public void indexesEventsAndActionsInDeclarationOrder() throws IOException, ParseException {
+    ScxmlDoc doc = ScxmlDoc.createFromFile(LARGE_SCXML_FILE);
+    int i = 0;
+    for (String event : doc.getEventSet()) {
+      assertEquals(i++, doc.getEventIndex(event));
+    }
+    i = 0;
+    for (String action : doc.getActionSet()) {
+      assertEquals(i++, doc.getActionIndex(action));
+    }
+    assertEquals(-1, doc.getEventIndex("Earthquake"));
+    assertEquals(-1, doc.getActionIndex("Snore"));
+  }
+
+  @Test(expected = ParseException.class)
+  public void throwsOnDuplicateStateId() throws IOException, ParseException {
+    ScxmlDoc.createFromFile(DUPLICATE_STATE_FILE);
+  }
+
+  /**
+   * @return the message of the ParseException thrown by parsing file
+   */
+  private static String getParseError(String file, Parser parser) throws IOException {
+    try {
+      ScxmlDoc.createFromFile(file, parser);
+    } catch (ParseException e) {
+      return e.getMessage();
+    }
+    fail(file + " parsed with " + parser);
+    return null;
+  }
+
+  @Test
+  public void bothParsersRejectNestedState() throws IOException {
+    assertEquals("state A must not contain a state", getParseError(NESTED_STATE_FILE, Parser.DOM));
+    assertEquals(getParseError(NESTED_STATE_FILE, Parser.DOM),
+        getParseError(NESTED_STATE_FILE, Parser.STREAMING));
+  }
 
 }
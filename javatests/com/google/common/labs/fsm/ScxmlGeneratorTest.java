@@ -0,0 +1,112 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.labs.fsm.ScxmlDoc.State;
+import com.google.common.labs.fsm.ScxmlDoc.Transition;
+import com.google.common.labs.fsm.ScxmlGenerator.Shape;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests for the ScxmlGenerator class
+ */
+@RunWith(JUnit4.class)
+public class ScxmlGeneratorTest {
+
+  @Test
+  public void sameSeedGivesSameDocument() {
+    ScxmlGenerator generator = new ScxmlGenerator().setSeed(42).setStateCount(50);
+    String first = generator.generate();
+    assertEquals(first, generator.generate());
+    assertEquals(first, new ScxmlGenerator().setSeed(42).setStateCount(50).generate());
+    assertFalse(first.equals(new ScxmlGenerator().setSeed(43).setStateCount(50).generate()));
+  }
+
+  @Test
+  public void generatesConfiguredMachine() {
+    ScxmlDoc doc = new ScxmlGenerator()
+        .setName("Configured")
+        .setShape(Shape.RANDOM)
+        .setStateCount(200)
+        .setFanOut(4)
+        .setEventCount(10)
+        .setActionCount(5)
+        .setActionDensity(0.5)
+        .setBaseTransitions(2)
+        .createDoc();
+    assertEquals("Configured", doc.getClassName());
+    assertEquals(201, doc.getStates().size());
+    assertNotNull(doc.getBaseState());
+    assertEquals(2, doc.getBaseState().getTransitions().size());
+    assertTrue(doc.getEventSet().size() <= 10);
+    assertTrue(doc.getActionSet().size() <= 5);
+    for (State s : doc.getStates()) {
+      if (s != doc.getBaseState()) {
+        assertEquals(4, s.getTransitions().size());
+        Set<String> events = new HashSet<String>();
+        for (Transition t : s.getTransitions()) {
+          assertTrue(events.add(t.getEvent()));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void ringVisitsEveryState() {
+    ScxmlDoc doc = new ScxmlGenerator().setStateCount(30).createDoc();
+    assertNull(doc.getBaseState());
+    for (int i = 0; i < 30; i++) {
+      Transition first = doc.getState("S" + i).getTransitions().get(0);
+      assertEquals("S" + (i + 1) % 30, first.getTarget());
+    }
+  }
+
+  @Test
+  public void zeroDensityHasNoActions() {
+    ScxmlDoc doc = new ScxmlGenerator().setActionDensity(0).setActionCount(0).createDoc();
+    assertTrue(doc.getActionSet().isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void throwsOnFanOutLargerThanAlphabet() {
+    new ScxmlGenerator().setFanOut(9).setEventCount(8).generate();
+  }
+
+  @Test
+  public void translatorsHandleLargeMachine() throws IOException {
+    ScxmlDoc doc = new ScxmlGenerator()
+        .setStateCount(20000)
+        .setFanOut(5)
+        .setEventCount(40)
+        .setBaseTransitions(3)
+        .createDoc();
+    assertEquals(20001, doc.getStates().size());
+
+    StringWriter java = new StringWriter();
+    Scxml2Java.translatorForScxml(doc).outputJava(java);
+    assertTrue(java.toString().contains("S19999"));
+    StringWriter dot = new StringWriter();
+    Scxml2Dot.translatorForScxml(doc).outputDot(dot);
+    assertTrue(dot.toString().contains("S19999"));
+
+    ScxmlInterpreter fsm = new ScxmlInterpreter(doc);
+    fsm.start();
+    int next = doc.getEventIndex(doc.getState("S0").getTransitions().get(0).getEvent());
+    assertTrue(fsm.pushEvent(next));
+    assertEquals("S1", fsm.getCurrentState());
+  }
+}
@@ -0,0 +1,289 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.labs.fsm.ScxmlDoc.ParseException;
+import com.google.common.labs.fsm.ScxmlInterpreter.EventException;
+import com.google.common.labs.fsm.ScxmlInterpreter.StateException;
+import com.google.common.labs.fsm.ScxmlInterpreter.UnhandledEventException;
+import com.google.testing.util.TestUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the ScxmlInterpreter class
+ */
+@RunWith(JUnit4.class)
+public class ScxmlInterpreterTest {
+
+  private static final String TESTDATA_DIR =
+      TestUtil.getSrcDir() + "/google3/javatests/com/google/common/labs/fsm/testdata/";
+  private static final String TINY_SCXML_FILE = TESTDATA_DIR + "tiny.xml";
+  private static final String SMALL_SCXML_FILE = TESTDATA_DIR + "small.xml";
+  private static final String LARGE_SCXML_FILE = TESTDATA_DIR + "code_entry.xml";
+  private static final String MEDIUM_SCXML_FILE = TESTDATA_DIR + "medium.xml";
+  private static final String UNHANDLED_THROW_SCXML_FILE = TESTDATA_DIR + "unhandled_throw.xml";
+  private static final String UNHANDLED_RETURN_FALSE_SCXML_FILE =
+      TESTDATA_DIR + "unhandled_return_false.xml";
+  private static final String UNHANDLED_IGNORE_SCXML_FILE =
+      TESTDATA_DIR + "unhandled_ignore.xml";
+  private static final String UNHANDLED_CALLBACK_SCXML_FILE =
+      TESTDATA_DIR + "unhandled_callback.xml";
+
+  /**
+   * Records actions and state changes by name
+   */
+  private static class Recorder implements ScxmlInterpreter.Listener {
+    final ScxmlInterpreter mFsm;
+    final List<String> mLog = new ArrayList<String>();
+
+    Recorder(ScxmlInterpreter fsm) {
+      mFsm = fsm;
+      for (final String action : fsm.getDoc().getActionSet()) {
+        fsm.setActionHandler(action, new Runnable() {
+          @Override
+          public void run() {
+            mLog.add(action);
+          }
+        });
+      }
+      fsm.setListener(this);
+    }
+
+    @Override
+    public void onStateChange(int state) {
+      mLog.add("State." + mFsm.getStateName(state));
+    }
+
+    @Override
+    public void onUnhandledEvent(int state, int event) {
+      mLog.add("Unhandled." + mFsm.getStateName(state) + "." + mFsm.getEventName(event));
+    }
+  }
+
+  private static ScxmlInterpreter interpreterFor(String file) throws IOException, ParseException {
+    return new ScxmlInterpreter(ScxmlDoc.createFromFile(file));
+  }
+
+  @Test
+  public void startsInFirstStateWithNoInitialStateDeclaration()
+      throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(TINY_SCXML_FILE);
+    assertNull(fsm.getCurrentState());
+    assertEquals(-1, fsm.getCurrentStateIndex());
+    fsm.start();
+    assertEquals("StateOne", fsm.getCurrentState());
+    assertEquals(0, fsm.getCurrentStateIndex());
+  }
+
+  @Test
+  public void startsInDeclaredInitialState() throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(LARGE_SCXML_FILE);
+    fsm.start();
+    assertEquals("Ready", fsm.getCurrentState());
+  }
+
+  @Test
+  public void startsInGivenState() throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(MEDIUM_SCXML_FILE);
+    fsm.start("AnnoyedState");
+    assertEquals("AnnoyedState", fsm.getCurrentState());
+  }
+
+  @Test
+  public void copyRunsSameMachineIndependently() throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(MEDIUM_SCXML_FILE);
+    fsm.start();
+    fsm.pushEvent("AlarmRings");
+    ScxmlInterpreter copy = new ScxmlInterpreter(fsm);
+    assertNull(copy.getCurrentState());
+    copy.start();
+    assertEquals("Sleeping", copy.getCurrentState());
+    assertEquals("AnnoyedState", fsm.getCurrentState());
+    copy.pushEvent("AlarmRings");
+    copy.pushEvent("GetUp");
+    assertTrue(copy.isInTerminalState());
+    assertFalse(fsm.isInTerminalState());
+  }
+
+  @Test(expected = StateException.class)
+  public void cantStartTwice() throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(TINY_SCXML_FILE);
+    fsm.start();
+    fsm.start();
+  }
+
+  @Test
+  public void transitionsAndPerformsActionsInOrder() throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(MEDIUM_SCXML_FILE);
+    Recorder recorder = new Recorder(fsm);
+    fsm.start();
+    assertTrue(fsm.pushEvent("Dog"));
+    assertTrue(fsm.pushEvent(fsm.getEventIndex("Nightmare")));
+    assertEquals(Arrays.asList("State.Sleeping", "Grunt", "Kick", "State.Sleeping", "Scream",
+        "State.AnnoyedState"), recorder.mLog);
+  }
+
+  @Test
+  public void statesHandleBaseTransitions() throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(LARGE_SCXML_FILE);
+    fsm.start();
+    fsm.pushEvent("ResetPressed");
+    assertEquals("Ready", fsm.getCurrentState());
+    fsm.pushEvent("DigitPressed");
+    fsm.pushEvent("ResetPressed");
+    assertEquals("Ready", fsm.getCurrentState());
+  }
+
+  @Test
+  public void findsTerminalState() throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(MEDIUM_SCXML_FILE);
+    fsm.start();
+    assertFalse(fsm.isInTerminalState());
+    fsm.pushEvent("AlarmRings");
+    fsm.pushEvent("GetUp");
+    assertTrue(fsm.isInTerminalState());
+    assertFalse(fsm.pushEvent("AlarmRings"));
+  }
+
+  @Test
+  public void throwsOnUnexpectedEvent() throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(SMALL_SCXML_FILE);
+    fsm.start();
+    try {
+      fsm.pushEvent("EventB");
+      fail();
+    } catch (StateException e) {
+      assertEquals("State.StateOne does not handle Event.EventB", e.getMessage());
+    }
+  }
+
+  @Test
+  public void throwsOnUnknownEvent() throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(TINY_SCXML_FILE);
+    fsm.start();
+    try {
+      fsm.pushEvent("NoSuchEvent");
+      fail();
+    } catch (EventException e) {
+      assertEquals("Unknown Event: NoSuchEvent", e.getMessage());
+    }
+    try {
+      fsm.pushEvent(fsm.getEventCount());
+      fail();
+    } catch (EventException e) {
+      // expected
+    }
+  }
+
+  @Test(expected = EventException.class)
+  public void throwsOnEventBeforeStart() throws IOException, ParseException {
+    interpreterFor(TINY_SCXML_FILE).pushEvent("EventA");
+  }
+
+  @Test
+  public void throwsOnReentrantPush() throws IOException, ParseException {
+    final ScxmlInterpreter fsm = interpreterFor(MEDIUM_SCXML_FILE);
+    fsm.setActionHandler("Grunt", new Runnable() {
+      @Override
+      public void run() {
+        fsm.pushEvent("Nightmare");
+      }
+    });
+    fsm.start();
+    try {
+      fsm.pushEvent("Dog");
+      fail();
+    } catch (StateException e) {
+      assertEquals("pushEvent(Nightmare) called during push of Dog", e.getMessage());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void throwsOnHandlerForUnknownAction() throws IOException, ParseException {
+    interpreterFor(MEDIUM_SCXML_FILE).setActionHandler("NoSuchAction", null);
+  }
+
+  @Test
+  public void pushEventsStopsAtFirstUnhandledEvent() throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(MEDIUM_SCXML_FILE);
+    fsm.start();
+    int[] events = {fsm.getEventIndex("Dog"), fsm.getEventIndex("AlarmRings"),
+        fsm.getEventIndex("AlarmRings"), fsm.getEventIndex("GetUp")};
+    assertEquals(2, fsm.pushEvents(events, 0, events.length));
+    assertEquals("AnnoyedState", fsm.getCurrentState());
+    assertEquals(4, fsm.pushEvents(events, 3, events.length));
+    assertTrue(fsm.isInTerminalState());
+  }
+
+  @Test
+  public void unhandledThrowReusesException() throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(UNHANDLED_THROW_SCXML_FILE);
+    fsm.start();
+    UnhandledEventException first = null;
+    for (int i = 0; i < 2; i++) {
+      try {
+        fsm.pushEvent("HitSnooze");
+        fail();
+      } catch (UnhandledEventException e) {
+        if (first == null) {
+          first = e;
+        }
+        assertSame(first, e);
+        assertEquals(0, e.getStackTrace().length);
+        e.addSuppressed(new RuntimeException());
+        assertEquals(0, e.getSuppressed().length);
+        try {
+          e.initCause(new RuntimeException());
+          fail();
+        } catch (IllegalStateException expected) {
+          // the shared instance keeps its null cause
+        }
+      }
+    }
+  }
+
+  @Test
+  public void unhandledReturnFalse() throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(UNHANDLED_RETURN_FALSE_SCXML_FILE);
+    fsm.start();
+    assertFalse(fsm.pushEvent("HitSnooze"));
+    assertEquals("Sleeping", fsm.getCurrentState());
+    assertTrue(fsm.pushEvent("AlarmRings"));
+  }
+
+  @Test
+  public void unhandledIgnore() throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(UNHANDLED_IGNORE_SCXML_FILE);
+    fsm.start();
+    assertTrue(fsm.pushEvent("HitSnooze"));
+    assertEquals("Sleeping", fsm.getCurrentState());
+    int[] events = {fsm.getEventIndex("HitSnooze"), fsm.getEventIndex("AlarmRings"),
+        fsm.getEventIndex("Dog"), fsm.getEventIndex("HitSnooze")};
+    assertEquals(events.length, fsm.pushEvents(events, 0, events.length));
+    assertEquals("Sleeping", fsm.getCurrentState());
+  }
+
+  @Test
+  public void unhandledCallback() throws IOException, ParseException {
+    ScxmlInterpreter fsm = interpreterFor(UNHANDLED_CALLBACK_SCXML_FILE);
+    Recorder recorder = new Recorder(fsm);
+    fsm.start();
+    assertFalse(fsm.pushEvent("HitSnooze"));
+    assertEquals("Unhandled.Sleeping.HitSnooze", recorder.mLog.get(recorder.mLog.size() - 1));
+  }
+}
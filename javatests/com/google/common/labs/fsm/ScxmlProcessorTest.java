@@ -0,0 +1,141 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.common.labs.fsm;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.testing.util.TestUtil;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Tests for the ScxmlProcessor class, which compile a class annotated with
+ * {@link ScxmlMachine} in a temporary directory
+ */
+@RunWith(JUnit4.class)
+public class ScxmlProcessorTest {
+
+  private static final String TESTDATA_DIR =
+      TestUtil.getSrcDir() + "/google3/javatests/com/google/common/labs/fsm/testdata/";
+
+  private Path mTempDir;
+  private final DiagnosticCollector<JavaFileObject> mDiagnostics =
+      new DiagnosticCollector<JavaFileObject>();
+
+  @After
+  public void deleteTempDir() throws IOException {
+    if (mTempDir == null) {
+      return;
+    }
+    Files.walkFileTree(mTempDir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+          throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Compile com/example/Alarm.java, which extends the class generated from
+   * medium.xml, with the processor
+   *
+   * @param annotation the value of the ScxmlMachine annotation of Alarm
+   * @param scxml the testdata file copied to path under the source root
+   * @return true if the compilation succeeded
+   */
+  private boolean compileAlarm(String annotation, String scxml, String path) throws IOException {
+    mTempDir = Files.createTempDirectory("ScxmlProcessorTest");
+    Path src = mTempDir.resolve("src");
+    Path out = mTempDir.resolve("out");
+    Files.createDirectories(src.resolve("com/example"));
+    Files.createDirectories(src.resolve(path).getParent());
+    Files.createDirectories(out);
+    Files.copy(Paths.get(TESTDATA_DIR + scxml), src.resolve(path));
+    Path alarm = src.resolve("com/example/Alarm.java");
+    String code = "package com.example;\n"
+        + "@com.google.common.labs.fsm.ScxmlMachine(\"" + annotation + "\")\n"
+        + "public abstract class Alarm extends com.google.common.labs.fsm.medium {\n"
+        + "  protected void onActionWake() {}\n"
+        + "}\n";
+    Files.write(alarm, code.getBytes(Charset.forName("UTF-8")));
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    StandardJavaFileManager files = compiler.getStandardFileManager(mDiagnostics, null, null);
+    try {
+      CompilationTask task = compiler.getTask(null, files, mDiagnostics,
+          Arrays.asList("-nowarn", "-d", out.toString(),
+              "-sourcepath", src.toString(), "-classpath", System.getProperty("java.class.path")),
+          null, files.getJavaFileObjects(alarm.toFile()));
+      task.setProcessors(Arrays.asList(new ScxmlProcessor()));
+      return task.call();
+    } finally {
+      files.close();
+    }
+  }
+
+  private boolean hasError(String text) {
+    for (Diagnostic<? extends JavaFileObject> diagnostic : mDiagnostics.getDiagnostics()) {
+      if (diagnostic.getKind() == Diagnostic.Kind.ERROR
+          && diagnostic.getMessage(null).contains(text)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void generatesMachineOfAnnotatedClass() throws IOException {
+    assertTrue(mDiagnostics.getDiagnostics().toString(),
+        compileAlarm("medium.xml", "medium.xml", "com/example/medium.xml"));
+    assertTrue(Files.exists(mTempDir.resolve("out/com/google/common/labs/fsm/medium.class")));
+    assertTrue(Files.exists(mTempDir.resolve("out/com/example/Alarm.class")));
+  }
+
+  @Test
+  public void findsFileFromSourceRoot() throws IOException {
+    assertTrue(mDiagnostics.getDiagnostics().toString(),
+        compileAlarm("/fsm/medium.xml", "medium.xml", "fsm/medium.xml"));
+  }
+
+  @Test
+  public void reportsMissingFile() throws IOException {
+    assertFalse(compileAlarm("no_such_file.xml", "medium.xml", "com/example/medium.xml"));
+    assertTrue(hasError("no_such_file.xml"));
+  }
+
+  @Test
+  public void reportsParseError() throws IOException {
+    assertFalse(compileAlarm("medium.xml", "bad_dispatch.xml", "com/example/medium.xml"));
+    assertTrue(hasError("medium.xml: dispatch"));
+  }
+}
@@ -5,11 +5,15 @@ package com.google.common.labs.fsm;
 import com.google.common.labs.fsm.ScxmlDoc.ParseException;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.Map;
 
 import javax.tools.JavaCompiler;
 import javax.tools.ToolProvider;
@@ -44,15 +48,20 @@ public class Source {
     }
   }
 
-  private Source(String scxmlPath) throws SourceException {
+  private Source(String scxmlPath, boolean bytecode) throws SourceException {
     try {
       compiler = ToolProvider.getSystemJavaCompiler();
-      generateJavaSource(scxmlPath);
-      if (DEBUG_SOURCE) {
-        FsmTestUtil.exec("grep -n -e $ " + mJavaSourcePath);
+      if (bytecode) {
+        generateClassFiles(scxmlPath);
+        mCompilerResult = 0;
+      } else {
+        generateJavaSource(scxmlPath);
+        if (DEBUG_SOURCE) {
+          FsmTestUtil.exec("grep -n -e $ " + mJavaSourcePath);
+        }
+        mCompilerResult = compiler.run(
+            null, System.err, System.err, "-d", mClassLoaderDirectory, mJavaSourcePath);
       }
-      mCompilerResult =
-          compiler.run(null, System.err, System.err, "-d", mClassLoaderDirectory, mJavaSourcePath);
       loadClass();
     } catch (Exception e) {
       throw new SourceException(e);
@@ -60,10 +69,18 @@ public class Source {
   }
 
   public static Source fromScxmlFile(String scxmlPath) throws SourceException {
-    return new Source(scxmlPath);
+    return new Source(scxmlPath, false);
   }
 
-  public File redirectToFile() throws IOException {
+  /**
+   * Load the class files generated by {@link Scxml2Bytecode} instead of
+   * compiling java source
+   */
+  public static Source fromScxmlFileAsBytecode(String scxmlPath) throws SourceException {
+    return new Source(scxmlPath, true);
+  }
+
+  private void createClassLoaderDirectory() throws IOException {
     File fileStream = File.createTempFile("Scxml2JavaTest", null);
     fileStream.deleteOnExit();
 
@@ -71,15 +88,17 @@ public class Source {
     File tmpDirFile = new File(mClassLoaderDirectory);
     tmpDirFile.mkdir();
     tmpDirFile.deleteOnExit();
+  }
 
-    fileStream = new File(mClassLoaderDirectory + mClassName + ".java");
+  public File createSourceFile() throws IOException {
+    createClassLoaderDirectory();
+    File fileStream = new File(mClassLoaderDirectory + mClassName + ".java");
     fileStream.createNewFile();
-    System.setOut(new PrintStream(fileStream));
     fileStream.deleteOnExit();
     return fileStream;
   }
 
-  private void generateJavaSource(String fileName) throws IOException, ParseException {
+  private void createTranslator(String fileName) throws IOException, ParseException {
     mTranslator = Scxml2Java.translatorForScxml(ScxmlDoc.createFromFile(fileName));
     mClassName = mTranslator.getClassName();
     mClassName = mClassName + Long.toString(System.currentTimeMillis());
@@ -90,8 +109,36 @@ public class Source {
     } else {
       mFullClassName = mPackageName + "." + mClassName;
     }
-    File javaSource = redirectToFile();
-    mTranslator.outputJava();
+  }
+
+  private void generateClassFiles(String fileName) throws IOException, ParseException {
+    createTranslator(fileName);
+    createClassLoaderDirectory();
+    Scxml2Bytecode generator = Scxml2Bytecode.translatorForScxml(mTranslator.getDoc());
+    for (Map.Entry<String, byte[]> entry : generator.outputClasses().entrySet()) {
+      File classFile =
+          new File(mClassLoaderDirectory + entry.getKey().replace('.', '/') + ".class");
+      classFile.getParentFile().mkdirs();
+      classFile.deleteOnExit();
+      OutputStream out = new FileOutputStream(classFile);
+      try {
+        out.write(entry.getValue());
+      } finally {
+        out.close();
+      }
+    }
+    mJavaSourceDirectory = mClassLoaderDirectory;
+  }
+
+  private void generateJavaSource(String fileName) throws IOException, ParseException {
+    createTranslator(fileName);
+    File javaSource = createSourceFile();
+    Writer writer = new FileWriter(javaSource);
+    try {
+      mTranslator.outputJava(writer);
+    } finally {
+      writer.close();
+    }
     mJavaSourcePath = javaSource.getPath();
     int classNameIndex = mJavaSourcePath.lastIndexOf(mClassName + ".java");
     mJavaSourceDirectory = mJavaSourcePath.substring(0, classNameIndex);